@@ -8,12 +8,15 @@
 package com.mac.tarchan.irc.bot;
 
 import com.mac.tarchan.irc.client.IRCClient;
+import com.mac.tarchan.irc.client.IRCCommand;
 import com.mac.tarchan.irc.client.IRCEvent;
 import com.mac.tarchan.irc.client.IRCHandler;
 import com.mac.tarchan.irc.client.IRCMessage;
 import com.mac.tarchan.irc.client.IRCMessage.CTCP;
 import com.mac.tarchan.irc.client.IRCMessage.Prefix;
+import com.mac.tarchan.irc.client.util.DccSendServer;
 import com.mac.tarchan.irc.client.util.HandlerBuilder;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -259,7 +262,21 @@ public abstract class BotAdapter
 			})
 			.on("ping", HandlerBuilder.create(this, "onPing", "message.trail"))
 //			.on("error", HandlerBuilder.create(this, "onError", "message.trail"))
-			.on("001", HandlerBuilder.create(this, "onStart"))
+			.on("001", new IRCHandler()
+			{
+				@Override
+				public void onMessage(IRCEvent event)
+				{
+					if (irc.getSession().getReconnectCount() > 0)
+					{
+						BotAdapter.this.onRestart();
+					}
+					else
+					{
+						BotAdapter.this.onStart();
+					}
+				}
+			})
 			.on("433", HandlerBuilder.create(this, "onNickConflict", "message.param1"))
 			.on(new IRCHandler()
 			{
@@ -267,9 +284,10 @@ public abstract class BotAdapter
 				public void onMessage(IRCEvent event)
 				{
 					IRCMessage message = event.getMessage();
-					if (message.isNumericReply()) BotAdapter.this.onNumericReply(message.getPrefix(), message.getNumber(), message.getTrail());
+					if (message.getCommandCode() == IRCCommand.NUMERIC) BotAdapter.this.onNumericReply(message.getPrefix(), message.getNumber(), message.getTrail());
 				}
 			})
+			.setAutoReconnect(autoRecconection)
 			.start();
 	}
 
@@ -291,6 +309,20 @@ public abstract class BotAdapter
 		}
 	}
 
+	/**
+	 * 指定されたニックネームにDCC SENDでファイルを送信します。
+	 * 
+	 * @param nick ニックネーム
+	 * @param file ファイル
+	 * @return 転送
+	 * @throws IOException ファイルを送信できない場合
+	 * @see IRCClient#dccSend(String, File)
+	 */
+	public DccSendServer.Transfer sendFile(String nick, File file) throws IOException
+	{
+		return getIRC().dccSend(nick, file);
+	}
+
 //	/**
 //	 * 新しいニックネームを設定します。
 //	 * 
@@ -339,13 +371,14 @@ public abstract class BotAdapter
 	 * IRCネットワークの接続を確認するメッセージを受け取ったときに呼び出されます。
 	 * デフォルトの実装は、IRCネットワークの接続を継続します。
 	 * 自動継続したくないときは、このメソッドをオーバーライドしてください。
+	 * クライアントが受信スレッドで応答している場合は、PONG を送信しません。
 	 * 
 	 * @param text テキスト
 	 * @see IRCClient#pong(String)
 	 */
 	public void onPing(String text)
 	{
-		if (autoPingPong) irc.pong(text);
+		if (autoPingPong && !irc.isPingAnswered()) irc.pong(text);
 	}
 
 	/**
@@ -364,39 +397,27 @@ public abstract class BotAdapter
 
 	/**
 	 * IRCネットワークが切断したときに呼び出されます。
+	 * 自動再接続する場合は、IRCクライアントが再接続して {@link #onRestart()} を呼び出します。
 	 * 
 	 * @param prefix プレフィックス
 	 * @see #onRestart()
 	 * @see #onDestroy()
+	 * @see IRCClient#setAutoReconnect(boolean)
 	 */
 	public void onStop(Prefix prefix)
 	{
-		if (autoRecconection)
-		{
-			onRestart();
-		}
-		else
-		{
-			onDestroy();
-		}
+		if (!irc.isAutoReconnect()) onDestroy();
 	}
 
 	/**
-	 * IRCネットワークに再接続するときに呼び出されます。
+	 * IRCネットワークに再接続したときに、{@link #onStart()} の代わりに呼び出されます。
+	 * 参加していたチャンネルと不在メッセージは、IRCクライアントがまとめて元に戻します。
 	 * 
-	 * @see IRCClient#start()
+	 * @see IRCClient#getSession()
 	 * @see #onStart()
 	 */
 	public void onRestart()
 	{
-		try
-		{
-			irc.start();
-		}
-		catch (IOException x)
-		{
-			throw new RuntimeException("IRCネットワークに再接続できません。", x);
-		}
 	}
 
 	/**
@@ -607,6 +628,7 @@ public abstract class BotAdapter
 	 * @see #onCtcpClientInfo(Prefix, String, CTCP)
 	 * @see #onCtcpAction(Prefix, String, CTCP)
 	 * @see #onDccSend(Prefix, String, CTCP)
+	 * @see #onDccAccept(Prefix, String, CTCP)
 	 */
 	public void onCtcp(Prefix prefix, String target, CTCP ctcp)
 	{
@@ -647,6 +669,10 @@ public abstract class BotAdapter
 		{
 			onDccChat(prefix, target, ctcp);
 		}
+		else if (command.equals(CTCP.DCC_ACCEPT))
+		{
+			onDccAccept(prefix, target, ctcp);
+		}
 		else
 		{
 			// ignore
@@ -757,4 +783,16 @@ public abstract class BotAdapter
 	public void onDccChat(Prefix prefix, String target, CTCP ctcp)
 	{
 	}
+
+	/**
+	 * DCC ACCEPTを受け取ったときに呼び出されます。
+	 * DCC RESUMEで要求したファイル受信の再開を、送信元が受け入れたときに呼び出されます。
+	 * 
+	 * @param prefix プレフィックス
+	 * @param target 対象ニックネーム
+	 * @param ctcp CTCPメッセージ
+	 */
+	public void onDccAccept(Prefix prefix, String target, CTCP ctcp)
+	{
+	}
 }
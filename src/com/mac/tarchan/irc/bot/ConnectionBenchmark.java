@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2011 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.bot;
+
+import com.mac.tarchan.irc.client.IRCClient;
+import com.mac.tarchan.irc.client.IRCEvent;
+import com.mac.tarchan.irc.client.IRCEventLoopGroup;
+import com.mac.tarchan.irc.client.IRCHandler;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 多数の接続を張ったときのスレッド数とメモリを測るベンチマークです。
+ * 同じプロセスで簡易なIRCサーバを起動して、指定された数のクライアントを接続します。
+ * 接続をクローズしたあとに、イベントループの接続の数が 0 に戻ることも確かめます。
+ *
+ * <pre>
+ * java com.mac.tarchan.irc.bot.ConnectionBenchmark [nio|thread] [接続の数] [繰り返しの回数]
+ * </pre>
+ *
+ * @author tarchan
+ */
+public class ConnectionBenchmark
+{
+	/** サーバがPINGを送る間隔 (ミリ秒) */
+	private static final long PING_INTERVAL = 500;
+
+	/** 受け取ったPINGの数 */
+	private final AtomicLong pings = new AtomicLong();
+
+	/**
+	 * ベンチマークを実行します。
+	 *
+	 * @param args [nio|thread] [接続の数] [繰り返しの回数]
+	 * @throws Exception ベンチマークを実行できない場合
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean nio = args.length < 1 || !args[0].equals("thread");
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		Logger root = Logger.getLogger("");
+		root.setLevel(Level.WARNING);
+		for (Handler h : root.getHandlers()) h.setLevel(Level.WARNING);
+
+		MockServer server = new MockServer();
+		Thread serverThread = new Thread(server, "MockServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		new ConnectionBenchmark().run(nio, count, rounds, server.getPort());
+		System.exit(0);
+	}
+
+	/**
+	 * 接続とクローズを繰り返して、結果を表示します。
+	 *
+	 * @param nio イベントループを使用する場合は true
+	 * @param count 接続の数
+	 * @param rounds 繰り返しの回数
+	 * @param port サーバのポート番号
+	 * @throws Exception ベンチマークを実行できない場合
+	 */
+	void run(boolean nio, int count, int rounds, int port) throws Exception
+	{
+		IRCEventLoopGroup group = nio ? new IRCEventLoopGroup() : null;
+		MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+		for (int round = 1; round <= rounds; round++)
+		{
+			System.gc();
+			int threads0 = Thread.activeCount();
+			long heap0 = mem.getHeapMemoryUsage().getUsed();
+			long start = System.nanoTime();
+
+			List<IRCClient> clients = new ArrayList<IRCClient>(count);
+			for (int i = 0; i < count; i++)
+			{
+				final IRCClient irc = IRCClient.createClient("127.0.0.1", port, "bot" + i, null, "UTF-8");
+				irc.on("PING", new IRCHandler()
+				{
+					@Override
+					public void onMessage(IRCEvent event)
+					{
+						pings.incrementAndGet();
+					}
+				});
+				if (group != null) irc.setEventLoopGroup(group);
+				irc.start();
+				clients.add(irc);
+			}
+			long connected = System.nanoTime() - start;
+			Thread.sleep(PING_INTERVAL * 4);
+
+			System.gc();
+			Thread.sleep(200);
+			long heap = mem.getHeapMemoryUsage().getUsed() - heap0;
+			int threads = Thread.activeCount() - threads0;
+			int registered = group != null ? group.getConnectionCount() : count;
+
+			for (IRCClient irc : clients)
+			{
+				irc.close();
+			}
+			Thread.sleep(200);
+			int remaining = group != null ? group.getConnectionCount() : 0;
+
+			System.out.printf("%s round %d: connections=%d registered=%d connect=%d ms threads=+%d heap=+%.1f MB pings=%d remaining=%d%n",
+				nio ? "nio" : "thread", round, count, registered, connected / 1000000, threads, heap / 1e6, pings.getAndSet(0), remaining);
+		}
+		if (group != null) group.shutdown();
+	}
+
+	/**
+	 * 接続してきたクライアントに001を返し、定期的にPINGとPRIVMSGを送る簡易なIRCサーバです。
+	 */
+	static class MockServer implements Runnable
+	{
+		/** サーバソケットチャンネル */
+		private final ServerSocketChannel server;
+
+		/** セレクタ */
+		private final Selector selector;
+
+		/** 受け付けたクライアント */
+		private final List<SocketChannel> clients = new ArrayList<SocketChannel>();
+
+		/**
+		 * 空いているポートでサーバを構築します。
+		 *
+		 * @throws IOException サーバを開始できない場合
+		 */
+		MockServer() throws IOException
+		{
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		/**
+		 * サーバのポート番号を返します。
+		 *
+		 * @return ポート番号
+		 */
+		int getPort()
+		{
+			return server.socket().getLocalPort();
+		}
+
+		@Override
+		public void run()
+		{
+			ByteBuffer buf = ByteBuffer.allocate(65536);
+			byte[] welcome = ":mock 001 bot :Welcome\r\n".getBytes(StandardCharsets.US_ASCII);
+			byte[] ping = ":n!u@h PRIVMSG #bench :hello\r\nPING :mock\r\n".getBytes(StandardCharsets.US_ASCII);
+			long last = System.currentTimeMillis();
+			try
+			{
+				while (true)
+				{
+					selector.select(100);
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						if (key.isAcceptable())
+						{
+							SocketChannel ch;
+							while ((ch = server.accept()) != null)
+							{
+								ch.configureBlocking(false);
+								ch.register(selector, SelectionKey.OP_READ);
+								clients.add(ch);
+								write(ch, welcome);
+							}
+						}
+						else if (key.isReadable())
+						{
+							buf.clear();
+							if (read((SocketChannel)key.channel(), buf) < 0) key.cancel();
+						}
+					}
+					long now = System.currentTimeMillis();
+					if (now - last >= PING_INTERVAL)
+					{
+						last = now;
+						Iterator<SocketChannel> ci = clients.iterator();
+						while (ci.hasNext())
+						{
+							SocketChannel ch = ci.next();
+							if (ch.isOpen()) write(ch, ping);
+							else ci.remove();
+						}
+					}
+				}
+			}
+			catch (IOException ex)
+			{
+				Logger.getLogger(ConnectionBenchmark.class.getName()).log(Level.SEVERE, "サーバを中止しました。", ex);
+			}
+		}
+
+		/**
+		 * クライアントから読み込みます。切断された場合はチャンネルをクローズします。
+		 *
+		 * @param ch チャンネル
+		 * @param buf バッファ
+		 * @return 読み込んだバイト数、切断された場合は -1
+		 */
+		private int read(SocketChannel ch, ByteBuffer buf)
+		{
+			try
+			{
+				int n = ch.read(buf);
+				if (n < 0) ch.close();
+				return n;
+			}
+			catch (IOException ex)
+			{
+				close(ch);
+				return -1;
+			}
+		}
+
+		/**
+		 * クライアントに書き込みます。書き込めない場合はチャンネルをクローズします。
+		 *
+		 * @param ch チャンネル
+		 * @param data データ
+		 */
+		private void write(SocketChannel ch, byte[] data)
+		{
+			try
+			{
+				ch.write(ByteBuffer.wrap(data));
+			}
+			catch (IOException ex)
+			{
+				close(ch);
+			}
+		}
+
+		/**
+		 * チャンネルをクローズします。
+		 *
+		 * @param ch チャンネル
+		 */
+		private void close(SocketChannel ch)
+		{
+			try
+			{
+				ch.close();
+			}
+			catch (IOException ex)
+			{
+				// 無視
+			}
+		}
+	}
+}
@@ -10,6 +10,8 @@ package com.mac.tarchan.irc.bot;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import com.mac.tarchan.irc.client.IRCMessage.CTCP;
 import com.mac.tarchan.irc.client.IRCMessage.Prefix;
 import com.mac.tarchan.irc.client.util.DccSendFile;
@@ -27,6 +29,9 @@ public class EchoBot extends BotAdapter
 	/** チャンネル */
 	private String[] channels;
 
+	/** DCC ACCEPTを待っているファイル */
+	private final Map<String, DccSendFile> resumes = new ConcurrentHashMap<String, DccSendFile>();
+
 	/**
 	 * IRCネットワークにログインします。
 	 * 
@@ -200,13 +205,45 @@ public class EchoBot extends BotAdapter
 //			int port = Integer.parseInt(params[2]);
 //			long size = Long.parseLong(params[3]);
 //			log.info(String.format("%s %,d bytes %s %s", file, size, inet, port));
-			DccSendFile dccfile = new DccSendFile(ctcp.toString());
-			File savefile = new File("dcc/" + prefix.getNick(), dccfile.getName());
-			dccfile.save(savefile);
+			DccSendFile dccfile = new DccSendFile(ctcp);
+			File savefile = dccfile.getSaveFile(new File("dcc", prefix.getNick()));
+			long position = dccfile.getResumePosition(savefile);
+			if (position > 0)
+			{
+				resumes.put(prefix.getNick() + " " + dccfile.getPort(), dccfile);
+				irc.ctcp(prefix.getNick(), dccfile.toResume(position));
+			}
+			else
+			{
+				dccfile.save(savefile);
+			}
 		}
 		catch (IOException ex)
 		{
 			log.log(Level.SEVERE, "ファイル受信を中止しました。", ex);
 		}
 	}
+
+	@Override
+	public void onDccAccept(Prefix prefix, String target, CTCP ctcp)
+	{
+		String nick = prefix.getNick();
+		for (Map.Entry<String, DccSendFile> entry : resumes.entrySet())
+		{
+			DccSendFile dccfile = entry.getValue();
+			if (entry.getKey().startsWith(nick + " ") && dccfile.accept(ctcp))
+			{
+				resumes.remove(entry.getKey());
+				try
+				{
+					dccfile.save(dccfile.getSaveFile(new File("dcc", nick)));
+				}
+				catch (IOException ex)
+				{
+					log.log(Level.SEVERE, "ファイル受信を中止しました。", ex);
+				}
+				return;
+			}
+		}
+	}
 }
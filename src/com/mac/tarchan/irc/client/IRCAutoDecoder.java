@@ -0,0 +1,184 @@
+/*
+ * IRCAutoDecoder.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import com.mac.tarchan.irc.client.util.LruCache;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 行ごとに文字コードを判定するデコーダです。
+ * 古いクライアントの JIS と新しいクライアントの UTF-8 が混在するネットワークで使用します。
+ * <ul>
+ * <li>「[ESC] $」または「[ESC] (」を含む行は ISO-2022-JP としてデコードします。</li>
+ * <li>UTF-8 として正しい行は UTF-8 としてデコードします。</li>
+ * <li>それ以外の行は、指定された文字コードでデコードします。</li>
+ * </ul>
+ * 判定した文字コードは送信者のプレフィックスごとにキャッシュするので、同じ送信者の行は判定しません。
+ * ASCII文字だけの行は、どの文字コードでも同じなので判定もキャッシュもしません。
+ * 
+ * @see IRCClient#setAutoDetect(boolean)
+ */
+public class IRCAutoDecoder extends IRCDecoder
+{
+	/** デフォルトのキャッシュの容量 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	/** エスケープコード */
+	private static final byte ESC = 0x1b;
+
+	/** JIS のデコーダ */
+	protected final IRCDecoder jis;
+
+	/** UTF-8 のデコーダ */
+	protected final IRCDecoder utf8;
+
+	/** 送信者ごとのデコーダ */
+	protected final LruCache<String, IRCDecoder> senders;
+
+	/**
+	 * 指定された文字コードを判定できない行に使用するデコーダを構築します。
+	 * 
+	 * @param fallback 判定できない行の文字コード
+	 */
+	public IRCAutoDecoder(Charset fallback)
+	{
+		this(fallback, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * 指定された文字コードを判定できない行に使用するデコーダを構築します。
+	 * 
+	 * @param fallback 判定できない行の文字コード
+	 * @param cacheSize 送信者ごとのキャッシュの容量
+	 */
+	public IRCAutoDecoder(Charset fallback, int cacheSize)
+	{
+		super(fallback);
+		Charset iso2022jp = Charset.forName("ISO-2022-JP");
+		jis = fallback.equals(iso2022jp) ? this : new IRCDecoder(iso2022jp);
+		utf8 = fallback.equals(StandardCharsets.UTF_8) ? this : new IRCDecoder(StandardCharsets.UTF_8);
+		senders = new LruCache<String, IRCDecoder>(cacheSize);
+	}
+
+	/**
+	 * 行ごとに文字コードが変わるので、ASCII文字の範囲は常にデコーダを通さずに文字列にします。
+	 * 
+	 * @return true
+	 */
+	@Override
+	public boolean isAsciiFastPath()
+	{
+		return true;
+	}
+
+	/**
+	 * 指定されたメッセージの文字コードのデコーダを返します。
+	 * 送信者のプレフィックスがキャッシュにある場合は、判定せずにキャッシュのデコーダを返します。
+	 * 
+	 * @param message バイト列から構築したIRCメッセージ
+	 * @return デコーダ
+	 */
+	@Override
+	protected IRCDecoder select(IRCMessage message)
+	{
+		int start = indexOfNonAscii(message.data, message.begin, message.end);
+		if (start == message.end) return this;
+
+		String key = message.prefixStart >= 0 ? message.getPrefix().getPrefix() : null;
+		IRCDecoder decoder = key != null ? senders.get(key) : null;
+		if (decoder == null)
+		{
+			decoder = detect(message.data, start, message.end);
+			if (key != null) senders.put(key, decoder);
+		}
+		return decoder;
+	}
+
+	/**
+	 * 指定された範囲の文字コードを判定して、そのデコーダを返します。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return デコーダ
+	 */
+	public IRCDecoder detect(byte[] data, int from, int to)
+	{
+		for (int i = from; i + 1 < to; i++)
+		{
+			if (data[i] == ESC && (data[i + 1] == '$' || data[i + 1] == '(')) return jis;
+		}
+		return isUtf8(data, from, to) ? utf8 : this;
+	}
+
+	/**
+	 * 指定された範囲が UTF-8 として正しいかどうか判定します。
+	 * 冗長な表現、サロゲート (U+D800 から U+DFFF)、U+10FFFF を超える表現は正しくないと判定します。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return UTF-8 として正しい場合は true
+	 */
+	public static boolean isUtf8(byte[] data, int from, int to)
+	{
+		int i = from;
+		while (i < to)
+		{
+			int b = data[i++] & 0xff;
+			if (b < 0x80) continue;
+
+			int n;
+			if (b >= 0xc2 && b <= 0xdf)
+			{
+				n = 1;
+			}
+			else if (b >= 0xe0 && b <= 0xef)
+			{
+				n = 2;
+			}
+			else if (b >= 0xf0 && b <= 0xf4)
+			{
+				n = 3;
+			}
+			else
+			{
+				return false;
+			}
+			if (i + n > to) return false;
+
+			// 2バイト目の範囲で、冗長な表現、サロゲート、U+10FFFF を超える表現を除く
+			int c = data[i] & 0xff;
+			int low = b == 0xe0 ? 0xa0 : b == 0xf0 ? 0x90 : 0x80;
+			int high = b == 0xed ? 0x9f : b == 0xf4 ? 0x8f : 0xbf;
+			if (c < low || c > high) return false;
+			for (; n > 0; n--)
+			{
+				if ((data[i++] & 0xc0) != 0x80) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 送信者ごとのデコーダのキャッシュを返します。
+	 * 
+	 * @return キャッシュ
+	 */
+	public LruCache<String, IRCDecoder> getSenderCache()
+	{
+		return senders;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[fallback=" + charset + ", senders=" + senders.size() + "]";
+	}
+}
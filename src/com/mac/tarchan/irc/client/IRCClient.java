@@ -7,25 +7,47 @@
  */
 package com.mac.tarchan.irc.client;
 
+import com.mac.tarchan.irc.client.util.DccSendServer;
 import com.mac.tarchan.irc.client.util.KanaInputFilter;
+import com.mac.tarchan.irc.client.util.VirtualThreads;
 import java.awt.EventQueue;
 import java.beans.EventHandler;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * IRCクライアントを実装します。
@@ -40,6 +62,18 @@ public class IRCClient implements Iterable<String> {
     public static final int UserModeNode = 0;
     public static final int UserModeInvisible = 4;
     public static final int UserModeWallops = 8;
+    /**
+     * デフォルトの再接続の待ち時間の初期値 (ミリ秒)
+     */
+    public static final long DEFAULT_RECONNECT_DELAY = 1000;
+    /**
+     * デフォルトの再接続の待ち時間の上限 (ミリ秒)
+     */
+    public static final long DEFAULT_MAX_RECONNECT_DELAY = 5 * 60 * 1000;
+    /**
+     * 接続時に要求する IRCv3 の機能
+     */
+    public static final String[] CAPABILITIES = {"batch", "labeled-response"};
     /**
      * ログ
      */
@@ -55,11 +89,19 @@ public class IRCClient implements Iterable<String> {
     /**
      * ニックネーム
      */
-    protected String nick;
+    protected volatile String nick;
     /**
      * パスワード
      */
     protected String pass;
+    /**
+     * ログインしたユーザ名
+     */
+    protected String user;
+    /**
+     * ログインした本名
+     */
+    protected String real;
     /**
      * 接続モード (if the bit 2 is set, the user mode 'w' will be set and if the bit 3 is set, the user mode 'i' will be
      * set.)
@@ -69,26 +111,158 @@ public class IRCClient implements Iterable<String> {
      * 文字コード
      */
     protected String encoding;
+    /**
+     * 文字コード
+     */
+    protected Charset charset;
+    /**
+     * 受信したメッセージのデコーダ
+     */
+    protected IRCDecoder decoder;
+    /**
+     * 長いテキストの分割器
+     */
+    protected IRCMessageSplitter splitter;
+    /**
+     * サーバが中継するときに付ける自分のユーザ名とホスト名 (user@host)
+     */
+    protected volatile String userHost;
+    /**
+     * 受信したメッセージの文字コードを行ごとに判定するかどうか
+     */
+    protected boolean autoDetect;
+    /**
+     * DCC SENDのサーバ
+     */
+    protected DccSendServer dccServer;
     /**
      * 入出力ソケット
      */
     protected Socket socket;
+    /**
+     * イベントループグループ
+     */
+    protected IRCEventLoopGroup eventLoopGroup;
+    /**
+     * イベントループに登録した接続
+     */
+    protected IRCEventLoopGroup.Connection connection;
     /**
      * 入力ストリーム
      */
     protected BufferedReader in;
     /**
-     * 出力ストリーム
+     * 出力キュー
      */
-    protected PrintStream out;
+    protected final IRCOutputQueue outputQueue = new IRCOutputQueue(this);
     /**
      * タスクキュー
      */
-    protected ExecutorService taskQueue = Executors.newFixedThreadPool(2);
+    protected ExecutorService taskQueue;
+    /**
+     * タスクキューのスレッドファクトリ
+     */
+    protected ThreadFactory threadFactory;
+    /**
+     * 仮想スレッドを使用するかどうか
+     */
+    protected boolean virtualThreads;
+    /**
+     * タスクキューを外部から設定したかどうか
+     */
+    protected boolean sharedTaskQueue;
     /**
      * メッセージハンドラ
      */
     protected ArrayList<IRCHandler> handlers = new ArrayList<IRCHandler>();
+    /**
+     * メッセージを再利用するかどうか
+     */
+    protected boolean reuseMessages;
+    /**
+     * 再利用するメッセージ
+     */
+    protected IRCMessage reusableMessage;
+    /**
+     * 再利用するイベント
+     */
+    protected IRCEvent reusableEvent;
+    /**
+     * リングバッファのスロットの数、使用しない場合は 0
+     */
+    protected int ringBufferSize;
+    /**
+     * リングバッファの待ち方
+     */
+    protected IRCRingBuffer.WaitStrategy ringWaitStrategy;
+    /**
+     * 受信スレッドとディスパッチのスレッドの間のリングバッファ
+     */
+    protected IRCRingBuffer ringBuffer;
+    /**
+     * 接続をクローズしたときに呼び出すハンドラ
+     */
+    protected final CopyOnWriteArrayList<Runnable> closeHandlers = new CopyOnWriteArrayList<Runnable>();
+    /**
+     * 接続をクローズしたかどうか
+     */
+    protected final AtomicBoolean closed = new AtomicBoolean();
+    /**
+     * 再接続したときに元に戻すセッションの状態
+     */
+    protected final IRCSession session = new IRCSession(this);
+    /**
+     * 応答を待っている問い合わせ
+     */
+    protected final IRCQueries queries = new IRCQueries(this);
+    /**
+     * 接続時に IRCv3 の機能を要求するかどうか
+     */
+    protected volatile boolean capNegotiation;
+    /**
+     * 機能の要求を終えていないかどうか
+     */
+    protected volatile boolean capNegotiating;
+    /**
+     * サーバが対応している機能
+     */
+    protected final Set<String> offeredCapabilities = ConcurrentHashMap.newKeySet();
+    /**
+     * 有効になった機能
+     */
+    protected final Set<String> capabilities = ConcurrentHashMap.newKeySet();
+    /**
+     * サーバが RPL_ISUPPORT で通知した LIST の拡張 (ELIST)
+     */
+    protected volatile String elist = "";
+    /**
+     * 自動的に再接続するかどうか
+     */
+    protected volatile boolean autoReconnect;
+    /**
+     * 再接続の待ち時間の初期値 (ミリ秒)
+     */
+    protected volatile long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+    /**
+     * 再接続の待ち時間の上限 (ミリ秒)
+     */
+    protected volatile long maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    /**
+     * ログインが完了せずに続けて再接続した回数
+     */
+    protected volatile int reconnectAttempts;
+    /**
+     * 終了を指示されたかどうか
+     */
+    protected volatile boolean quitting;
+    /**
+     * 再接続のスケジューラ
+     */
+    private static ScheduledExecutorService reconnectScheduler;
+    /**
+     * 再接続のスケジューラのロック
+     */
+    private static final ReentrantLock reconnectLock = new ReentrantLock();
 
     private IRCClient() {
     }
@@ -208,6 +382,246 @@ public class IRCClient implements Iterable<String> {
         return encoding;
     }
 
+    /**
+     * 文字コードを返します。
+     *
+     * @return 文字コード
+     */
+    public Charset getCharset() {
+        if (charset == null) {
+            charset = Charset.forName(encoding);
+        }
+        return charset;
+    }
+
+    /**
+     * 受信したメッセージをデコードするデコーダを返します。
+     * デコーダは接続の文字コードごとに1つ作成して、すべての行で使い回します。
+     *
+     * @return デコーダ
+     */
+    public IRCDecoder getDecoder() {
+        Charset cs = getCharset();
+        if (decoder == null || !decoder.getCharset().equals(cs) || decoder instanceof IRCAutoDecoder != autoDetect) {
+            decoder = autoDetect ? new IRCAutoDecoder(cs) : new IRCDecoder(cs);
+        }
+        return decoder;
+    }
+
+    /**
+     * 長いテキストを送信するときに分割する分割器を返します。
+     * 分割器は接続の文字コードごとに1つ作成して、すべてのメッセージで使い回します。
+     *
+     * @return 分割器
+     */
+    public IRCMessageSplitter getSplitter() {
+        Charset cs = getCharset();
+        IRCMessageSplitter current = splitter;
+        if (current == null || !current.getCharset().equals(cs)) {
+            current = new IRCMessageSplitter(cs);
+            splitter = current;
+        }
+        return current;
+    }
+
+    /**
+     * サーバが中継するときに付ける自分のユーザ名とホスト名を返します。
+     * 自分の JOIN のプレフィックス、RPL_WELCOME、RPL_HOSTHIDDEN から記録します。
+     *
+     * @return 「user@host」、まだ分からない場合は null
+     */
+    public String getUserHost() {
+        return userHost;
+    }
+
+    /**
+     * 受信したメッセージの文字コードを行ごとに判定するかどうか設定します。
+     * JIS と UTF-8 の送信者が混在するネットワークで使用します。
+     * エスケープシーケンスを含む行は JIS、UTF-8 として正しい行は UTF-8、
+     * それ以外の行はこのクライアントの文字コードでデコードし、判定した文字コードは送信者ごとにキャッシュします。
+     * 判定する場合は、JIS の半角カナは修正しません。
+     *
+     * @param autoDetect 判定する場合は true
+     * @return IRCクライアント
+     * @see IRCAutoDecoder
+     */
+    public IRCClient setAutoDetect(boolean autoDetect) {
+        this.autoDetect = autoDetect;
+        return this;
+    }
+
+    /**
+     * 受信したメッセージの文字コードを行ごとに判定するかどうか判定します。
+     *
+     * @return 判定する場合は true
+     */
+    public boolean isAutoDetect() {
+        return autoDetect;
+    }
+
+    /**
+     * 受信したバイト列の半角カナを修正するかどうか判定します。
+     * 文字コードが JIS の場合だけ修正します。
+     * 行ごとに文字コードを判定する場合は、UTF-8 の行を壊さないように修正しません。
+     *
+     * @return 修正する場合は true
+     * @see KanaInputFilter#isSupported(Charset)
+     */
+    protected boolean isKanaFiltered() {
+        return !autoDetect && KanaInputFilter.isSupported(getCharset());
+    }
+
+    /**
+     * 入力タスクを実行するスレッドのファクトリを設定します。
+     * 次にタスクキューを作成するときから使用します。
+     *
+     * @param threadFactory スレッドファクトリ、デフォルトのファクトリを使う場合は null
+     * @return IRCクライアント
+     */
+    public IRCClient setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        this.virtualThreads = false;
+        return this;
+    }
+
+    /**
+     * 入力タスクを仮想スレッドで実行するかどうかを設定します。
+     * 仮想スレッドでは、ブロッキングの読み込みを続けても接続ごとにプラットフォームスレッドを占有しません。
+     * 仮想スレッドを使用できない Java で実行している場合は、デーモンのプラットフォームスレッドを使用します。
+     *
+     * @param virtualThreads 仮想スレッドを使用する場合は true
+     * @return IRCクライアント
+     * @see VirtualThreads
+     */
+    public IRCClient setVirtualThreads(boolean virtualThreads) {
+        this.threadFactory = virtualThreads ? VirtualThreads.factory("IRCClient-") : null;
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * 入力タスクを仮想スレッドで実行するかどうか判定します。
+     *
+     * @return 仮想スレッドを使用する場合は true
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 入力タスクを実行するエグゼキュータを設定します。
+     * 設定したエグゼキュータは複数のクライアントで共有できるので、接続をクローズしてもシャットダウンしません。
+     * 入力タスクは接続している間スレッドを占有するので、出力キューのライタを実行できるだけのスレッドが必要です。
+     *
+     * @param executor エグゼキュータ、クライアントごとに作成する場合は null
+     * @return IRCクライアント
+     */
+    public IRCClient setExecutor(ExecutorService executor) {
+        this.taskQueue = executor;
+        this.sharedTaskQueue = executor != null;
+        return this;
+    }
+
+    /**
+     * 入力タスクを実行するタスクキューを返します。
+     * 外部から設定されていない場合は、スレッドファクトリを使って作成します。
+     * クローズした後で再接続した場合は、新しいタスクキューを作成します。
+     *
+     * @return タスクキュー
+     */
+    protected ExecutorService getTaskQueue() {
+        if (!sharedTaskQueue && (taskQueue == null || taskQueue.isShutdown())) {
+            if (virtualThreads) {
+                taskQueue = VirtualThreads.newThreadPerTaskExecutor(threadFactory);
+            } else if (threadFactory != null) {
+                taskQueue = Executors.newFixedThreadPool(ringBufferSize > 0 ? 3 : 2, threadFactory);
+            } else {
+                taskQueue = Executors.newFixedThreadPool(ringBufferSize > 0 ? 3 : 2);
+            }
+        }
+        return taskQueue;
+    }
+
+    /**
+     * 入出力に使用するイベントループグループを設定します。
+     * 設定した場合は、接続ごとに入力スレッドを起動せずに、ノンブロッキングのソケットチャンネルをグループのイベントループで処理します。
+     * 接続する前に設定する必要があります。
+     *
+     * @param eventLoopGroup イベントループグループ、接続ごとにスレッドを使う場合は null
+     * @return IRCクライアント
+     */
+    public IRCClient setEventLoopGroup(IRCEventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+        return this;
+    }
+
+    /**
+     * 入出力に使用するイベントループグループを返します。
+     *
+     * @return イベントループグループ、設定されていない場合は null
+     */
+    public IRCEventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * 受信ループで一つのメッセージとイベントを再利用するかどうかを設定します。
+     * 再利用する場合は、受信したバイト列をコピーせずに解析するので、一行あたりのオブジェクト生成がほぼなくなります。
+     * ハンドラは受け取ったメッセージを処理中にだけ使用でき、
+     * 後で使う場合は {@link IRCEvent#retain()} または {@link IRCMessage#retain()} でコピーを取得する必要があります。
+     *
+     * @param reuseMessages 再利用する場合は true
+     * @return IRCクライアント
+     */
+    public IRCClient setReuseMessages(boolean reuseMessages) {
+        this.reuseMessages = reuseMessages;
+        return this;
+    }
+
+    /**
+     * 受信ループでメッセージを再利用するかどうか判定します。
+     *
+     * @return 再利用する場合は true
+     */
+    public boolean isReuseMessages() {
+        return reuseMessages;
+    }
+
+    /**
+     * 受信スレッドとハンドラを呼び出すスレッドの間にリングバッファを使用するかどうかを設定します。
+     * 使用する場合は、受信した行をリングバッファにコピーして、タスクキューのディスパッチのスレッドからハンドラを呼び出します。
+     * ハンドラの処理が遅くても、バッファが一杯になるまでは受信を止めません。
+     * イベントループを使用している場合は、タスクキューではなく {@link IRCEventLoopGroup#getDispatchExecutor()} から呼び出すので、
+     * Java 21 以降では接続ごとにプラットフォームスレッドを使いません。その場合の待ち方は {@link IRCRingBuffer.WaitStrategy#blocking()} にします。
+     * 接続する前に設定する必要があります。
+     *
+     * @param size スロットの数、使用しない場合は 0
+     * @param waitStrategy バッファが空または一杯のときの待ち方
+     * @return IRCクライアント
+     * @see IRCRingBuffer
+     */
+    public IRCClient setRingBuffer(int size, IRCRingBuffer.WaitStrategy waitStrategy) {
+        if (size < 0) {
+            throw new IllegalArgumentException("スロットの数が不正です。: " + size);
+        }
+        if (size > 0 && waitStrategy == null) {
+            throw new IllegalArgumentException("待ち方を指定してください。");
+        }
+        this.ringBufferSize = size;
+        this.ringWaitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * 受信スレッドとディスパッチのスレッドの間のリングバッファを返します。
+     * ディスパッチの遅れは {@link IRCRingBuffer#getLag()} と {@link IRCRingBuffer#getLagTime()} で参照できます。
+     *
+     * @return リングバッファ、使用していない場合は null
+     */
+    public IRCRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
     public void addEventHandler(Object target) {
 //        final Object target = handler;
         Class clazz = target.getClass();
@@ -234,170 +648,836 @@ public class IRCClient implements Iterable<String> {
     }
 
     /**
-     * すべてのコマンドを受け入れるメッセージハンドラを追加します。
+     * すべてのコマンドを受け入れるメッセージハンドラを追加します。
+     *
+     * @param handler メッセージハンドラ
+     * @return IRCクライアント
+     */
+    public IRCClient on(IRCHandler handler) {
+        handlers.add(handler);
+        return this;
+    }
+
+    /**
+     * 指定されたフィルタに含まれるメッセージハンドラを追加します。
+     *
+     * @param filter フィルタ
+     * @param handler メッセージハンドラ
+     * @return IRCクライアント
+     */
+    public IRCClient on(final IRCMessageFilter filter, final IRCHandler handler) {
+        return on(new IRCHandler() {
+            @Override
+            public void onMessage(IRCEvent event) {
+                if (filter.accept(event.getMessage())) {
+                    handler.onMessage(event);
+                }
+            }
+        });
+    }
+
+    /**
+     * 指定されたコマンドのメッセージハンドラを追加します。
+     * コマンドは登録時に {@link IRCCommand} またはニュメリックリプライの番号に変換するので、
+     * メッセージごとの判定は同一性または整数の比較になります。
+     *
+     * @param command コマンド
+     * @param handler メッセージハンドラ
+     * @return IRCクライアント
+     */
+    public IRCClient on(String command, IRCHandler handler) {
+        final IRCCommand code = IRCCommand.lookup(command);
+        final IRCMessageFilter filter;
+        if (code == IRCCommand.NUMERIC) {
+            final int number = Integer.parseInt(command);
+            filter = new IRCMessageFilter() {
+                @Override
+                public boolean accept(IRCMessage message) {
+                    return message.getCommandCode() == IRCCommand.NUMERIC && message.getNumber() == number;
+                }
+            };
+        } else if (code != IRCCommand.UNKNOWN) {
+            filter = new IRCMessageFilter() {
+                @Override
+                public boolean accept(IRCMessage message) {
+                    return message.getCommandCode() == code;
+                }
+            };
+        } else {
+            final String _command = command.toUpperCase();
+            filter = new IRCMessageFilter() {
+                @Override
+                public boolean accept(IRCMessage message) {
+                    return message.getCommandCode() == IRCCommand.UNKNOWN && message.getCommand().equals(_command);
+                }
+            };
+        }
+        return on(filter, handler);
+    }
+
+    /**
+     * IRCサーバに接続します。
+     *
+     * @return IRCクライアント
+     * @throws IOException IRCサーバに接続できない場合
+     * @deprecated 使用しません。
+     */
+    public IRCClient start() throws IOException {
+        return connect(host, port).login(nick, nick, nick, mode, pass).start(encoding);
+    }
+
+    /**
+     * 入力ストリームをオープンして、イベントループを開始します。
+     *
+     * @param encoding 文字コード
+     * @return IRCクライアント
+     * @throws IOException 入力ストリームをオープンできない場合
+     * @see #fireMessage(String)
+     * @deprecated 使用しません。
+     */
+    protected IRCClient start(String encoding) throws IOException {
+        log.info("イベントループを開始します。");
+        this.encoding = encoding;
+        this.charset = null;
+        startInput();
+        return this;
+    }
+
+    /**
+     * 接続した文字コードで、受信を開始します。
+     * イベントループを使用している場合は、接続をイベントループに登録します。
+     *
+     * @throws IOException 入力ストリームをオープンできない場合
+     */
+    void startInput() throws IOException {
+        if (eventLoopGroup != null) {
+            if (connection == null) {
+                connection = eventLoopGroup.register(this, socket.getChannel());
+            }
+        } else {
+            getTaskQueue().execute(new InputTask(this, encoding));
+        }
+    }
+
+    /**
+     * IRCサーバに接続します。
+     *
+     * @param host ホスト名
+     * @param port ポート番号
+     * @return IRCクライアント
+     * @throws IOException IRCサーバに接続できない場合
+     */
+    protected IRCClient connect(String host, int port) throws IOException {
+        InetAddress inet = InetAddress.getByName(host);
+        log.log(Level.INFO, "接続します。: {0}", inet);
+        if (connection != null) {
+            connection.closeLocally();
+        }
+        connection = null;
+        closed.set(false);
+        quitting = false;
+        userHost = null;
+        capabilities.clear();
+        offeredCapabilities.clear();
+        elist = "";
+        outputQueue.reset();
+        if (ringBuffer != null) {
+            ringBuffer.close();
+        }
+        ringBuffer = null;
+        if (ringBufferSize > 0) {
+            ringBuffer = new IRCRingBuffer(this, ringBufferSize, ringWaitStrategy);
+            if (eventLoopGroup != null) {
+                eventLoopGroup.getDispatchExecutor().execute(ringBuffer);
+            } else {
+                getTaskQueue().execute(ringBuffer);
+            }
+        }
+        if (eventLoopGroup != null) {
+            socket = SocketChannel.open(new InetSocketAddress(inet, port)).socket();
+            connection = eventLoopGroup.register(this, socket.getChannel());
+        } else {
+            socket = new Socket(host, port);
+        }
+        log.log(Level.INFO, "接続しました。: {0}", socket);
+//		new Thread(new InputListener(this)).start();
+//		messageQueue.execute(new InputTask(this, encoding));
+        return this;
+    }
+
+    public IRCClient connect(String host, int port, String encoding) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.encoding = encoding;
+        this.charset = null;
+        connect(host, port);
+//        login(nick, null, null, mode, pass);
+//        start(encoding);
+        return this;
+    }
+
+    /**
+     * IRCサーバの接続をクローズします。
+     * 自動的に再接続する設定でも、このメソッドでクローズした場合は再接続しません。
+     *
+     * @return IRCクライアント
+     * @throws IOException IRCサーバの接続をクローズできない場合
+     */
+    public IRCClient close() throws IOException {
+        quitting = true;
+        return closeSocket();
+    }
+
+    /**
+     * 入力タスクまたはイベントループが、サーバからの切断を検出したときに呼び出します。
+     * 接続をクローズして、自動的に再接続する設定で終了を指示されていない場合は再接続を予約します。
+     */
+    protected void disconnected() {
+        try {
+            closeSocket();
+        } catch (IOException ex) {
+            fireError(new IOException("入力ストリームをクローズできません。", ex));
+        }
+        if (autoReconnect && !quitting) {
+            session.disconnected();
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * サーバから切断したときに、自動的に再接続するかどうかを設定します。
+     * 再接続するまでの待ち時間は、続けて失敗するたびに2倍にした上限までの乱数にするので、
+     * 多数のクライアントが同時に切断しても、回復したサーバに一斉に接続しません。
+     * 再接続した後は、参加していたチャンネルとキーワード、不在メッセージ、ニックネームを元に戻します。
+     *
+     * @param autoReconnect 再接続する場合は true
+     * @return IRCクライアント
+     * @see IRCSession
+     * @see #setReconnectDelay(long, long)
+     */
+    public IRCClient setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+        if (autoReconnect && !handlers.contains(session)) {
+            handlers.add(0, session);
+        }
+        return this;
+    }
+
+    /**
+     * 自動的に再接続するかどうか判定します。
+     *
+     * @return 再接続する場合は true
+     */
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * 再接続するまでの待ち時間を設定します。
+     * デフォルトは {@link #DEFAULT_RECONNECT_DELAY} ミリ秒から {@link #DEFAULT_MAX_RECONNECT_DELAY} ミリ秒までです。
+     *
+     * @param delay 最初の再接続の待ち時間の上限 (ミリ秒)
+     * @param maxDelay 待ち時間の上限の最大値 (ミリ秒)
+     * @return IRCクライアント
+     */
+    public IRCClient setReconnectDelay(long delay, long maxDelay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("待ち時間が不正です。: " + delay);
+        }
+        if (maxDelay < delay) {
+            throw new IllegalArgumentException("待ち時間の上限が不正です。: " + maxDelay);
+        }
+        this.reconnectDelay = delay;
+        this.maxReconnectDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * 再接続したときに元に戻すセッションの状態を返します。
+     * 再参加にかかった時間は {@link IRCSession#getLastRejoinTime()} で参照できます。
+     *
+     * @return セッション
+     */
+    public IRCSession getSession() {
+        return session;
+    }
+
+    /**
+     * 次の再接続までの待ち時間を返します。
+     * 0 から、初期値を失敗した回数だけ2倍にした上限までの一様な乱数です。
+     *
+     * @return 待ち時間 (ミリ秒)
+     */
+    protected long nextReconnectDelay() {
+        long ceiling = maxReconnectDelay;
+        int attempts = reconnectAttempts;
+        if (attempts < 62 && reconnectDelay <= ceiling >> attempts) {
+            ceiling = reconnectDelay << attempts;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * 再接続を予約します。
+     */
+    protected void scheduleReconnect() {
+        long delay = nextReconnectDelay();
+        reconnectAttempts++;
+        log.log(Level.INFO, "{0}ms 後に再接続します。: {1}", new Object[]{delay, reconnectAttempts});
+        getReconnectScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * IRCサーバに再接続します。接続できない場合は、次の再接続を予約します。
+     * 前回の接続と同じホスト、ポート、文字コードで接続して、{@link #login(String, String, String, int, String)} に渡したユーザ名、本名、接続モード、パスワードでログインし直します。
+     * ニックネームは、変更していた場合も元に戻すために現在のニックネームを使います。
+     */
+    protected void reconnect() {
+        if (quitting) {
+            return;
+        }
+        try {
+            connect(host, port);
+            login(nick, user, real, mode, pass);
+            startInput();
+        } catch (IOException ex) {
+            fireError(new IOException("IRCサーバに再接続できません。", ex));
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * 再接続のスケジューラを返します。すべてのクライアントで共有します。
+     *
+     * @return スケジューラ
+     */
+    static ScheduledExecutorService getReconnectScheduler() {
+        reconnectLock.lock();
+        try {
+            if (reconnectScheduler == null) {
+                reconnectScheduler = Executors.newSingleThreadScheduledExecutor(VirtualThreads.daemonFactory("IRCReconnect-"));
+            }
+            return reconnectScheduler;
+        } finally {
+            reconnectLock.unlock();
+        }
+    }
+
+    /**
+     * 接続をクローズします。
+     *
+     * @return IRCクライアント
+     * @throws IOException 接続をクローズできない場合
+     */
+    protected IRCClient closeSocket() throws IOException {
+        outputQueue.close();
+        if (ringBuffer != null) {
+            ringBuffer.close();
+        }
+        if (connection != null) {
+            connection.closeLocally();
+        }
+        socket.close();
+        if (taskQueue != null && !sharedTaskQueue) {
+            taskQueue.shutdown();
+        }
+        log.log(Level.INFO, "disconnected. {0}, {1}", new Object[]{socket.isConnected(), socket.isClosed()});
+        if (closed.compareAndSet(false, true)) {
+            queries.cancel(new IOException("接続をクローズしたので、問い合わせの応答がありません。"));
+            fireClose();
+        }
+        return this;
+    }
+
+    /**
+     * 接続をクローズしたときに呼び出すハンドラを追加します。
+     * ハンドラは接続ごとに一度だけ、クローズしたスレッドから呼び出します。
+     * サーバから切断された場合も、入力タスクまたはイベントループが接続をクローズするので呼び出します。
+     *
+     * @param handler ハンドラ
+     * @return IRCクライアント
+     */
+    public IRCClient onClose(Runnable handler) {
+        closeHandlers.add(handler);
+        return this;
+    }
+
+    /**
+     * 接続をクローズしたときのハンドラを呼び出します。
+     */
+    protected void fireClose() {
+        for (Runnable handler : closeHandlers) {
+            try {
+                handler.run();
+            } catch (RuntimeException ex) {
+                fireError(new RuntimeException("クローズのハンドラを中止しました。", ex));
+            }
+        }
+    }
+
+    /**
+     * 接続がクローズしているかどうか判定します。
+     *
+     * @return 接続がクローズしている場合は true
+     */
+    public boolean isClosed() {
+        return socket != null && socket.isClosed();
+    }
+
+    /**
+     * 入力ストリームを返します。
+     *
+     * @return 入力ストリーム
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    protected void prepareInput() throws IOException {
+        if (in == null) {
+            InputStream input = isKanaFiltered() ? new KanaInputFilter(getInputStream()) : getInputStream();
+            in = new BufferedReader(new InputStreamReader(input, encoding));
+        }
+    }
+
+    /**
+     * 出力ストリームを返します。
+     *
+     * @return 出力ストリーム
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    public OutputStream getOutputStream() throws IOException {
+        if (connection != null) {
+            return connection.getOutputStream();
+        }
+        return socket.getOutputStream();
+    }
+
+    /**
+     * 出力キューのライタを実行するエグゼキュータを返します。
+     * イベントループグループを使用している場合は、接続のイベントループで実行します。
+     *
+     * @return エグゼキュータ
+     */
+    protected Executor getWriterExecutor() {
+        if (connection != null) {
+            return connection.getExecutor();
+        }
+        return getTaskQueue();
+    }
+
+    /**
+     * 送信の速度を制限して、サーバの「Excess Flood」による切断を防ぎます。
+     * 1行送信するたびに指定された間隔 (120 バイトごとにさらに同じだけ) の待ち時間が加算され、
+     * 指定された行数までは待たずに送信できます。
+     * PONG、NICK などは制限せずに優先して送信し、JOIN、PART、MODE、PRIVMSG などは宛先ごとに追加した順番に送信し、
+     * QUIT はほかのメッセージを送信してから送信します。
+     * デフォルトでは制限せずに、送信を待っているメッセージをすぐに送信します。
+     * 多くのサーバでは {@link IRCSendScheduler#DEFAULT_BURST} 行、{@link IRCSendScheduler#RECOMMENDED_INTERVAL} ミリ秒を指定します。
+     *
+     * @param burst 連続送信できる行数
+     * @param interval 1行あたりの間隔 (ミリ秒)、0 の場合は制限しない
+     * @return IRCクライアント
+     * @see IRCSendScheduler
+     */
+    public IRCClient setFloodControl(int burst, long interval) {
+        outputQueue.getScheduler().setRate(burst, interval);
+        return this;
+    }
+
+    /**
+     * 続けて呼び出した {@link #join(String)} と {@link #part(String)} を、
+     * 「JOIN #a,#b,#c keyA,keyB」のように1行にまとめて送信するかどうかを設定します。
+     * 1行は接続の文字コードで 512 バイトまで、チャンネルの数はサーバが通知した TARGMAX と CHANLIMIT までにまとめます。
+     * デフォルトは {@link IRCSendScheduler#DEFAULT_COALESCE_WINDOW} ミリ秒待ってまとめます。
+     *
+     * @param coalescing まとめる場合は true
+     * @param window 最初の JOIN または PART を待つ時間 (ミリ秒)
+     * @return IRCクライアント
+     * @see IRCSendScheduler#setCoalescing(boolean, long)
+     */
+    public IRCClient setJoinCoalescing(boolean coalescing, long window) {
+        outputQueue.getScheduler().setCoalescing(coalescing, window);
+        return this;
+    }
+
+    /**
+     * サーバが RPL_ISUPPORT で通知した、1行にまとめるチャンネルの数の上限を送信スケジューラに設定します。
+     * TARGMAX の JOIN と PART、CHANLIMIT (古いサーバは MAXCHANNELS) の最小値を使用します。
+     *
+     * @param message RPL_ISUPPORT のメッセージ
+     */
+    protected void isupport(IRCMessage message) {
+        IRCSendScheduler scheduler = outputQueue.getScheduler();
+        int join = scheduler.joinTargets;
+        int part = scheduler.partTargets;
+        int chanLimit = scheduler.chanLimit;
+        for (int i = 1; i < message.getParamsCount(); i++) {
+            String token = message.getParam(i);
+            int eq = token.indexOf('=');
+            String name = eq >= 0 ? token.substring(0, eq) : token;
+            String value = eq >= 0 ? token.substring(eq + 1) : "";
+            if (name.equals("TARGMAX")) {
+                for (String entry : value.split(",")) {
+                    int colon = entry.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String command = entry.substring(0, colon);
+                    if (command.equalsIgnoreCase("JOIN")) {
+                        join = parseLimit(entry.substring(colon + 1));
+                    } else if (command.equalsIgnoreCase("PART")) {
+                        part = parseLimit(entry.substring(colon + 1));
+                    }
+                }
+            } else if (name.equals("CHANLIMIT")) {
+                chanLimit = 0;
+                for (String entry : value.split(",")) {
+                    int limit = parseLimit(entry.substring(entry.indexOf(':') + 1));
+                    if (limit > 0 && (chanLimit == 0 || limit < chanLimit)) {
+                        chanLimit = limit;
+                    }
+                }
+            } else if (name.equals("MAXCHANNELS")) {
+                chanLimit = parseLimit(value);
+            } else if (name.equals("ELIST")) {
+                elist = value.toUpperCase(Locale.ROOT);
+            }
+        }
+        scheduler.setTargetLimits(join, part, chanLimit);
+    }
+
+    /**
+     * サーバが中継するときに付ける自分のユーザ名とホスト名を、受信したメッセージから記録します。
+     * 自分の JOIN のプレフィックス、RPL_WELCOME の最後の「nick!user@host」、RPL_HOSTHIDDEN のホスト名を使用します。
+     * 自分のニックネームも、RPL_WELCOME の最初のパラメータと自分の NICK から記録します。
+     * {@link #setAutoReconnect(boolean)} を使用しないクライアントでも、長いメッセージを分割する長さは正しいニックネームで計算します。
+     *
+     * @param message IRCメッセージ
+     * @see #getUserHost()
+     */
+    protected void hostmask(IRCMessage message) {
+        switch (message.getCommandCode()) {
+            case JOIN:
+                IRCMessage.Prefix prefix = message.getPrefix();
+                if (prefix.getUser() != null && prefix.getHost() != null && prefix.getNick().equalsIgnoreCase(nick)) {
+                    userHost = prefix.getUser() + "@" + prefix.getHost();
+                }
+                break;
+            case NICK:
+                IRCMessage.Prefix from = message.getPrefix();
+                String renamed = lastParam(message);
+                if (from != null && from.getNick() != null && from.getNick().equalsIgnoreCase(nick) && renamed != null && !renamed.isEmpty()) {
+                    nick = renamed;
+                }
+                break;
+            case NUMERIC:
+                if (message.getCommand().equals(NumericReply.RPL_WELCOME) && message.getParamsCount() > 0 && !message.getParam0().isEmpty()) {
+                    nick = message.getParam0();
+                }
+                if (message.getCommand().equals(NumericReply.RPL_WELCOME) && message.getTrail() != null) {
+                    String trail = message.getTrail();
+                    String mask = trail.substring(trail.lastIndexOf(' ') + 1);
+                    int ex = mask.indexOf('!');
+                    int at = mask.indexOf('@');
+                    if (ex > 0 && at > ex + 1 && at < mask.length() - 1) {
+                        userHost = mask.substring(ex + 1);
+                    }
+                } else if (message.getCommand().equals(NumericReply.RPL_HOSTHIDDEN) && message.getParamsCount() > 1 && userHost != null) {
+                    userHost = userHost.substring(0, userHost.indexOf('@') + 1) + message.getParam1();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 接続時の CAP LS に対する応答で、サーバが対応している {@link #CAPABILITIES} の機能を要求します。
+     * 要求に対する応答を受け取るか、要求する機能がない場合は、CAP END で登録を続けます。
+     * サーバが機能を取り消した場合は、無効にします。
+     *
+     * @param message CAP のメッセージ
+     */
+    protected void cap(IRCMessage message) {
+        if (message.getParamsCount() < 2) {
+            return;
+        }
+        String subcommand = message.getParam1();
+        String trail = message.getTrail() != null ? message.getTrail() : "";
+        if (subcommand.equals("LS")) {
+            for (String token : trail.split(" ")) {
+                int eq = token.indexOf('=');
+                offeredCapabilities.add(eq >= 0 ? token.substring(0, eq) : token);
+            }
+            if (message.getParamsCount() > 2 && message.getParam2().equals("*")) {
+                return;
+            }
+            StringBuilder request = new StringBuilder();
+            for (String cap : CAPABILITIES) {
+                if (offeredCapabilities.contains(cap)) {
+                    request.append(request.length() > 0 ? " " : "").append(cap);
+                }
+            }
+            if (request.length() > 0 && capNegotiating) {
+                postCommand("CAP", "REQ", null, null, request.toString());
+            } else {
+                capEnd();
+            }
+        } else if (subcommand.equals("ACK")) {
+            for (String token : trail.split(" ")) {
+                if (token.startsWith("-")) {
+                    capabilities.remove(token.substring(1));
+                } else if (!token.isEmpty()) {
+                    capabilities.add(token);
+                }
+            }
+            capEnd();
+        } else if (subcommand.equals("NAK")) {
+            capEnd();
+        } else if (subcommand.equals("DEL")) {
+            capabilities.removeAll(Arrays.asList(trail.split(" ")));
+        }
+    }
+
+    /**
+     * 機能の要求を終えて、登録を続けます。
+     */
+    private void capEnd() {
+        if (capNegotiating) {
+            capNegotiating = false;
+            postCommand("CAP", "END", null, null, null);
+        }
+    }
+
+    /**
+     * 接続時に IRCv3 の機能を要求するかどうか設定します。
+     * 要求する場合は、ログインするときに CAP LS を送信して、サーバが対応している {@link #CAPABILITIES} の機能を要求します。
+     * デフォルトは要求しないので、ログインの手順はこれまでと変わりません。
+     * 問い合わせにラベルを付ける場合は、ログインする前に有効にします。
      *
-     * @param handler メッセージハンドラ
+     * @param capNegotiation 要求する場合は true
      * @return IRCクライアント
      */
-    public IRCClient on(IRCHandler handler) {
-        handlers.add(handler);
+    public IRCClient setCapNegotiation(boolean capNegotiation) {
+        this.capNegotiation = capNegotiation;
         return this;
     }
 
     /**
-     * 指定されたフィルタに含まれるメッセージハンドラを追加します。
+     * 有効になった IRCv3 の機能を返します。
      *
-     * @param filter フィルタ
-     * @param handler メッセージハンドラ
-     * @return IRCクライアント
+     * @return 機能の名前
      */
-    public IRCClient on(final IRCMessageFilter filter, final IRCHandler handler) {
-        return on(new IRCHandler() {
-            @Override
-            public void onMessage(IRCEvent event) {
-                if (filter.accept(event.getMessage())) {
-                    handler.onMessage(event);
-                }
-            }
-        });
+    public Set<String> getCapabilities() {
+        return Collections.unmodifiableSet(capabilities);
     }
 
     /**
-     * 指定されたコマンドのメッセージハンドラを追加します。
+     * 問い合わせにラベルを付けて、応答をラベルで割り当てるかどうか判定します。
+     * サーバが labeled-response と batch の両方を有効にした場合だけ、ラベルを付けます。
      *
-     * @param command コマンド
-     * @param handler メッセージハンドラ
-     * @return IRCクライアント
+     * @return ラベルを付ける場合は true
+     * @see IRCQueries
      */
-    public IRCClient on(String command, IRCHandler handler) {
-        final String _command = command.toUpperCase();
-        final IRCMessageFilter filter = new IRCMessageFilter() {
-            @Override
-            public boolean accept(IRCMessage message) {
-                return message.getCommand().equals(_command);
-            }
-        };
-        return on(filter, handler);
+    public boolean isLabeledResponse() {
+        return capabilities.contains("labeled-response") && capabilities.contains("batch");
     }
 
     /**
-     * IRCサーバに接続します。
+     * RPL_ISUPPORT の数値を解析します。
      *
-     * @return IRCクライアント
-     * @throws IOException IRCサーバに接続できない場合
-     * @deprecated 使用しません。
+     * @param value 数値
+     * @return 数値、空または数値でない場合は制限しないことを表す 0
      */
-    public IRCClient start() throws IOException {
-        return connect(host, port).login(nick, nick, nick, mode, pass).start(encoding);
+    private static int parseLimit(String value) {
+        try {
+            return value.isEmpty() ? 0 : Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
     }
 
     /**
-     * 入力ストリームをオープンして、イベントループを開始します。
+     * 出力キューを返します。
      *
-     * @param encoding 文字コード
-     * @return IRCクライアント
-     * @throws IOException 入力ストリームをオープンできない場合
-     * @see #fireMessage(String)
-     * @deprecated 使用しません。
+     * @return 出力キュー
      */
-    protected IRCClient start(String encoding) throws IOException {
-        log.info("イベントループを開始します。");
-        this.encoding = encoding;
-        taskQueue.execute(new InputTask(this, encoding));
-        return this;
+    public IRCOutputQueue getOutputQueue() {
+        return outputQueue;
     }
 
     /**
-     * IRCサーバに接続します。
+     * 指定されたテキストを解析して、ハンドラに送信します。
      *
-     * @param host ホスト名
-     * @param port ポート番号
-     * @return IRCクライアント
-     * @throws IOException IRCサーバに接続できない場合
+     * @param text テキスト
      */
-    protected IRCClient connect(String host, int port) throws IOException {
-        InetAddress inet = InetAddress.getByName(host);
-        log.log(Level.INFO, "接続します。: {0}", inet);
-        socket = new Socket(host, port);
-        log.log(Level.INFO, "接続しました。: {0}", socket);
-//		new Thread(new InputListener(this)).start();
-//		messageQueue.execute(new InputTask(this, encoding));
-        return this;
+    protected void fireMessage(String text) {
+        try {
+            fireMessage(new IRCMessage(text, getUserNick()));
+        } catch (Exception ex) {
+            fireError(new RuntimeException("IRCメッセージが不正です。: " + text, ex));
+        }
     }
 
-    public IRCClient connect(String host, int port, String encoding) throws IOException {
-        this.host = host;
-        this.port = port;
-        this.encoding = encoding;
-        connect(host, port);
-//        login(nick, null, null, mode, pass);
-//        start(encoding);
-        return this;
+    /**
+     * 受信した行をハンドラに送信します。
+     * リングバッファを使用している場合は、行をリングバッファにコピーして、ディスパッチのスレッドから送信します。
+     * PING の場合は、ハンドラの遅れを待たずに、受信スレッドで PONG を優先のレーンに追加してからコピーします。
+     *
+     * @param data バイト列
+     * @param offset 行の開始位置
+     * @param length 行の長さ
+     * @param when 受信した時間
+     * @see #setRingBuffer(int, IRCRingBuffer.WaitStrategy)
+     * @see #isPingAnswered()
+     */
+    protected void receive(byte[] data, int offset, int length, long when) {
+        IRCRingBuffer ring = ringBuffer;
+        if (ring != null) {
+            if (length > 0) {
+                if (isPing(data, offset, length)) {
+                    answerPing(data, offset, length, when);
+                }
+                ring.publish(data, offset, length, when);
+            }
+        } else {
+            fireMessage(data, offset, length, when);
+        }
     }
 
     /**
-     * IRCサーバの接続をクローズします。
+     * 指定された行のコマンドが PING かどうか判定します。
+     * タグとプレフィックスを読み飛ばして、コマンドのバイト列だけを比較します。
      *
-     * @return IRCクライアント
-     * @throws IOException IRCサーバの接続をクローズできない場合
-     */
-    public IRCClient close() throws IOException {
-        socket.close();
-        taskQueue.shutdown();
-        log.log(Level.INFO, "disconnected. {0}, {1}", new Object[]{socket.isConnected(), socket.isClosed()});
-        return this;
+     * @param data バイト列
+     * @param offset 行の開始位置
+     * @param length 行の長さ
+     * @return PING の場合は true
+     */
+    static boolean isPing(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end && (data[pos] == '@' || data[pos] == ':')) {
+            while (pos < end && data[pos] != ' ') {
+                pos++;
+            }
+            while (pos < end && data[pos] == ' ') {
+                pos++;
+            }
+        }
+        if (end - pos < 4 || end - pos > 4 && data[pos + 4] != ' ') {
+            return false;
+        }
+        return (data[pos] | 0x20) == 'p' && (data[pos + 1] | 0x20) == 'i' && (data[pos + 2] | 0x20) == 'n' && (data[pos + 3] | 0x20) == 'g';
     }
 
     /**
-     * 接続がクローズしているかどうか判定します。
+     * 受信スレッドで PING に応答します。
      *
-     * @return 接続がクローズしている場合は true
+     * @param data バイト列
+     * @param offset 行の開始位置
+     * @param length 行の長さ
+     * @param when 受信した時間
      */
-    public boolean isClosed() {
-        return socket != null && socket.isClosed();
+    private void answerPing(byte[] data, int offset, int length, long when) {
+        try {
+            pong(lastParam(new IRCMessage(data, offset, length, getDecoder(), getUserNick(), when)));
+        } catch (Exception ex) {
+            fireError(new RuntimeException("IRCメッセージが不正です。: " + new String(data, offset, length, getCharset()), ex));
+        }
     }
 
     /**
-     * 入力ストリームを返します。
+     * 受信スレッドで PING に応答しているかどうか判定します。
+     * リングバッファを使用している場合は応答しているので、ハンドラで PONG を送信する必要はありません。
      *
-     * @return 入力ストリーム
-     * @throws IOException 入出力エラーが発生した場合
+     * @return 受信スレッドで応答している場合は true
      */
-    public InputStream getInputStream() throws IOException {
-        return socket.getInputStream();
+    public boolean isPingAnswered() {
+        return ringBuffer != null;
     }
 
-    protected void prepareInput() throws IOException {
-        if (in == null) {
-            in = new BufferedReader(new InputStreamReader(new KanaInputFilter(getInputStream()), encoding));
+    /**
+     * 指定されたメッセージの最後のパラメータを返します。
+     * トレーラーがある場合はトレーラーを返します。
+     *
+     * @param message IRCメッセージ
+     * @return 最後のパラメータ、パラメータがない場合は null
+     */
+    static String lastParam(IRCMessage message) {
+        String trail = message.getTrail();
+        if (trail != null) {
+            return trail;
         }
+        int count = message.getParamsCount();
+        return count > 0 ? message.getParam(count - 1) : null;
     }
 
     /**
-     * 出力ストリームを返します。
+     * 指定されたバイト列を解析して、ハンドラに送信します。
+     * 文字列へのデコードは、ハンドラが必要としたときに行います。
      *
-     * @return 出力ストリーム
-     * @throws IOException 入出力エラーが発生した場合
-     */
-    public OutputStream getOutputStream() throws IOException {
-        return socket.getOutputStream();
+     * @param data バイト列
+     * @param offset 行の開始位置
+     * @param length 行の長さ
+     * @param when 受信した時間
+     */
+    protected void fireMessage(byte[] data, int offset, int length, long when) {
+        if (length == 0) {
+            return;
+        }
+        if (reuseMessages) {
+            try {
+                if (reusableMessage == null) {
+                    reusableMessage = new IRCMessage();
+                    reusableEvent = new IRCEvent(this, reusableMessage);
+                }
+                reusableMessage.reset(data, offset, length, getDecoder(), getUserNick(), when);
+                fireMessage(reusableEvent);
+            } catch (Exception ex) {
+                fireError(new RuntimeException("IRCメッセージが不正です。: " + new String(data, offset, length, getCharset()), ex));
+            }
+            return;
+        }
+        byte[] line = Arrays.copyOfRange(data, offset, offset + length);
+        try {
+            fireMessage(new IRCMessage(line, 0, length, getDecoder(), getUserNick(), when));
+        } catch (Exception ex) {
+            fireError(new RuntimeException("IRCメッセージが不正です。: " + new String(line, getCharset()), ex));
+        }
     }
 
-    protected void prepareOutput() throws IOException {
-        if (out == null) {
-            out = new PrintStream(getOutputStream(), true, getEncoding());
-        }
+    /**
+     * 指定されたメッセージをハンドラに送信します。
+     *
+     * @param message IRCメッセージ
+     */
+    protected void fireMessage(IRCMessage message) {
+        fireMessage(new IRCEvent(this, message));
     }
 
     /**
-     * 指定されたテキストを解析して、ハンドラに送信します。
+     * 指定されたイベントをハンドラに送信します。
      *
-     * @param text テキスト
+     * @param event IRCイベント
      */
-    protected void fireMessage(String text) {
+    protected void fireMessage(final IRCEvent event) {
         try {
-            IRCMessage message = new IRCMessage(text, getUserNick());
-            final IRCEvent event = new IRCEvent(this, message);
+            IRCMessage message = event.getMessage();
+            if (message.getCommandCode() == IRCCommand.NUMERIC && message.getNumber() == 5) {
+                isupport(message);
+            } else if (message.getCommandCode() == IRCCommand.CAP) {
+                cap(message);
+            }
+            hostmask(message);
+            queries.onMessage(message);
             for (final IRCHandler handler : handlers) {
                 handler.onMessage(event);
 //                EventQueue.invokeLater(new Runnable() {
@@ -412,7 +1492,7 @@ public class IRCClient implements Iterable<String> {
 //                });
             }
         } catch (Exception ex) {
-            fireError(new RuntimeException("IRCメッセージが不正です。: " + text, ex));
+            fireError(new RuntimeException("IRCメッセージハンドラを中止しました。: " + event, ex));
         }
     }
 
@@ -473,27 +1553,37 @@ public class IRCClient implements Iterable<String> {
 
     /**
      * 指定されたテキストを送信します。
+     * 送信のレーンは、{@link #postCommand(String, String, String, String, String)} と同じようにテキストの先頭のコマンドで決めます。
      *
      * @param text テキスト
      * @return IRCクライアント
      */
     public IRCClient postMessage(String text) {
-        // TODO タスクキューが落ちてたら再起動する
-//        if (text != null && text.trim().length() > 0 && !taskQueue.isShutdown()) {
-//            taskQueue.execute(new OutputTask(this, text));
-//        }
         if (text != null && text.trim().length() > 0) {
-            try {
-                log.info(text);
-                prepareOutput();
-                out.println(text);
-            } catch (IOException ex) {
-                log.log(Level.SEVERE, "テキストを送信できません。: " + text, ex);
-            }
+            outputQueue.add(new IRCOutputQueue.Line(text));
         }
         return this;
     }
 
+    /**
+     * 指定されたコマンドを送信します。
+     * コマンドは出力キューに追加して、ライタが書式文字列を使わずに接続の文字コードでエンコードします。
+     * null のパラメータとトレイルは省略します。
+     *
+     * @param command コマンド
+     * @param param1 1番目のパラメータ
+     * @param param2 2番目のパラメータ
+     * @param param3 3番目のパラメータ
+     * @param trail トレイル
+     * @return IRCクライアント
+     * @throws IllegalArgumentException パラメータが空または空白を含む場合
+     * @see IRCOutputQueue
+     */
+    protected IRCClient postCommand(String command, String param1, String param2, String param3, String trail) {
+        outputQueue.add(new IRCOutputQueue.Line(command, param1, param2, param3, trail));
+        return this;
+    }
+
     /**
      * 指定されたコマンドを送信します。
      *
@@ -518,6 +1608,14 @@ public class IRCClient implements Iterable<String> {
     public IRCClient login(String nick, String user, String real, int mode, String pass) {
         log.log(Level.INFO, "ログインします。: {0}", nick);
         this.nick = nick;
+        this.user = user;
+        this.real = real;
+        this.mode = mode;
+        this.pass = pass;
+        capNegotiating = capNegotiation;
+        if (capNegotiation) {
+            postCommand("CAP", "LS", "302", null, null);
+        }
         if (pass != null && pass.length() != 0) {
             pass(pass);
         }
@@ -536,11 +1634,11 @@ public class IRCClient implements Iterable<String> {
     }
 
     public IRCClient pass(String pass) {
-        return postMessage("PASS %s", pass);
+        return postCommand("PASS", pass, null, null, null);
     }
 
     public IRCClient user(String user, int mode, String real) {
-        return postMessage("USER %s %d * :%s", user, mode, real);
+        return postCommand("USER", user, String.valueOf(mode), "*", real);
     }
 
     /**
@@ -550,7 +1648,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient nick(String nick) {
-        return postMessage("NICK %s", nick);
+        return postCommand("NICK", nick, null, null, null);
     }
 
     /**
@@ -559,7 +1657,8 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient quit() {
-        return postMessage("QUIT");
+        quitting = true;
+        return postCommand("QUIT", null, null, null, null);
     }
 
     /**
@@ -569,7 +1668,8 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient quit(String text) {
-        return postMessage("QUIT :%s", text);
+        quitting = true;
+        return postCommand("QUIT", null, null, null, text);
     }
 
     /**
@@ -579,7 +1679,8 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient join(String channel) {
-        return postMessage("JOIN %s", channel);
+        session.join(channel, null);
+        return postCommand("JOIN", channel, null, null, null);
     }
 
     /**
@@ -590,7 +1691,8 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient join(String channel, String keyword) {
-        return postMessage("JOIN %s %s", channel, keyword);
+        session.join(channel, keyword);
+        return postCommand("JOIN", channel, keyword, null, null);
     }
 
     /**
@@ -600,7 +1702,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient part(String channel) {
-        return postMessage("PART %s", channel);
+        return postCommand("PART", channel, null, null, null);
     }
 
     /**
@@ -611,7 +1713,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient part(String channel, String text) {
-        return postMessage("PART %s :%s", channel, text);
+        return postCommand("PART", channel, null, null, text);
     }
 
     /**
@@ -623,7 +1725,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient mode(String channel, String mode, String nick) {
-        return postMessage("MODE %s %s %s", channel, mode, nick);
+        return postCommand("MODE", channel, mode, nick, null);
     }
 
     /**
@@ -633,7 +1735,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient topic(String channel) {
-        return postMessage("TOPIC %s", channel);
+        return postCommand("TOPIC", channel, null, null, null);
     }
 
     /**
@@ -644,7 +1746,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient topic(String channel, String topic) {
-        return postMessage("TOPIC %s :%s", channel, topic);
+        return postCommand("TOPIC", channel, null, null, topic);
     }
 
     /**
@@ -654,7 +1756,125 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient list(String channel) {
-        return postMessage("LIST %s", channel);
+        return postCommand("LIST", channel, null, null, null);
+    }
+
+    /**
+     * すべてのチャンネルの一覧を問い合わせて、受信した順に送信するパブリッシャーを返します。
+     *
+     * @return チャンネルの一覧のパブリッシャー
+     * @see #list(int, Pattern)
+     */
+    public IRCQueries.ListQuery list() {
+        return list(0, null);
+    }
+
+    /**
+     * 指定された条件のチャンネルの一覧を問い合わせて、受信した順に送信するパブリッシャーを返します。
+     * 購読したときに LIST を送信して、購読者が要求した分だけエントリを送信し、RPL_LISTEND で完了します。
+     * サーバが ELIST の U に対応している場合は、利用者数の絞り込みをサーバに任せます。
+     *
+     * @param minUsers 利用者数の最小値、絞り込まない場合は 0
+     * @param topic トピックに含まれるパターン、絞り込まない場合は null
+     * @return チャンネルの一覧のパブリッシャー
+     * @see IRCQueries.ListQuery
+     * @see Flow.Publisher
+     */
+    public IRCQueries.ListQuery list(int minUsers, Pattern topic) {
+        return list(minUsers, topic, IRCQueries.ListQuery.MAX_BUFFER);
+    }
+
+    /**
+     * 購読者ごとのバッファの大きさを指定して、チャンネルの一覧を問い合わせます。
+     * バッファが一杯になったときの動作は {@link IRCQueries.ListQuery} を参照してください。
+     *
+     * @param minUsers 利用者数の最小値、絞り込まない場合は 0
+     * @param topic トピックに含まれるパターン、絞り込まない場合は null
+     * @param bufferSize 購読者ごとのバッファに溜めるエントリの最大数
+     * @return チャンネルの一覧のパブリッシャー
+     * @see #list(int, Pattern)
+     */
+    public IRCQueries.ListQuery list(int minUsers, Pattern topic, int bufferSize) {
+        String param = minUsers > 1 && elist.indexOf('U') >= 0 ? ">" + (minUsers - 1) : null;
+        return new IRCQueries.ListQuery(queries, param, minUsers, topic, bufferSize);
+    }
+
+    /**
+     * 指定されたチャンネルに参加しているニックネームを問い合わせます。
+     *
+     * @param channel チャンネル名
+     * @return ニックネームのリスト、ニックネームにはチャンネルモードの記号が付いたまま
+     * @see IRCQueries.NamesQuery
+     */
+    public CompletableFuture<List<String>> names(String channel) {
+        return query(new IRCQueries.NamesQuery(channel));
+    }
+
+    /**
+     * 指定されたユーザの情報を問い合わせます。
+     *
+     * @param nick ニックネーム
+     * @return RPL_ENDOFWHOIS までの応答、ユーザがいない場合はエラー
+     * @see IRCQueries.WhoisQuery
+     */
+    public CompletableFuture<List<IRCMessage>> whois(String nick) {
+        return query(new IRCQueries.WhoisQuery(nick));
+    }
+
+    /**
+     * 指定されたチャンネルのトピックを問い合わせます。
+     *
+     * @param channel チャンネル名
+     * @return トピック、トピックがない場合は null
+     * @see IRCQueries.TopicQuery
+     */
+    public CompletableFuture<String> queryTopic(String channel) {
+        return query(new IRCQueries.TopicQuery(channel));
+    }
+
+    /**
+     * 指定されたチャンネルのモードを問い合わせます。
+     *
+     * @param channel チャンネル名
+     * @return モードとその引数
+     * @see IRCQueries.ModeQuery
+     */
+    public CompletableFuture<String> queryMode(String channel) {
+        return query(new IRCQueries.ModeQuery(channel));
+    }
+
+    /**
+     * 指定された問い合わせを送信します。
+     * 前の問い合わせの応答を待たずに続けて送信できます。
+     *
+     * @param <T> 結果の型
+     * @param query 問い合わせ
+     * @return 応答をまとめた結果
+     * @see IRCQueries
+     */
+    public <T> CompletableFuture<T> query(IRCQueries.Query<T> query) {
+        return queries.send(query);
+    }
+
+    /**
+     * 問い合わせの応答を待つ時間を設定します。
+     * デフォルトは {@link IRCQueries#DEFAULT_TIMEOUT} ミリ秒です。
+     *
+     * @param timeout 時間 (ミリ秒)、0 の場合は待ち続ける
+     * @return IRCクライアント
+     */
+    public IRCClient setQueryTimeout(long timeout) {
+        queries.setTimeout(timeout);
+        return this;
+    }
+
+    /**
+     * 応答を待っている問い合わせを返します。
+     *
+     * @return 問い合わせ
+     */
+    public IRCQueries getQueries() {
+        return queries;
     }
 
     /**
@@ -665,7 +1885,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient invite(String nick, String channel) {
-        return postMessage("INVITE %s %s", nick, channel);
+        return postCommand("INVITE", nick, channel, null, null);
     }
 
     /**
@@ -677,33 +1897,60 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient kick(String channel, String user, String text) {
-        return postMessage("KICK %s %s :%s", channel, user, text);
+        return postCommand("KICK", channel, user, null, text);
     }
 
     /**
      * 指定されたターゲットにテキストを送信します。
+     * サーバが中継するときに切り捨てない長さに、できるだけ少ない行数で分割して送信します。
      *
      * @param target チャンネル名またはニックネーム
      * @param text テキスト
      * @return IRCクライアント
+     * @see #postSplit(String, String, String)
      */
     public IRCClient privmsg(String target, String text) {
-        return postMessage("PRIVMSG %s :%s", target, text);
+        return postSplit("PRIVMSG", target, text);
     }
 
     /**
      * 指定されたターゲットにテキストを送信します。
+     * サーバが中継するときに切り捨てない長さに、できるだけ少ない行数で分割して送信します。
      *
      * @param target チャンネル名またはニックネーム
      * @param text テキスト
      * @return IRCクライアント
+     * @see #postSplit(String, String, String)
      */
     public IRCClient notice(String target, String text) {
-        return postMessage("NOTICE %s :%s", target, text);
+        return postSplit("NOTICE", target, text);
+    }
+
+    /**
+     * 指定されたテキストを、サーバが付ける「:nick!user@host」を含めて1行に収まるように分割して送信します。
+     * 自分のユーザ名とホスト名がまだ分からない場合は、最も長い場合を想定して分割します。
+     *
+     * @param command コマンド
+     * @param target チャンネル名またはニックネーム
+     * @param text テキスト
+     * @return IRCクライアント
+     * @see IRCMessageSplitter
+     */
+    protected IRCClient postSplit(String command, String target, String text) {
+        if (target == null || text == null) {
+            return postCommand(command, target, null, null, text);
+        }
+        IRCMessageSplitter splitter = getSplitter();
+        int budget = splitter.budget(IRCMessageSplitter.prefixLength(nick, userHost), command, target);
+        for (String chunk : splitter.split(text, budget)) {
+            postCommand(command, target, null, null, chunk);
+        }
+        return this;
     }
 
     /**
      * CTCPクエリを送信します。
+     * CTCPクエリは分割しません。
      *
      * @param target チャンネル名またはニックネーム
      * @param text CTCPクエリ
@@ -711,11 +1958,50 @@ public class IRCClient implements Iterable<String> {
      * @see #privmsg(String, String)
      */
     public IRCClient ctcp(String target, String text) {
-        return privmsg(target, IRCMessage.wrapCTCP(text));
+        return postCommand("PRIVMSG", target, null, null, IRCMessage.wrapCTCP(text));
+    }
+
+    /**
+     * DCC SENDでファイルを送信します。
+     * DCC SENDのサーバでファイルを待ち受けて、このクライアントのIPアドレスとポート番号を相手に通知します。
+     *
+     * @param target ニックネーム
+     * @param file ファイル
+     * @return 転送
+     * @throws IOException ファイルを読み込めない場合、またはサーバソケットを開けない場合
+     * @see #setDccServer(DccSendServer)
+     */
+    public DccSendServer.Transfer dccSend(String target, File file) throws IOException {
+        DccSendServer.Transfer transfer = getDccServer().offer(file, socket.getLocalAddress());
+        ctcp(target, transfer.toCtcp());
+        return transfer;
+    }
+
+    /**
+     * DCC SENDのサーバを設定します。
+     *
+     * @param dccServer サーバ、共有のサーバを使う場合は null
+     * @return IRCクライアント
+     */
+    public IRCClient setDccServer(DccSendServer dccServer) {
+        this.dccServer = dccServer;
+        return this;
+    }
+
+    /**
+     * DCC SENDのサーバを返します。
+     *
+     * @return サーバ
+     * @throws IOException サーバを作成できない場合
+     * @see DccSendServer#getDefault()
+     */
+    public DccSendServer getDccServer() throws IOException {
+        return dccServer != null ? dccServer : DccSendServer.getDefault();
     }
 
     /**
      * CTCPリプライを送信します。
+     * CTCPリプライは分割しません。
      *
      * @param target チャンネル名またはニックネーム
      * @param text CTCPリプライ
@@ -723,7 +2009,7 @@ public class IRCClient implements Iterable<String> {
      * @see #notice(String, String)
      */
     public IRCClient ctcpReply(String target, String text) {
-        return notice(target, IRCMessage.wrapCTCP(text));
+        return postCommand("NOTICE", target, null, null, IRCMessage.wrapCTCP(text));
     }
 
     /**
@@ -733,7 +2019,7 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient pong(String server) {
-        return postMessage("PONG :%s", server);
+        return postCommand("PONG", null, null, null, server);
     }
 
     /**
@@ -743,7 +2029,8 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient away(String text) {
-        return postMessage("AWAY :%s", text);
+        session.away(text);
+        return postCommand("AWAY", null, null, null, text);
     }
 
     /**
@@ -752,7 +2039,8 @@ public class IRCClient implements Iterable<String> {
      * @return IRCクライアント
      */
     public IRCClient away() {
-        return postMessage("AWAY");
+        session.away(null);
+        return postCommand("AWAY", null, null, null, null);
     }
 }
 
@@ -768,10 +2056,16 @@ class InputTask implements Runnable {
     /**
      * 入力ストリーム
      */
-    private BufferedReader in;
+    private InputStream in;
+    /**
+     * 入力バッファ
+     */
+    private IRCInputBuffer buffer = new IRCInputBuffer();
 
     /**
      * 入力ストリームがクローズされるまで読み続ける入力タスクを構築します。
+     * 受信したバイト列は行に区切ってから、デコードせずにメッセージを解析します。
+     * 半角カナの修正は、文字コードが JIS の場合だけ行います。
      *
      * @param irc IRCクライアント
      * @param encoding 文字コード
@@ -779,73 +2073,21 @@ class InputTask implements Runnable {
      */
     public InputTask(IRCClient irc, String encoding) throws IOException {
         this.irc = irc;
-        in = new BufferedReader(new InputStreamReader(new KanaInputFilter(irc.getInputStream()), encoding));
+        in = irc.isKanaFiltered() ? new KanaInputFilter(irc.getInputStream()) : irc.getInputStream();
     }
 
     public void run() {
         try {
-            while (true) {
-                String line = in.readLine();
-                if (line == null) {
-                    break;
+            while (buffer.read(in) >= 0) {
+                long when = System.currentTimeMillis();
+                while (buffer.nextLine()) {
+                    irc.receive(buffer.array(), buffer.lineOffset(), buffer.lineLength(), when);
                 }
-                irc.fireMessage(line);
-                Thread.yield();
             }
         } catch (IOException ex) {
             irc.fireError(new IOException("入力ストリームを読み込めません。", ex));
         } finally {
-            try {
-                irc.close();
-            } catch (IOException ex) {
-                irc.fireError(new IOException("入力ストリームをクローズできません。", ex));
-            }
-        }
-    }
-}
-
-/**
- * 出力タスク
- */
-class OutputTask implements Runnable {
-
-    /**
-     * ログ
-     */
-    private static final Logger log = Logger.getLogger(OutputTask.class.getName());
-    /**
-     * IRCクライアント
-     */
-    private IRCClient irc;
-    /**
-     * 送信するテキスト
-     */
-    private String text;
-    /**
-     * 出力ストリーム
-     */
-    private PrintStream out;
-
-    /**
-     * 指定されたテキストをひとつ送信するタスクを構築します。
-     *
-     * @param irc IRCクライアント
-     * @param text 送信するテキスト
-     */
-    public OutputTask(IRCClient irc, String text) {
-        this.irc = irc;
-        this.text = text;
-    }
-
-    public void run() {
-        try {
-            log.info(text);
-            out = new PrintStream(irc.getOutputStream(), true, irc.getEncoding());
-            out.println(text);
-//			out.close();
-        } catch (IOException ex) {
-            irc.fireError(new IOException("指定されたテキストを送信できません。: " + text, ex));
-//			throw new RuntimeException("送信エラー: " + text, x);
+            irc.disconnected();
         }
     }
 }
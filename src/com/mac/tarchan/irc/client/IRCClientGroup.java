@@ -0,0 +1,828 @@
+/*
+ * IRCClientGroup.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 複数の接続にチャンネルを分けて、1つのクライアントのように使用します。
+ * 1つの接続ではサーバの送信の制限と接続ごとのチャンネルの数の上限があるので、
+ * 数千のチャンネルに参加する場合は接続を分ける必要があります。
+ * <p>
+ * チャンネルは名前のコンシステントハッシュで接続に割り当てます。
+ * 接続ごとに {@link #DEFAULT_REPLICAS} 個の仮想ノードをハッシュの環に配置し、
+ * チャンネルの名前のハッシュから環を時計回りにたどって最初の仮想ノードの接続が担当します。
+ * 接続が切断した場合は、その接続の仮想ノードを環から外して、その接続が担当していたチャンネルだけをほかの接続で参加し直します。
+ * 接続はサーバが {@link NumericReply#RPL_WELCOME} を返してから環に加えるので、ログインが終わる前に JOIN を送信しません。
+ * <p>
+ * JOIN、PART、PRIVMSG などは担当する接続に送信します。
+ * 受信したメッセージは、すべての接続から1つのハンドラの列に送信します。
+ * 送信元の接続は {@link IRCEvent#getClient()} で参照できます。
+ * PING は接続ごとにこのグループが応答します。
+ * <p>
+ * 切断した接続は {@link #setAutoReconnect(boolean)} でグループが再接続し、環に戻してチャンネルを割り当て直します。
+ * 接続ごとの {@link IRCClient#setAutoReconnect(boolean)} は、ほかの接続に移したチャンネルにも参加し直してしまうので使用できません。
+ * 
+ * @see IRCClient
+ */
+public class IRCClientGroup
+{
+	private static final Logger log = Logger.getLogger(IRCClientGroup.class.getName());
+
+	/** 接続ごとの仮想ノードの数 */
+	public static final int DEFAULT_REPLICAS = 160;
+
+	/** 接続 */
+	protected final IRCClient[] clients;
+
+	/** ホスト名 */
+	protected final String host;
+
+	/** ポート番号 */
+	protected final int port;
+
+	/** ニックネーム */
+	protected final String nick;
+
+	/** パスワード */
+	protected final String pass;
+
+	/** 文字コード */
+	protected final String encoding;
+
+	/** 接続ごとの仮想ノードの数 */
+	protected final int replicas;
+
+	/** 参加しているチャンネル */
+	protected final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+
+	/** ハッシュの環 */
+	protected volatile Ring ring;
+
+	/** ログインが終わって環に加えたかどうか */
+	protected final boolean[] alive;
+
+	/** 接続して、ログインが終わるのを待っているかどうか */
+	protected final boolean[] connecting;
+
+	/** チャンネルの割り当てのロック */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/** メッセージハンドラ */
+	protected final CopyOnWriteArrayList<IRCHandler> handlers = new CopyOnWriteArrayList<IRCHandler>();
+
+	/** クローズしたかどうか */
+	protected volatile boolean closed;
+
+	/** 切断した接続を自動的に再接続するかどうか */
+	protected volatile boolean autoReconnect;
+
+	/**
+	 * 指定された数の接続のグループを構築します。
+	 * 最初の接続は指定されたニックネーム、それ以外の接続はニックネームに番号を付けて接続します。
+	 * 
+	 * @param host ホスト名
+	 * @param port ポート番号
+	 * @param nick ニックネーム
+	 * @param pass パスワード
+	 * @param encoding 文字コード
+	 * @param size 接続の数
+	 */
+	public IRCClientGroup(String host, int port, String nick, String pass, String encoding, int size)
+	{
+		this(host, port, nick, pass, encoding, size, DEFAULT_REPLICAS);
+	}
+
+	/**
+	 * 指定された数の接続のグループを構築します。
+	 * 
+	 * @param host ホスト名
+	 * @param port ポート番号
+	 * @param nick ニックネーム
+	 * @param pass パスワード
+	 * @param encoding 文字コード
+	 * @param size 接続の数
+	 * @param replicas 接続ごとの仮想ノードの数
+	 */
+	public IRCClientGroup(String host, int port, String nick, String pass, String encoding, int size, int replicas)
+	{
+		if (size <= 0) throw new IllegalArgumentException("接続の数が不正です。: " + size);
+		if (replicas <= 0) throw new IllegalArgumentException("仮想ノードの数が不正です。: " + replicas);
+
+		this.host = host;
+		this.port = port;
+		this.nick = nick;
+		this.pass = pass;
+		this.encoding = encoding;
+		this.replicas = replicas;
+		this.clients = new IRCClient[size];
+		this.alive = new boolean[size];
+		this.connecting = new boolean[size];
+		for (int i = 0; i < size; i++)
+		{
+			clients[i] = IRCClient.createClient();
+			clients[i].on(new Forwarder(i));
+			clients[i].onClose(new Dropper(i));
+		}
+		this.ring = new Ring(new int[0], new int[0]);
+	}
+
+	/**
+	 * すべての接続でIRCサーバに接続します。
+	 * 接続の設定は、このメソッドを呼び出す前に {@link #getClient(int)} で行います。
+	 * 
+	 * @return このグループ
+	 * @throws IOException IRCサーバに接続できない場合
+	 */
+	public IRCClientGroup start() throws IOException
+	{
+		for (int i = 0; i < clients.length; i++)
+		{
+			start(i);
+		}
+		return this;
+	}
+
+	/**
+	 * 指定された番号の接続でIRCサーバに接続します。
+	 * 切断した接続を再接続する場合にも使用します。
+	 * 最初の接続は指定されたニックネーム、それ以外の接続はニックネームに番号を付けてログインします。
+	 * サーバが {@link NumericReply#RPL_WELCOME} を返したら環に仮想ノードを加えて、この接続が担当するチャンネルをほかの接続から移します。
+	 * 
+	 * @param index 接続の番号
+	 * @return このグループ
+	 * @throws IOException IRCサーバに接続できない場合
+	 * @throws IllegalStateException 接続ごとの自動的な再接続が設定されている場合
+	 */
+	public IRCClientGroup start(int index) throws IOException
+	{
+		IRCClient client = clients[index];
+		if (client.isAutoReconnect()) throw new IllegalStateException("グループの接続は接続ごとに再接続できません。: " + index);
+
+		lock.lock();
+		try
+		{
+			connecting[index] = true;
+			closed = false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		try
+		{
+			client.connect(host, port, encoding).login(index == 0 ? nick : nick + index, null, null, 0, pass);
+			client.startInput();
+		}
+		catch (IOException ex)
+		{
+			lock.lock();
+			try
+			{
+				connecting[index] = false;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			throw ex;
+		}
+		return this;
+	}
+
+	/**
+	 * 指定された接続のログインが終わったときに呼び出されます。
+	 * 環に接続の仮想ノードを加えて、チャンネルを割り当て直します。
+	 * 
+	 * @param index 接続の番号
+	 */
+	protected void welcomed(int index)
+	{
+		lock.lock();
+		try
+		{
+			if (!connecting[index]) return;
+
+			connecting[index] = false;
+			alive[index] = true;
+			rebuild();
+			rebalance();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 切断した接続を、自動的に再接続するかどうかを設定します。
+	 * 再接続するまでの待ち時間は、接続ごとに {@link IRCClient#setReconnectDelay(long, long)} の設定で決めます。
+	 * 再接続した接続は {@link #start(int)} と同じように環に戻して、担当するチャンネルを移します。
+	 * 
+	 * @param autoReconnect 再接続する場合は true
+	 * @return このグループ
+	 */
+	public IRCClientGroup setAutoReconnect(boolean autoReconnect)
+	{
+		this.autoReconnect = autoReconnect;
+		return this;
+	}
+
+	/**
+	 * 切断した接続を、自動的に再接続するかどうか判定します。
+	 * 
+	 * @return 再接続する場合は true
+	 */
+	public boolean isAutoReconnect()
+	{
+		return autoReconnect;
+	}
+
+	/**
+	 * すべての接続を切断します。
+	 * 
+	 * @param text 切断の理由
+	 */
+	public void quit(String text)
+	{
+		closed = true;
+		for (int i = 0; i < clients.length; i++)
+		{
+			if (!clients[i].isClosed()) clients[i].quit(text);
+		}
+	}
+
+	/**
+	 * 受信したメッセージのハンドラを追加します。
+	 * ハンドラは接続ごとの受信スレッドから呼び出すので、複数のスレッドから同時に呼び出される可能性があります。
+	 * 
+	 * @param handler ハンドラ
+	 * @return このグループ
+	 */
+	public IRCClientGroup on(IRCHandler handler)
+	{
+		handlers.add(handler);
+		return this;
+	}
+
+	/**
+	 * 接続の数を返します。
+	 * 
+	 * @return 接続の数
+	 */
+	public int size()
+	{
+		return clients.length;
+	}
+
+	/**
+	 * 指定された番号の接続を返します。
+	 * 
+	 * @param index 番号
+	 * @return 接続
+	 */
+	public IRCClient getClient(int index)
+	{
+		return clients[index];
+	}
+
+	/**
+	 * 指定された宛先を担当する接続を返します。
+	 * 参加しているチャンネルの場合は参加している接続、それ以外はハッシュの環で選んだ接続を返します。
+	 * 
+	 * @param target チャンネル名またはニックネーム
+	 * @return 接続
+	 * @throws IllegalStateException 接続している接続がない場合
+	 */
+	public IRCClient getClient(String target)
+	{
+		return clients[ownerOf(target)];
+	}
+
+	/**
+	 * 指定された宛先を担当する接続の番号を返します。
+	 * 
+	 * @param target チャンネル名またはニックネーム
+	 * @return 番号
+	 * @throws IllegalStateException 接続している接続がない場合
+	 */
+	public int ownerOf(String target)
+	{
+		Channel channel = channels.get(normalize(target));
+		if (channel != null && channel.owner >= 0) return channel.owner;
+		return ring.lookup(hash(normalize(target)));
+	}
+
+	/**
+	 * 参加しているチャンネルと担当する接続の番号を返します。
+	 * 
+	 * @return チャンネル名と番号のマップ
+	 */
+	public Map<String, Integer> getChannels()
+	{
+		ConcurrentHashMap<String, Integer> map = new ConcurrentHashMap<String, Integer>();
+		for (Channel channel : channels.values())
+		{
+			map.put(channel.name, channel.owner);
+		}
+		return map;
+	}
+
+	/**
+	 * 接続ごとの担当するチャンネルの数を返します。
+	 * 
+	 * @return チャンネルの数
+	 */
+	public int[] getChannelCounts()
+	{
+		int[] counts = new int[clients.length];
+		for (Channel channel : channels.values())
+		{
+			if (channel.owner >= 0) counts[channel.owner]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * 指定されたチャンネルに、担当する接続で参加します。
+	 * 
+	 * @param channel チャンネル名
+	 * @return このグループ
+	 */
+	public IRCClientGroup join(String channel)
+	{
+		return join(channel, null);
+	}
+
+	/**
+	 * 指定されたチャンネルに、担当する接続で参加します。
+	 * キーワードは、接続が切断して別の接続で参加し直すときにも使用します。
+	 * ログインが終わった接続がまだない場合は、最初の接続のログインが終わったときに参加します。
+	 * 
+	 * @param channel チャンネル名
+	 * @param keyword キーワード
+	 * @return このグループ
+	 */
+	public IRCClientGroup join(String channel, String keyword)
+	{
+		lock.lock();
+		try
+		{
+			String key = normalize(channel);
+			Channel entry = channels.get(key);
+			if (entry == null)
+			{
+				entry = new Channel(channel, keyword);
+				channels.put(key, entry);
+			}
+			else
+			{
+				entry.keyword = keyword;
+			}
+			if (ring.isEmpty()) return this;
+
+			int owner = ring.lookup(hash(key));
+			if (entry.owner >= 0 && entry.owner != owner && alive[entry.owner]) clients[entry.owner].part(channel);
+			entry.owner = owner;
+			send(owner, entry);
+			return this;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 指定されたチャンネルから、担当する接続で退出します。
+	 * 
+	 * @param channel チャンネル名
+	 * @return このグループ
+	 */
+	public IRCClientGroup part(String channel)
+	{
+		lock.lock();
+		try
+		{
+			Channel entry = channels.remove(normalize(channel));
+			if (entry != null && entry.owner >= 0 && alive[entry.owner]) clients[entry.owner].part(channel);
+			return this;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 指定された宛先に、担当する接続でメッセージを送信します。
+	 * 
+	 * @param target チャンネル名またはニックネーム
+	 * @param text メッセージ
+	 * @return このグループ
+	 */
+	public IRCClientGroup privmsg(String target, String text)
+	{
+		getClient(target).privmsg(target, text);
+		return this;
+	}
+
+	/**
+	 * 指定された宛先に、担当する接続で通知を送信します。
+	 * 
+	 * @param target チャンネル名またはニックネーム
+	 * @param text 通知
+	 * @return このグループ
+	 */
+	public IRCClientGroup notice(String target, String text)
+	{
+		getClient(target).notice(target, text);
+		return this;
+	}
+
+	/**
+	 * 指定されたチャンネルに参加しているニックネームを、担当する接続で問い合わせます。
+	 * 
+	 * @param channel チャンネル名
+	 * @return ニックネームのリスト
+	 * @see IRCClient#names(String)
+	 */
+	public CompletableFuture<List<String>> names(String channel)
+	{
+		return getClient(channel).names(channel);
+	}
+
+	/**
+	 * 指定された接続で、チャンネルに参加するメッセージを送信します。
+	 * 
+	 * @param index 接続の番号
+	 * @param channel チャンネル
+	 */
+	private void send(int index, Channel channel)
+	{
+		if (channel.keyword != null)
+		{
+			clients[index].join(channel.name, channel.keyword);
+		}
+		else
+		{
+			clients[index].join(channel.name);
+		}
+	}
+
+	/**
+	 * 指定された接続が切断したときに呼び出されます。
+	 * 環から接続の仮想ノードを外して、チャンネルを割り当て直します。
+	 * 
+	 * @param index 接続の番号
+	 */
+	protected void dropped(int index)
+	{
+		lock.lock();
+		try
+		{
+			if (connecting[index])
+			{
+				// ログインが終わる前に切断した
+				connecting[index] = false;
+				log.log(Level.WARNING, "ログインが終わる前に接続が切断しました。: {0}", clients[index]);
+				if (!closed && autoReconnect) scheduleReconnect(index);
+				return;
+			}
+			if (!alive[index]) return;
+
+			alive[index] = false;
+			log.log(Level.WARNING, "接続が切断しました。: {0}", clients[index]);
+			if (clients[index].isAutoReconnect())
+			{
+				log.log(Level.WARNING, "接続ごとの再接続を中止しました。: {0}", index);
+				clients[index].setAutoReconnect(false);
+			}
+			if (closed) return;
+
+			rebuild();
+			rebalance();
+			if (autoReconnect) scheduleReconnect(index);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 指定された接続の再接続を予約します。
+	 * 
+	 * @param index 接続の番号
+	 */
+	protected void scheduleReconnect(final int index)
+	{
+		IRCClient client = clients[index];
+		long delay = client.nextReconnectDelay();
+		client.reconnectAttempts++;
+		log.log(Level.INFO, "{0}ms 後に接続 {1} を再接続します。: {2}", new Object[] {delay, index, client.reconnectAttempts});
+		IRCClient.getReconnectScheduler().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				reconnect(index);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 指定された接続を再接続します。接続できない場合は、次の再接続を予約します。
+	 * 
+	 * @param index 接続の番号
+	 */
+	protected void reconnect(int index)
+	{
+		lock.lock();
+		try
+		{
+			if (closed || !autoReconnect || alive[index] || connecting[index]) return;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		try
+		{
+			start(index);
+			clients[index].reconnectAttempts = 0;
+		}
+		catch (IOException ex)
+		{
+			log.log(Level.WARNING, "接続を再接続できません。: " + index, ex);
+			scheduleReconnect(index);
+		}
+	}
+
+	/**
+	 * 担当する接続が変わったチャンネルを、新しい接続で参加し直します。
+	 * コンシステントハッシュなので、変わるのは追加または切断した接続のチャンネルだけです。
+	 * 
+	 * @return 参加し直したチャンネルの数
+	 */
+	protected int rebalance()
+	{
+		lock.lock();
+		try
+		{
+			if (ring.isEmpty())
+			{
+				for (Channel channel : channels.values())
+				{
+					channel.owner = -1;
+				}
+				return 0;
+			}
+
+			int moved = 0;
+			for (Map.Entry<String, Channel> entry : channels.entrySet())
+			{
+				Channel channel = entry.getValue();
+				int owner = ring.lookup(hash(entry.getKey()));
+				if (owner == channel.owner) continue;
+
+				if (channel.owner >= 0 && alive[channel.owner]) clients[channel.owner].part(channel.name);
+				channel.owner = owner;
+				send(owner, channel);
+				moved++;
+			}
+			log.log(Level.INFO, "チャンネルを割り当て直しました。: {0}", moved);
+			return moved;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 接続している接続の仮想ノードで、ハッシュの環を作り直します。
+	 */
+	protected void rebuild()
+	{
+		int count = 0;
+		for (boolean b : alive)
+		{
+			if (b) count++;
+		}
+
+		long[] nodes = new long[count * replicas];
+		int n = 0;
+		for (int i = 0; i < clients.length; i++)
+		{
+			if (!alive[i]) continue;
+			for (int r = 0; r < replicas; r++)
+			{
+				nodes[n++] = (long)hash(i + "#" + r) << 32 | i;
+			}
+		}
+		Arrays.sort(nodes);
+
+		int[] points = new int[n];
+		int[] owners = new int[n];
+		for (int j = 0; j < n; j++)
+		{
+			points[j] = (int)(nodes[j] >> 32);
+			owners[j] = (int)nodes[j];
+		}
+		ring = new Ring(points, owners);
+	}
+
+	/**
+	 * チャンネル名を大文字と小文字を区別しない名前に変換します。
+	 * 
+	 * @param name チャンネル名またはニックネーム
+	 * @return 小文字の名前
+	 */
+	protected static String normalize(String name)
+	{
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * 指定された文字列の 32 ビットのハッシュ値を返します。
+	 * FNV-1a のハッシュ値を MurmurHash3 の最後の撹拌で散らします。
+	 * 
+	 * @param s 文字列
+	 * @return ハッシュ値
+	 */
+	protected static int hash(String s)
+	{
+		int h = 0x811c9dc5;
+		for (int i = 0; i < s.length(); i++)
+		{
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[clients=" + clients.length + ", channels=" + channels.size() + ", counts=" + Arrays.toString(getChannelCounts()) + "]";
+	}
+
+	/**
+	 * すべての接続から受信したメッセージを、グループのハンドラに送信します。
+	 */
+	class Forwarder implements IRCHandler
+	{
+		/** 接続の番号 */
+		private final int index;
+
+		/**
+		 * 指定された接続のメッセージを送信するハンドラを構築します。
+		 * 
+		 * @param index 接続の番号
+		 */
+		Forwarder(int index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public void onMessage(IRCEvent event)
+		{
+			IRCMessage message = event.getMessage();
+			IRCClient client = event.getClient();
+			if (message.getCommandCode() == IRCCommand.PING && !client.isPingAnswered()) client.pong(IRCClient.lastParam(message));
+			if (message.getCommand().equals(NumericReply.RPL_WELCOME)) welcomed(index);
+
+			for (IRCHandler handler : handlers)
+			{
+				handler.onMessage(event);
+			}
+		}
+	}
+
+	/**
+	 * 接続が切断したことをグループに知らせます。
+	 */
+	class Dropper implements Runnable
+	{
+		/** 接続の番号 */
+		private final int index;
+
+		/**
+		 * 指定された接続の切断を知らせるハンドラを構築します。
+		 * 
+		 * @param index 接続の番号
+		 */
+		Dropper(int index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public void run()
+		{
+			dropped(index);
+		}
+	}
+
+	/**
+	 * 参加しているチャンネルです。
+	 */
+	protected static class Channel
+	{
+		/** チャンネル名 */
+		final String name;
+
+		/** キーワード */
+		volatile String keyword;
+
+		/** 担当する接続の番号、接続がない場合は -1 */
+		volatile int owner = -1;
+
+		/**
+		 * チャンネルを構築します。
+		 * 
+		 * @param name チャンネル名
+		 * @param keyword キーワード
+		 */
+		Channel(String name, String keyword)
+		{
+			this.name = name;
+			this.keyword = keyword;
+		}
+	}
+
+	/**
+	 * 仮想ノードを並べたハッシュの環です。作成した後は変更しません。
+	 */
+	protected static class Ring
+	{
+		/** 仮想ノードの位置 (昇順に並べたハッシュ値) */
+		private final int[] points;
+
+		/** 仮想ノードの接続の番号 */
+		private final int[] owners;
+
+		/**
+		 * ハッシュの環を構築します。
+		 * 
+		 * @param points 仮想ノードの位置
+		 * @param owners 仮想ノードの接続の番号
+		 */
+		Ring(int[] points, int[] owners)
+		{
+			this.points = points;
+			this.owners = owners;
+		}
+
+		/**
+		 * 仮想ノードがないかどうか判定します。
+		 * 
+		 * @return 仮想ノードがない場合は true
+		 */
+		boolean isEmpty()
+		{
+			return points.length == 0;
+		}
+
+		/**
+		 * 指定されたハッシュ値から時計回りに最初の仮想ノードの接続を返します。
+		 * 
+		 * @param hash ハッシュ値
+		 * @return 接続の番号
+		 * @throws IllegalStateException 接続している接続がない場合
+		 */
+		int lookup(int hash)
+		{
+			if (points.length == 0) throw new IllegalStateException("接続している接続がありません。");
+
+			int i = Arrays.binarySearch(points, hash);
+			if (i < 0) i = -i - 1;
+			if (i == points.length) i = 0;
+			return owners[i];
+		}
+	}
+}
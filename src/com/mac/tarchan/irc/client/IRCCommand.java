@@ -0,0 +1,110 @@
+/*
+ * IRCCommand.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * IRCメッセージのコマンドを定義します。
+ * 受信したメッセージのコマンドは解析したときに一度だけこの列挙型に変換されるので、
+ * ハンドラは文字列ではなく同一性で比較できます。
+ * 
+ * @see IRCMessage#getCommandCode()
+ * @see <a href="http://www.faqs.org/rfcs/rfc2812.html">RFC 2812 - Internet Relay Chat: Client Protocol</a>
+ */
+public enum IRCCommand
+{
+	PASS, NICK, USER, OPER, MODE, SERVICE, QUIT, SQUIT,
+	JOIN, PART, TOPIC, NAMES, LIST, INVITE, KICK,
+	PRIVMSG, NOTICE,
+	MOTD, LUSERS, VERSION, STATS, LINKS, TIME, CONNECT, TRACE, ADMIN, INFO,
+	SERVLIST, SQUERY, WHO, WHOIS, WHOWAS,
+	KILL, PING, PONG, ERROR,
+	AWAY, REHASH, DIE, RESTART, SUMMON, USERS, WALLOPS, USERHOST, ISON,
+	CAP, AUTHENTICATE, BATCH, ACCOUNT, CHGHOST, SETNAME, TAGMSG,
+
+	/** 3桁の数字からなるニュメリックリプライ */
+	NUMERIC,
+
+	/** 定義されていないコマンド */
+	UNKNOWN;
+
+	/** 先頭の文字ごとのコマンド */
+	private static final IRCCommand[][] TABLE = new IRCCommand[26][];
+
+	/** 空の配列 */
+	private static final IRCCommand[] EMPTY = new IRCCommand[0];
+
+	static
+	{
+		ArrayList<ArrayList<IRCCommand>> lists = new ArrayList<ArrayList<IRCCommand>>();
+		for (int i = 0; i < TABLE.length; i++)
+		{
+			lists.add(new ArrayList<IRCCommand>());
+		}
+		for (IRCCommand command : values())
+		{
+			if (command == NUMERIC || command == UNKNOWN) continue;
+			lists.get(command.name().charAt(0) - 'A').add(command);
+		}
+		for (int i = 0; i < TABLE.length; i++)
+		{
+			TABLE[i] = lists.get(i).toArray(new IRCCommand[]{});
+		}
+	}
+
+	/**
+	 * 指定された文字で始まるコマンドを返します。
+	 * 
+	 * @param c 先頭の文字
+	 * @return コマンドの配列
+	 */
+	static IRCCommand[] startsWith(int c)
+	{
+		if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+		return c >= 'A' && c <= 'Z' ? TABLE[c - 'A'] : EMPTY;
+	}
+
+	/**
+	 * 指定された文字列のコマンドを返します。
+	 * 大文字と小文字は区別しません。
+	 * 
+	 * @param command コマンド
+	 * @return コマンド、3桁の数字の場合は {@link #NUMERIC}、定義されていない場合は {@link #UNKNOWN}
+	 */
+	public static IRCCommand lookup(String command)
+	{
+		if (isNumeric(command)) return NUMERIC;
+
+		String name = command.toUpperCase(Locale.ENGLISH);
+		if (name.isEmpty()) return UNKNOWN;
+		for (IRCCommand code : startsWith(name.charAt(0)))
+		{
+			if (code.name().equals(name)) return code;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * 指定された文字列が3桁の数字かどうか判定します。
+	 * 
+	 * @param command コマンド
+	 * @return 3桁の数字の場合は true
+	 */
+	static boolean isNumeric(String command)
+	{
+		if (command.length() != 3) return false;
+		for (int i = 0; i < 3; i++)
+		{
+			char c = command.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * IRCDecoder.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import com.mac.tarchan.irc.client.util.AsciiScanner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 受信したバイト列を文字列にデコードします。
+ * 受信するメッセージのほとんどは、接続の文字コードが ISO-2022-JP や UTF-8 でも ASCII文字だけで書かれています。
+ * 8ビットのバイトもエスケープコードも含まない範囲はデコーダを通さずに Latin-1 として文字列を作り、
+ * それ以外の範囲だけを接続ごとに使い回すデコーダでデコードします。
+ * UTF-8、US-ASCII、ISO-8859-1 は JDK の文字列の生成が ASCII文字の判定も含めて最適化されているので、そのまま文字列を作ります。
+ * <p>
+ * デコーダは接続ごとに1つなので、ほかのスレッドが使用している間は一時的なデコーダでデコードします。
+ * 
+ * @see IRCMessage
+ * @see IRCClient#getDecoder()
+ */
+public class IRCDecoder
+{
+	/** ASCII互換かどうか調べる文字列 */
+	private static final String ASCII_SAMPLE = "AZaz09 :!#&@";
+
+	/** 文字コード */
+	protected final Charset charset;
+
+	/** ASCII互換の文字コードかどうか */
+	protected final boolean asciiCompatible;
+
+	/** JDK が文字列の生成を最適化している文字コードかどうか */
+	protected final boolean builtin;
+
+	/** デコーダ */
+	protected final CharsetDecoder decoder;
+
+	/** デコードした文字のバッファ */
+	protected CharBuffer chars = CharBuffer.allocate(IRCOutputBuffer.MAX_LINE_LENGTH);
+
+	/** デコーダのロック */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * 指定された文字コードのデコーダを構築します。
+	 * 
+	 * @param charset 文字コード
+	 */
+	public IRCDecoder(Charset charset)
+	{
+		this.charset = charset;
+		asciiCompatible = charset.canEncode() && Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII));
+		builtin = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.ISO_8859_1);
+		decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * 文字コードを返します。
+	 * 
+	 * @return 文字コード
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * ASCII文字だけの範囲をデコーダを通さずに文字列にするかどうか判定します。
+	 * 
+	 * @return ASCII文字の範囲を判定する場合は true
+	 */
+	public boolean isAsciiFastPath()
+	{
+		return asciiCompatible && !builtin;
+	}
+
+	/**
+	 * 指定されたメッセージの文字コードのデコーダを返します。
+	 * このデコーダは常に接続の文字コードでデコードするので、このデコーダを返します。
+	 * 
+	 * @param message バイト列から構築したIRCメッセージ
+	 * @return デコーダ
+	 * @see IRCAutoDecoder
+	 */
+	protected IRCDecoder select(IRCMessage message)
+	{
+		return this;
+	}
+
+	/**
+	 * 指定された範囲で、最初の8ビットのバイトかエスケープコードの位置を返します。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return 位置、見つからない場合は終了位置
+	 * @see AsciiScanner#indexOfNonAscii(byte[], int, int)
+	 */
+	public static int indexOfNonAscii(byte[] data, int from, int to)
+	{
+		return AsciiScanner.indexOfNonAscii(data, from, to);
+	}
+
+	/**
+	 * 指定された範囲が8ビットのバイトもエスケープコードも含まないかどうか判定します。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return ASCII文字だけの場合は true
+	 */
+	public static boolean isAscii(byte[] data, int from, int to)
+	{
+		return AsciiScanner.isAscii(data, from, to);
+	}
+
+	/**
+	 * 指定された範囲をデコードします。
+	 * 
+	 * @param data バイト列
+	 * @param offset 開始位置
+	 * @param length 長さ
+	 * @return 文字列
+	 */
+	public String decode(byte[] data, int offset, int length)
+	{
+		if (isAsciiFastPath() && isAscii(data, offset, offset + length)) return decodeAscii(data, offset, length);
+		return decodeText(data, offset, length);
+	}
+
+	/**
+	 * ASCII文字だけの範囲を Latin-1 として文字列にします。
+	 * 
+	 * @param data バイト列
+	 * @param offset 開始位置
+	 * @param length 長さ
+	 * @return 文字列
+	 */
+	public String decodeAscii(byte[] data, int offset, int length)
+	{
+		if (!asciiCompatible) return decodeText(data, offset, length);
+		return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * 指定された範囲をデコーダでデコードします。
+	 * ほかのスレッドがデコーダを使用している場合は、一時的なデコーダでデコードします。
+	 * 
+	 * @param data バイト列
+	 * @param offset 開始位置
+	 * @param length 長さ
+	 * @return 文字列
+	 */
+	public String decodeText(byte[] data, int offset, int length)
+	{
+		if (builtin || !lock.tryLock()) return new String(data, offset, length, charset);
+		try
+		{
+			int capacity = (int)Math.ceil(length * (double)decoder.maxCharsPerByte()) + 1;
+			if (chars.capacity() < capacity) chars = CharBuffer.allocate(capacity);
+			chars.clear();
+			decoder.reset();
+			decoder.decode(ByteBuffer.wrap(data, offset, length), chars, true);
+			decoder.flush(chars);
+			return new String(chars.array(), 0, chars.position());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + charset + "]";
+	}
+}
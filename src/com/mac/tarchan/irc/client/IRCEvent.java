@@ -60,6 +60,19 @@ public class IRCEvent extends EventObject
 		return message;
 	}
 
+	/**
+	 * ハンドラの外で保持できる IRCEvent を返します。
+	 * メッセージを再利用している場合は、メッセージをコピーした新しいイベントを返します。
+	 * 
+	 * @return {@link IRCEvent}
+	 * @see IRCMessage#retain()
+	 * @see IRCClient#setReuseMessages(boolean)
+	 */
+	public IRCEvent retain()
+	{
+		return message.isReusable() ? new IRCEvent(irc, message.copy()) : this;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,572 @@
+/*
+ * IRCEventLoopGroup.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import com.mac.tarchan.irc.client.util.KanaInputFilter;
+import com.mac.tarchan.irc.client.util.VirtualThreads;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ノンブロッキングの {@link SocketChannel} で、複数のIRCクライアントの入出力をまとめて処理します。
+ * 少数のイベントループスレッドがそれぞれ {@link Selector} を持ち、
+ * 登録された接続を順番に割り当てて受信した行を {@link IRCClient#receive(byte[], int, int, long)} に渡します。
+ * 接続ごとにスレッドを使わないので、数百から数千の接続を少ないスレッドで扱えます。
+ * <p>
+ * リングバッファを使用するクライアントは、リングバッファを読み込むディスパッチのタスクを
+ * {@link #getDispatchExecutor()} で実行します。Java 21 以降では仮想スレッドなので、
+ * 接続ごとに待っているディスパッチのタスクがあってもプラットフォームスレッドは増えません。
+ * 仮想スレッドが CPU を譲れるように、待ち方には {@link IRCRingBuffer.WaitStrategy#blocking()} を指定してください。
+ * それより前の Java では接続ごとにスレッドを使うので、多数の接続ではリングバッファを使用しないでください。
+ * 
+ * <pre>
+ * IRCEventLoopGroup group = new IRCEventLoopGroup();
+ * IRCClient irc = IRCClient.createClient(handler).setEventLoopGroup(group);
+ * </pre>
+ * 
+ * @see IRCClient#setEventLoopGroup(IRCEventLoopGroup)
+ */
+public class IRCEventLoopGroup
+{
+	/** ログ */
+	private static final Logger log = Logger.getLogger(IRCEventLoopGroup.class.getName());
+
+	/** イベントループ */
+	protected final EventLoop[] loops;
+
+	/** 次に割り当てるイベントループ */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/** リングバッファを読み込むディスパッチのタスクを実行するエグゼキュータ */
+	protected final ExecutorService dispatchExecutor = VirtualThreads.newThreadPerTaskExecutor(VirtualThreads.factory("IRCRingDispatch-"));
+
+	/**
+	 * CPUのコア数と同じ数のイベントループを持つグループを構築します。
+	 * 
+	 * @throws IOException セレクタをオープンできない場合
+	 */
+	public IRCEventLoopGroup() throws IOException
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 指定された数のイベントループを持つグループを構築します。
+	 * 
+	 * @param threads イベントループの数
+	 * @throws IOException セレクタをオープンできない場合
+	 */
+	public IRCEventLoopGroup(int threads) throws IOException
+	{
+		this(threads, VirtualThreads.daemonFactory("IRCEventLoop-"));
+	}
+
+	/**
+	 * 指定された数のイベントループを、指定されたファクトリのスレッドで実行するグループを構築します。
+	 * 
+	 * @param threads イベントループの数
+	 * @param threadFactory スレッドファクトリ
+	 * @throws IOException セレクタをオープンできない場合
+	 */
+	public IRCEventLoopGroup(int threads, ThreadFactory threadFactory) throws IOException
+	{
+		if (threads <= 0) throw new IllegalArgumentException("スレッド数が不正です。: " + threads);
+
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			loops[i] = new EventLoop(Selector.open());
+			threadFactory.newThread(loops[i]).start();
+		}
+	}
+
+	/**
+	 * 指定されたチャンネルをノンブロッキングにして、いずれかのイベントループに登録します。
+	 * 
+	 * @param irc IRCクライアント
+	 * @param channel 接続済みのソケットチャンネル
+	 * @return 接続
+	 * @throws IOException チャンネルをノンブロッキングにできない場合
+	 */
+	public Connection register(IRCClient irc, SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		Connection conn = new Connection(irc, channel, loop);
+		loop.register(conn);
+		return conn;
+	}
+
+	/**
+	 * イベントループの数を返します。
+	 * 
+	 * @return イベントループの数
+	 */
+	public int getThreadCount()
+	{
+		return loops.length;
+	}
+
+	/**
+	 * 登録されている接続の数を返します。
+	 * 
+	 * @return 接続の数
+	 */
+	public int getConnectionCount()
+	{
+		int count = 0;
+		for (EventLoop loop : loops)
+		{
+			count += loop.connections.get();
+		}
+		return count;
+	}
+
+	/**
+	 * リングバッファを読み込むディスパッチのタスクを実行するエグゼキュータを返します。
+	 * Java 21 以降では、タスクごとに仮想スレッドを起動します。
+	 * 
+	 * @return エグゼキュータ
+	 * @see IRCClient#setRingBuffer(int, IRCRingBuffer.WaitStrategy)
+	 */
+	public Executor getDispatchExecutor()
+	{
+		return dispatchExecutor;
+	}
+
+	/**
+	 * すべてのイベントループを停止します。
+	 * 登録されている接続はクローズします。
+	 */
+	public void shutdown()
+	{
+		for (EventLoop loop : loops)
+		{
+			loop.running = false;
+			loop.selector.wakeup();
+		}
+		dispatchExecutor.shutdown();
+	}
+
+	/**
+	 * ひとつのセレクタで複数の接続を処理するイベントループです。
+	 */
+	protected static class EventLoop implements Runnable, Executor
+	{
+		/** セレクタ */
+		final Selector selector;
+
+		/** 登録を待っている接続 */
+		final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+
+		/** 書き込みを待っている接続 */
+		final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+		/** イベントループで実行するタスク */
+		final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		/** 接続の数 */
+		final AtomicInteger connections = new AtomicInteger();
+
+		/** 実行中かどうか */
+		volatile boolean running = true;
+
+		/**
+		 * 指定されたセレクタのイベントループを構築します。
+		 * 
+		 * @param selector セレクタ
+		 */
+		EventLoop(Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		/**
+		 * 接続の登録を依頼します。
+		 * 
+		 * @param conn 接続
+		 */
+		void register(Connection conn)
+		{
+			pending.add(conn);
+			selector.wakeup();
+		}
+
+		/**
+		 * 接続の書き込み待ちを依頼します。
+		 * 
+		 * @param conn 接続
+		 */
+		void interestWrite(Connection conn)
+		{
+			writable.add(conn);
+			selector.wakeup();
+		}
+
+		/**
+		 * 指定されたタスクをイベントループのスレッドで実行します。
+		 * 
+		 * @param task タスク
+		 */
+		@Override
+		public void execute(Runnable task)
+		{
+			if (!running) throw new RejectedExecutionException("イベントループは停止しています。");
+
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (running)
+				{
+					selector.select();
+					registerPending();
+					runTasks();
+					updateInterest();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection)key.attachment();
+						try
+						{
+							if (key.isReadable()) conn.read();
+							if (key.isValid() && key.isWritable()) conn.flush();
+						}
+						catch (CancelledKeyException ex)
+						{
+							conn.close(null);
+						}
+						catch (IOException ex)
+						{
+							conn.close(ex);
+						}
+					}
+				}
+			}
+			catch (IOException ex)
+			{
+				log.log(Level.SEVERE, "イベントループを中止しました。", ex);
+			}
+			finally
+			{
+				for (SelectionKey key : selector.keys())
+				{
+					((Connection)key.attachment()).close(null);
+				}
+				try
+				{
+					selector.close();
+				}
+				catch (IOException ex)
+				{
+					log.log(Level.WARNING, "セレクタをクローズできません。", ex);
+				}
+			}
+		}
+
+		/**
+		 * 登録を待っている接続をセレクタに登録します。
+		 */
+		private void registerPending()
+		{
+			Connection conn;
+			while ((conn = pending.poll()) != null)
+			{
+				try
+				{
+					conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+					connections.incrementAndGet();
+					conn.counted.set(true);
+					if (conn.isClosed()) conn.release();
+					conn.updateInterest();
+				}
+				catch (ClosedChannelException ex)
+				{
+					conn.close(ex);
+				}
+			}
+		}
+
+		/**
+		 * 依頼されたタスクを実行します。
+		 */
+		private void runTasks()
+		{
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+			{
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException ex)
+				{
+					log.log(Level.SEVERE, "タスクを中止しました。", ex);
+				}
+			}
+		}
+
+		/**
+		 * 書き込みを待っている接続の関心操作を更新します。
+		 */
+		private void updateInterest()
+		{
+			Connection conn;
+			while ((conn = writable.poll()) != null)
+			{
+				conn.updateInterest();
+			}
+		}
+	}
+
+	/**
+	 * イベントループに登録された接続です。
+	 */
+	public static class Connection
+	{
+		/** IRCクライアント */
+		final IRCClient irc;
+
+		/** ソケットチャンネル */
+		final SocketChannel channel;
+
+		/** イベントループ */
+		final EventLoop loop;
+
+		/** 入力バッファ */
+		final IRCInputBuffer input = new IRCInputBuffer();
+
+		/** 半角カナを修正するフィルタ */
+		final KanaInputFilter kana = new KanaInputFilter();
+
+		/** 送信できなかったデータ */
+		final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<ByteBuffer>();
+
+		/** 書き込みのロック */
+		final ReentrantLock writeLock = new ReentrantLock();
+
+		/** 出力ストリーム */
+		final OutputStream out = new ChannelOutputStream();
+
+		/** 選択キー */
+		volatile SelectionKey key;
+
+		/** クローズしたかどうか */
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		/** 接続の数に数えているかどうか */
+		final AtomicBoolean counted = new AtomicBoolean();
+
+		/**
+		 * 接続を構築します。
+		 * 
+		 * @param irc IRCクライアント
+		 * @param channel ソケットチャンネル
+		 * @param loop イベントループ
+		 */
+		Connection(IRCClient irc, SocketChannel channel, EventLoop loop)
+		{
+			this.irc = irc;
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		/**
+		 * この接続に書き込む出力ストリームを返します。
+		 * すぐに送信できなかったデータは保持しておき、書き込めるようになったときにイベントループが送信します。
+		 * 
+		 * @return 出力ストリーム
+		 */
+		public OutputStream getOutputStream()
+		{
+			return out;
+		}
+
+		/**
+		 * この接続のイベントループでタスクを実行するエグゼキュータを返します。
+		 * 
+		 * @return エグゼキュータ
+		 */
+		public Executor getExecutor()
+		{
+			return loop;
+		}
+
+		/**
+		 * 読み込めるだけ読み込んで、完全な行をIRCクライアントに渡します。
+		 * 
+		 * @throws IOException 入出力エラーが発生した場合
+		 */
+		void read() throws IOException
+		{
+			int n;
+			while ((n = input.read(channel)) > 0)
+			{
+				if (irc.isKanaFiltered()) kana.filter(input.array(), input.position() - n, n);
+				long when = System.currentTimeMillis();
+				while (input.nextLine())
+				{
+					irc.receive(input.array(), input.lineOffset(), input.lineLength(), when);
+				}
+			}
+			if (n < 0) close(null);
+		}
+
+		/**
+		 * 送信できなかったデータを書き込みます。
+		 * 
+		 * @throws IOException 入出力エラーが発生した場合
+		 */
+		void flush() throws IOException
+		{
+			writeLock.lock();
+			try
+			{
+				while (!backlog.isEmpty())
+				{
+					ByteBuffer buf = backlog.peek();
+					channel.write(buf);
+					if (buf.hasRemaining()) break;
+					backlog.poll();
+				}
+				updateInterest();
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+
+		/**
+		 * 送信できなかったデータの有無に合わせて、書き込みの関心操作を設定します。
+		 * イベントループのスレッドから呼び出します。
+		 */
+		void updateInterest()
+		{
+			SelectionKey k = key;
+			if (k == null || !k.isValid()) return;
+
+			writeLock.lock();
+			try
+			{
+				k.interestOps(backlog.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+
+		/**
+		 * 接続をクローズします。
+		 * 
+		 * @param cause クローズする原因、ない場合は null
+		 */
+		void close(IOException cause)
+		{
+			if (!closed.compareAndSet(false, true)) return;
+
+			release();
+			if (cause != null) irc.fireError(new IOException("ソケットチャンネルを読み込めません。", cause));
+			irc.disconnected();
+		}
+
+		/**
+		 * IRCクライアントがソケットをクローズしたときに、接続をイベントループから外します。
+		 * 切断の通知はクライアント自身が行うので、ここでは通知しません。
+		 */
+		public void closeLocally()
+		{
+			if (!closed.compareAndSet(false, true)) return;
+
+			release();
+		}
+
+		/**
+		 * クローズしたかどうかを返します。
+		 * 
+		 * @return クローズした場合は true
+		 */
+		boolean isClosed()
+		{
+			return closed.get();
+		}
+
+		/**
+		 * 選択キーを取り消して、接続の数から外します。
+		 * 登録とクローズが別のスレッドで重なっても、一度だけ数を減らします。
+		 */
+		void release()
+		{
+			SelectionKey k = key;
+			if (k != null) k.cancel();
+			if (counted.compareAndSet(true, false)) loop.connections.decrementAndGet();
+		}
+
+		/**
+		 * ソケットチャンネルに書き込む出力ストリームです。
+		 */
+		class ChannelOutputStream extends OutputStream
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				boolean wait = false;
+				writeLock.lock();
+				try
+				{
+					ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+					if (backlog.isEmpty()) channel.write(buf);
+					if (buf.hasRemaining())
+					{
+						ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+						copy.put(buf).flip();
+						wait = backlog.isEmpty();
+						backlog.add(copy);
+					}
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+				if (wait) loop.interestWrite(Connection.this);
+			}
+		}
+	}
+}
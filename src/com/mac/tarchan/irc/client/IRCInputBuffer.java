@@ -0,0 +1,194 @@
+/*
+ * IRCInputBuffer.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 受信したバイト列を文字コードに変換せずに行単位に区切る入力バッファです。
+ * 行の区切りは LF で、直前の CR は取り除きます。
+ * 
+ * <pre>
+ * IRCInputBuffer buf = new IRCInputBuffer();
+ * while (buf.read(in) &gt;= 0)
+ * {
+ *     while (buf.nextLine())
+ *     {
+ *         handle(buf.array(), buf.lineOffset(), buf.lineLength());
+ *     }
+ * }
+ * </pre>
+ * 
+ * @see IRCMessage#IRCMessage(byte[], int, int, java.nio.charset.Charset, String, long)
+ */
+public class IRCInputBuffer
+{
+	/** バッファの初期サイズ */
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	/** 一行の最大サイズ */
+	public static final int MAX_CAPACITY = 64 * 1024;
+
+	/** 受信バッファ (書き込みモード) */
+	protected ByteBuffer buffer;
+
+	/** 未処理データの開始位置 */
+	protected int readPos;
+
+	/** 改行の検索を再開する位置 */
+	protected int scanPos;
+
+	/** 現在の行の開始位置 */
+	protected int lineStart;
+
+	/** 現在の行の終了位置 */
+	protected int lineEnd;
+
+	/**
+	 * 初期サイズの入力バッファを構築します。
+	 */
+	public IRCInputBuffer()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * 指定されたサイズの入力バッファを構築します。
+	 * 
+	 * @param capacity バッファの初期サイズ
+	 */
+	public IRCInputBuffer(int capacity)
+	{
+		buffer = ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * 入力ストリームから読み込めるだけ読み込みます。
+	 * 
+	 * @param in 入力ストリーム
+	 * @return 読み込んだバイト数、ストリームの終わりに達した場合は -1
+	 * @throws IOException 入出力エラーが発生した場合
+	 */
+	public int read(InputStream in) throws IOException
+	{
+		prepare();
+		int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+		if (n > 0) buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	/**
+	 * チャンネルから読み込めるだけ読み込みます。
+	 * 
+	 * @param ch チャンネル
+	 * @return 読み込んだバイト数、ストリームの終わりに達した場合は -1
+	 * @throws IOException 入出力エラーが発生した場合
+	 */
+	public int read(ReadableByteChannel ch) throws IOException
+	{
+		prepare();
+		return ch.read(buffer);
+	}
+
+	/**
+	 * 処理済みのデータを捨てて、読み込む領域を確保します。
+	 * 
+	 * @throws IOException 一行が最大サイズを超えた場合
+	 */
+	protected void prepare() throws IOException
+	{
+		if (readPos > 0)
+		{
+			byte[] array = buffer.array();
+			int len = buffer.position() - readPos;
+			System.arraycopy(array, readPos, array, 0, len);
+			buffer.position(len);
+			scanPos -= readPos;
+			readPos = 0;
+		}
+		if (!buffer.hasRemaining())
+		{
+			int capacity = buffer.capacity() * 2;
+			if (capacity > MAX_CAPACITY) throw new IOException("一行が長すぎます。: " + buffer.capacity());
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+	}
+
+	/**
+	 * 次の行を探します。
+	 * 行が見つかった場合は {@link #lineOffset()} と {@link #lineLength()} がその行を指します。
+	 * 
+	 * @return 完全な行が見つかった場合は true
+	 */
+	public boolean nextLine()
+	{
+		byte[] array = buffer.array();
+		int limit = buffer.position();
+		for (int i = Math.max(scanPos, readPos); i < limit; i++)
+		{
+			if (array[i] == '\n')
+			{
+				lineStart = readPos;
+				lineEnd = i > readPos && array[i - 1] == '\r' ? i - 1 : i;
+				readPos = i + 1;
+				scanPos = readPos;
+				return true;
+			}
+		}
+		scanPos = limit;
+		return false;
+	}
+
+	/**
+	 * バッファのバイト配列を返します。
+	 * 次に読み込むまで、現在の行はこの配列の中にあります。
+	 * 
+	 * @return バイト配列
+	 */
+	public byte[] array()
+	{
+		return buffer.array();
+	}
+
+	/**
+	 * 読み込んだデータの終了位置を返します。
+	 * 直前の読み込みで n バイト読み込んだ場合、そのデータは {@code position() - n} から始まります。
+	 * 
+	 * @return 読み込んだデータの終了位置
+	 */
+	public int position()
+	{
+		return buffer.position();
+	}
+
+	/**
+	 * 現在の行の開始位置を返します。
+	 * 
+	 * @return 現在の行の開始位置
+	 */
+	public int lineOffset()
+	{
+		return lineStart;
+	}
+
+	/**
+	 * 現在の行の長さを返します。
+	 * 
+	 * @return 現在の行の長さ
+	 */
+	public int lineLength()
+	{
+		return lineEnd - lineStart;
+	}
+}
@@ -1,554 +1,1457 @@
-/*
- * IRCMessage.java
- * IRCKit
- *
- * Created by tarchan on 2008/11/27.
- * Copyright (c) 2008 tarchan. All rights reserved.
- */
-package com.mac.tarchan.irc.client;
-
-import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-/**
- * IRCメッセージを生成します。
- * 
- * @see <a href="http://www.haun.org/kent/lib/rfc1459-irc-ja.html#c2.3.1">疑似BNFによるメッセージ形式</a>
- */
-public class IRCMessage
-{
-	/** ログ */
-	private static final Logger log = Logger.getLogger(IRCMessage.class.getName());
-
-	/** CTCPメッセージの区切り文字 */
-	public static final String CTCP = "\u0001";
-
-	/** ニュメリックリプライのパターン */
-	protected Pattern NUMERIC_REPLY_PATTERN = Pattern.compile("\\d{3}");
-
-	/** オリジナルテキスト */
-	protected String text;
-
-	/** ニックネーム */
-	protected String nick;
-
-	/** メッセージの作成時間 */
-	protected long when;
-
-	/** プレフィックス */
-	protected Prefix prefix;
-
-	/** コマンド */
-	protected String command;
-
-	/** 分割前のパラメータ */
-	protected String middle;
-
-	/** パラメータ配列 */
-	protected String[] params;
-
-	/** トレーラー */
-	protected String trail;
-
-	/** 疑似BNFによるメッセージ形式 */
-//	protected static final Pattern IRC_PBNF = Pattern.compile("(?::([^ ]+) )?([^ ]+)([^:]+)(?::(.+))?");
-	protected static final Pattern IRC_PBNF = Pattern.compile("(?::([^ ]+) )?([^ ]+)(.*)");
-
-	/**
-	 * 指定されたテキストからIRCメッセージを構築します。
-	 * メッセージの作成時間は現在になります。
-	 * 
-	 * @param text テキスト
-	 * @param nick ニックネーム
-	 */
-	public IRCMessage(String text, String nick)
-	{
-		this(text, nick, System.currentTimeMillis());
-	}
-
-	/**
-	 * 指定されたテキストからIRCメッセージを構築します。
-	 * 
-	 * @param text テキスト
-	 * @param nick ニックネーム
-	 * @param when メッセージの作成時間
-	 */
-	public IRCMessage(String text, String nick, long when)
-	{
-		this.text = text;
-		this.nick = nick;
-		this.when = when;
-		parse();
-	}
-
-	/**
-	 * IRCメッセージを解析します。
-	 */
-	protected void parse()
-	{
-		Matcher prefix_m = IRC_PBNF.matcher(text);
-		if (prefix_m.find())
-		{
-			prefix = new Prefix(this, prefix_m.group(1));
-			command = prefix_m.group(2);
-			middle = prefix_m.group(3);
-			int pos = middle.indexOf(" :");
-			if (pos >= 0)
-			{
-				trail = middle.substring(pos + 2);
-				middle = middle.substring(0, pos);
-			}
-			middle = middle.trim();
-			params = middle.split(" ");
-			log.log(Level.CONFIG, "({0}):{1}/{2}/:{3}", new Object[] {command, prefix, middle, trail});
-		}
-		else
-		{
-			throw new IllegalArgumentException("メッセージ形式が不正です。: " + text);
-		}
-	}
-
-	/**
-	 * メッセージの作成時間を返します。
-	 * 
-	 * @return メッセージの作成時間
-	 */
-	public long getWhen()
-	{
-		return when;
-	}
-
-	/**
-	 * プレフィックスを返します。
-	 * 
-	 * @return プレフィックス
-	 */
-	public Prefix getPrefix()
-	{
-		return prefix;
-	}
-
-	/**
-	 * コマンドを返します。
-	 * 
-	 * @return コマンド
-	 */
-	public String getCommand()
-	{
-		return command;
-	}
-
-	/**
-	 * パラメータリストを返します。
-	 * 
-	 * @return パラメータリスト
-	 */
-	public String[] getParams()
-	{
-		return params;
-	}
-
-	/**
-	 * パラメータの数を返します。
-	 * 
-	 * @return パラメータの数
-	 */
-	public int getParamsCount()
-	{
-		return params.length;
-	}
-
-	/**
-	 * 指定されたインデックスのパラメータを返します。
-	 * 
-	 * @param index インデックス
-	 * @return 指定されたインデックスのパラメータ
-	 */
-	public String getParam(int index)
-	{
-		if (index < 0 || index >= params.length) throw new ArrayIndexOutOfBoundsException("パラメータが見つかりません。: " + index);
-		return params[index];
-	}
-
-	/**
-	 * 0番目のパラメータを返します。
-	 * 
-	 * @return 0番目のパラメータ
-	 */
-	public String getParam0()
-	{
-		return getParam(0);
-	}
-
-	/**
-	 * 1番目のパラメータを返します。
-	 * 
-	 * @return 1番目のパラメータ
-	 */
-	public String getParam1()
-	{
-		return getParam(1);
-	}
-
-	/**
-	 * 2番目のパラメータを返します。
-	 * 
-	 * @return 2番目のパラメータ
-	 */
-	public String getParam2()
-	{
-		return getParam(2);
-	}
-
-	/**
-	 * トレーラーを返します。
-	 * 
-	 * @return トレーラー
-	 */
-	public String getTrail()
-	{
-		return trail;
-	}
-
-	/**
-	 * ニュメリックリプライかどうか判定します。
-	 * 
-	 * @return ニュメリックリプライの場合は true
-	 */
-	public boolean isNumericReply()
-	{
-		return NUMERIC_REPLY_PATTERN.matcher(getCommand()).matches();
-	}
-
-	/**
-	 * ニュメリックリプライの番号を返します。
-	 * 
-	 * @return ニュメリックリプライの番号
-	 */
-	public int getNumber()
-	{
-		return Integer.valueOf(command);
-	}
-
-	/**
-	 * ダイレクトメッセージかどうか判定します。
-	 * 
-	 * @return ダイレクトメッセージの場合は true
-	 */
-	public boolean isDirectMessage()
-	{
-		return getParam0().equals(nick);
-	}
-
-	/**
-	 * CTCPメッセージかどうか判定します。
-	 * 
-	 * @return CTCPメッセージの場合は true
-	 */
-	public boolean isCTCP()
-	{
-		return trail != null && trail.contains(CTCP);
-	}
-
-	/**
-	 * CTCPメッセージを区切り文字で分割します。
-	 * 
-	 * @return CTCPメッセージの配列
-	 * @see #CTCP
-	 */
-	public String[] splitCTCP()
-	{
-		if (!isCTCP()) return null;
-
-		return trail.substring(1).split(CTCP);
-	}
-
-	/**
-	 * CTCPメッセージの配列を返します。
-	 * 
-	 * @return CTCPメッセージの配列
-	 * @see CTCP
-	 */
-	public CTCP[] toCTCPArray()
-	{
-		if (!isCTCP()) return null;
-
-		ArrayList<CTCP> list = new ArrayList<CTCP>();
-		for (String text : splitCTCP())
-		{
-			list.add(new CTCP(this, text));
-		}
-		return list.toArray(new CTCP[]{});
-	}
-
-	/**
-	 * 指定されたテキストをCTCPメッセージに変換します。
-	 * 
-	 * @param text テキスト
-	 * @return CTCPメッセージ
-	 * @see #CTCP
-	 */
-	public static String wrapCTCP(String text)
-	{
-		return String.format("%1$s%2$s%1$s", CTCP, text);
-	}
-
-	@Override
-	public String toString()
-	{
-		return text;
-	}
-
-	/**
-	 * IRCメッセージのプレフィックスを、サーバ名、ニックネーム、ユーザ名、ホスト名に分割する機能を提供します。
-	 */
-	public static class Prefix
-	{
-		/** プレフィックス形式 */
-		protected static Pattern prefixPattern = Pattern.compile("([^!]+)(!.+)?(@.+)?");
-
-		/** 親のIRCメッセージ */
-		protected IRCMessage message;
-
-		/** プレフィックス */
-		protected String prefix;
-
-		/** メッセージ作成時間 */
-		protected long when;
-
-		/** ニックネーム */
-		protected String nick;
-
-		/** ユーザ名 */
-		protected String user;
-
-		/** ホスト名 */
-		protected String host;
-
-		/**
-		 * プレフィックスを、サーバ名、ニックネーム、ユーザ名、ホスト名に分割します。
-		 * 
-		 * @param prefix プレフィックス
-		 */
-		@Deprecated
-		public Prefix(String prefix)
-		{
-			this(null, prefix);
-			this.when = System.currentTimeMillis();
-		}
-
-		/**
-		 * プレフィックスを、サーバ名、ニックネーム、ユーザ名、ホスト名に分割します。
-		 * 
-		 * @param parent IRCメッセージ
-		 * @param prefix プレフィックス
-		 */
-		public Prefix(IRCMessage parent, String prefix)
-		{
-			if (parent != null)
-			{
-				this.message = parent;
-				this.when = message.getWhen();
-			}
-			if (prefix != null)
-			{
-				this.prefix = prefix;
-				Matcher m = prefixPattern.matcher(prefix);
-				if (m.find())
-				{
-					nick = m.group(1);
-					user = m.group(2);
-					host = m.group(3);
-				}
-				else
-				{
-					throw new IllegalArgumentException("プレフィックスが不正です。: " + prefix);
-				}
-			}
-		}
-
-		/**
-		 * 親のIRCメッセージを返します。
-		 * 
-		 * @return 親のIRCメッセージ
-		 */
-		public IRCMessage getMessage()
-		{
-			return message;
-		}
-
-		/**
-		 * プレフィックスを返します。
-		 * 
-		 * @return プレフィックス
-		 */
-		public String getPrefix()
-		{
-			return prefix;
-		}
-
-		/**
-		 * メッセージの作成時間を返します。
-		 * 
-		 * @return メッセージの作成時間
-		 */
-		public long getWhen()
-		{
-			return when;
-		}
-
-		/**
-		 * サーバ名またはニックネームを返します。
-		 * 
-		 * @return サーバ名またはニックネーム
-		 */
-		public String getNick()
-		{
-			return nick;
-		}
-
-		/**
-		 * ユーザ名を返します。
-		 * 
-		 * @return ユーザ名
-		 */
-		public String getUser()
-		{
-			return user;
-		}
-
-		/**
-		 * ホスト名を返します。
-		 * 
-		 * @return ホスト名
-		 */
-		public String getHost()
-		{
-			return host;
-		}
-
-		@Override
-		public String toString()
-		{
-			return prefix;
-		}
-	}
-
-	/**
-	 * CTCPメッセージ
-	 */
-	public static class CTCP
-	{
-		/** DCCメッセージのプレフィックス */
-		public static final String DCC = "DCC";
-
-		/** CTCP PING */
-		public static final String PING = "PING";
-
-		/** CTCP TIME */
-		public static final String TIME = "TIME";
-
-		/** CTCP VERSION */
-		public static final String VERSION = "VERSION";
-
-		/** CTCP USERINFO */
-		public static final String USERINFO = "USERINFO";
-
-		/** CTCP CLIENTINFO */
-		public static final String CLIENTINFO = "CLIENTINFO";
-
-		/** CTCP ACTION */
-		public static final String ACTION = "ACTION";
-
-		/** CTCP FINGER */
-		public static final String FINGER = "FINGER";
-
-		/** CTCP DCC SEND */
-		public static final String DCC_SEND = "DCC SEND";
-
-		/** CTCP DCC CHAT */
-		public static final String DCC_CHAT = "DCC CHAT";
-
-		/** IRCメッセージ */
-		protected IRCMessage message;
-
-		/** CTCPメッセージ */
-		protected String text;
-
-		/** CTCPコマンド */
-		protected String command;
-
-		/** CTCPパラメータ */
-		protected String param;
-
-		/**
-		 * CTCPメッセージを作成します。
-		 * 
-		 * @param message IRCメッセージ
-		 * @param text CTCPメッセージ
-		 */
-		public CTCP(IRCMessage message, String text)
-		{
-			try
-			{
-				this.message = message;
-				this.text = text;
-				String[] span = text.split(" ", 2);
-				command = span[0].toUpperCase();
-				param = span.length == 2 ? span[1] : null;
-				if (command.equals(DCC))
-				{
-					span = param.split(" ", 2);
-					command = command + " " + span[0].toUpperCase();
-					param = span[1];
-				}
-			}
-			catch (Exception x)
-			{
-				throw new IllegalArgumentException("CTCPメッセージが不正です。: " + text, x);
-			}
-		}
-
-		/**
-		 * 親のIRCメッセージを返します。
-		 * 
-		 * @return 親のIRCメッセージ
-		 */
-		public IRCMessage getMessage()
-		{
-			return message;
-		}
-
-		/**
-		 * CTCPコマンドを返します。
-		 * 
-		 * @return CTCPコマンド
-		 */
-		public String getCommand()
-		{
-			return command;
-		}
-
-		/**
-		 * CTCPパラメータを返します。
-		 * 
-		 * @return CTCPパラメータ
-		 */
-		public String getParam()
-		{
-			return param;
-		}
-
-		/**
-		 * CTCPメッセージの文字列表現を返します。
-		 */
-		@Override
-		public String toString()
-		{
-			return text;
-		}
-	}
-}
+/*
+ * IRCMessage.java
+ * IRCKit
+ *
+ * Created by tarchan on 2008/11/27.
+ * Copyright (c) 2008 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import com.mac.tarchan.irc.client.util.LruCache;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * IRCメッセージを生成します。
+ * 
+ * @see <a href="http://www.haun.org/kent/lib/rfc1459-irc-ja.html#c2.3.1">疑似BNFによるメッセージ形式</a>
+ */
+public class IRCMessage
+{
+	/** ログ */
+	private static final Logger log = Logger.getLogger(IRCMessage.class.getName());
+
+	/** CTCPメッセージの区切り文字 */
+	public static final String CTCP = "\u0001";
+
+	/** タグの文字コード */
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** ニュメリックリプライの文字列 */
+	private static final String[] NUMERIC_STRINGS = new String[1000];
+
+	static
+	{
+		for (int i = 0; i < NUMERIC_STRINGS.length; i++)
+		{
+			NUMERIC_STRINGS[i] = String.valueOf(new char[] {(char)('0' + i / 100), (char)('0' + i / 10 % 10), (char)('0' + i % 10)});
+		}
+	}
+
+	/** ニュメリックリプライのパターン */
+	protected static final Pattern NUMERIC_REPLY_PATTERN = Pattern.compile("\\d{3}");
+
+	/** オリジナルテキスト */
+	protected String text;
+
+	/** オリジナルのバイト列 */
+	protected byte[] data;
+
+	/** 行の開始位置 */
+	protected int begin;
+
+	/** 行の終了位置 */
+	protected int end;
+
+	/** バイト列の文字コード */
+	protected Charset charset;
+
+	/** バイト列のデコーダ */
+	protected IRCDecoder decoder;
+
+	/** 行の先頭から続くASCII文字の終了位置、未走査の場合は -1 */
+	protected int asciiEnd = -1;
+
+	/** 行のデコーダを選択済みかどうか */
+	protected boolean selected;
+
+	/** ニックネーム */
+	protected String nick;
+
+	/** メッセージの作成時間 */
+	protected long when;
+
+	/** プレフィックス */
+	protected Prefix prefix;
+
+	/** コマンド */
+	protected String command;
+
+	/** パラメータ配列 */
+	protected String[] params;
+
+	/** トレーラー */
+	protected String trail;
+
+	/** タグの開始位置 */
+	protected int tagsStart = -1;
+
+	/** タグの終了位置 */
+	protected int tagsEnd = -1;
+
+	/** タグ */
+	protected Map<String, String> tags;
+
+	/** サーバ時間を解析済みかどうか */
+	protected boolean serverTimeParsed;
+
+	/** プレフィックスの開始位置 */
+	protected int prefixStart = -1;
+
+	/** プレフィックスの終了位置 */
+	protected int prefixEnd = -1;
+
+	/** コマンドの開始位置 */
+	protected int commandStart;
+
+	/** コマンドの終了位置 */
+	protected int commandEnd;
+
+	/** コマンドの種類 */
+	protected IRCCommand commandCode;
+
+	/** ニュメリックリプライの番号 */
+	protected int number = -1;
+
+	/** パラメータの開始位置と終了位置の組 */
+	protected int[] paramSpans;
+
+	/** パラメータの数 */
+	protected int paramCount;
+
+	/** トレーラーの開始位置 */
+	protected int trailStart = -1;
+
+	/** パラメータとトレーラーを走査済みかどうか */
+	protected boolean scanned;
+
+	/** CTCPメッセージの配列 */
+	protected String[] ctcpTexts;
+
+	/** CTCPメッセージの開始位置と終了位置の組 */
+	protected int[] ctcpSpans;
+
+	/** CTCPメッセージの数 */
+	protected int ctcpCount = -1;
+
+	/** CTCPメッセージ */
+	protected CTCP[] ctcps;
+
+	/** 行ごとに再利用するメッセージかどうか */
+	protected boolean reusable;
+
+	/**
+	 * 指定されたテキストからIRCメッセージを構築します。
+	 * メッセージの作成時間は現在になります。
+	 * 
+	 * @param text テキスト
+	 * @param nick ニックネーム
+	 */
+	public IRCMessage(String text, String nick)
+	{
+		this(text, nick, System.currentTimeMillis());
+	}
+
+	/**
+	 * 指定されたテキストからIRCメッセージを構築します。
+	 * 
+	 * @param text テキスト
+	 * @param nick ニックネーム
+	 * @param when メッセージの作成時間
+	 */
+	public IRCMessage(String text, String nick, long when)
+	{
+		this.text = text;
+		this.nick = nick;
+		this.when = when;
+		this.begin = 0;
+		this.end = text.length();
+		parse();
+	}
+
+	/**
+	 * 行ごとに再利用する空のIRCメッセージを構築します。
+	 * {@link #reset(byte[], int, int, IRCDecoder, String, long)} で内容を設定してから使用します。
+	 * 
+	 * @see #retain()
+	 */
+	protected IRCMessage()
+	{
+		this.reusable = true;
+	}
+
+	/**
+	 * 指定されたバイト列からIRCメッセージを構築します。
+	 * プレフィックス、コマンド、パラメータの区切りはバイト列のまま解析し、
+	 * 文字列はゲッターが呼び出されたときに指定された文字コードでデコードします。
+	 * バイト列はコピーしないので、このメッセージを使用している間は変更してはいけません。
+	 * 
+	 * @param data バイト列
+	 * @param offset 行の開始位置
+	 * @param length 行の長さ
+	 * @param charset 文字コード
+	 * @param nick ニックネーム
+	 * @param when メッセージの作成時間
+	 */
+	public IRCMessage(byte[] data, int offset, int length, Charset charset, String nick, long when)
+	{
+		this.data = data;
+		this.begin = offset;
+		this.end = offset + length;
+		this.charset = charset;
+		this.nick = nick;
+		this.when = when;
+		parse();
+	}
+
+	/**
+	 * 指定されたバイト列から、指定されたデコーダでデコードするIRCメッセージを構築します。
+	 * ASCII文字だけの範囲はデコーダを通さずに文字列にします。
+	 * 
+	 * @param data バイト列
+	 * @param offset 行の開始位置
+	 * @param length 行の長さ
+	 * @param decoder デコーダ
+	 * @param nick ニックネーム
+	 * @param when メッセージの作成時間
+	 * @see IRCDecoder
+	 */
+	public IRCMessage(byte[] data, int offset, int length, IRCDecoder decoder, String nick, long when)
+	{
+		this.data = data;
+		this.begin = offset;
+		this.end = offset + length;
+		this.charset = decoder.getCharset();
+		this.decoder = decoder;
+		this.nick = nick;
+		this.when = when;
+		parse();
+	}
+
+	/**
+	 * このメッセージを次の行で再利用するために、内容を置き換えます。
+	 * 解析済みの位置や切り出した文字列はすべて破棄しますが、位置を記録する配列は使い回します。
+	 * バイト列はコピーしないので、次の行を受信するまでしか有効ではありません。
+	 * 
+	 * @param data バイト列
+	 * @param offset 行の開始位置
+	 * @param length 行の長さ
+	 * @param decoder デコーダ
+	 * @param nick ニックネーム
+	 * @param when メッセージの作成時間
+	 * @see #retain()
+	 */
+	protected void reset(byte[] data, int offset, int length, IRCDecoder decoder, String nick, long when)
+	{
+		this.text = null;
+		this.data = data;
+		this.begin = offset;
+		this.end = offset + length;
+		this.charset = decoder.getCharset();
+		this.decoder = decoder;
+		asciiEnd = -1;
+		selected = false;
+		this.nick = nick;
+		this.when = when;
+		prefix = null;
+		command = null;
+		commandCode = null;
+		number = -1;
+		params = null;
+		trail = null;
+		tagsStart = -1;
+		tagsEnd = -1;
+		tags = null;
+		serverTimeParsed = false;
+		prefixStart = -1;
+		prefixEnd = -1;
+		commandStart = 0;
+		commandEnd = 0;
+		paramCount = 0;
+		trailStart = -1;
+		scanned = false;
+		ctcpTexts = null;
+		ctcpCount = -1;
+		ctcps = null;
+		parse();
+	}
+
+	/**
+	 * このメッセージの内容をコピーした、変更されないIRCメッセージを返します。
+	 * 
+	 * @return IRCメッセージのコピー
+	 */
+	public IRCMessage copy()
+	{
+		IRCMessage message;
+		if (data != null && decoder != null)
+		{
+			message = new IRCMessage(Arrays.copyOfRange(data, begin, end), 0, end - begin, decoder, nick, when);
+		}
+		else if (data != null)
+		{
+			message = new IRCMessage(Arrays.copyOfRange(data, begin, end), 0, end - begin, charset, nick, when);
+		}
+		else
+		{
+			message = new IRCMessage(text, nick, when);
+		}
+		message.serverTimeParsed = serverTimeParsed;
+		message.when = when;
+		return message;
+	}
+
+	/**
+	 * ハンドラの外で保持できるIRCメッセージを返します。
+	 * 再利用されるメッセージの場合はコピーを返し、それ以外の場合はこのメッセージを返します。
+	 * 
+	 * @return 保持できるIRCメッセージ
+	 * @see IRCClient#setReuseMessages(boolean)
+	 */
+	public IRCMessage retain()
+	{
+		return reusable ? copy() : this;
+	}
+
+	/**
+	 * 行ごとに再利用されるメッセージかどうか判定します。
+	 * 
+	 * @return 再利用されるメッセージの場合は true
+	 */
+	public boolean isReusable()
+	{
+		return reusable;
+	}
+
+	/**
+	 * IRCメッセージを解析します。
+	 * ここではプレフィックスとコマンドの位置だけを記録します。
+	 * パラメータとトレーラーは最初にアクセスされたときに走査し、
+	 * 文字列はゲッターが呼び出されたときに切り出します。
+	 * 
+	 * @see #scan()
+	 */
+	protected void parse()
+	{
+		int len = end;
+		int pos = begin;
+		if (pos < len && charAt(pos) == '@')
+		{
+			int sp = indexOf(' ', pos);
+			if (sp < 0) throw new IllegalArgumentException("メッセージ形式が不正です。: " + this);
+			tagsStart = pos + 1;
+			tagsEnd = sp;
+			pos = sp + 1;
+			while (pos < len && charAt(pos) == ' ') pos++;
+		}
+		if (pos < len && charAt(pos) == ':')
+		{
+			int sp = indexOf(' ', pos);
+			if (sp > pos + 1 && sp + 1 < len && charAt(sp + 1) != ' ')
+			{
+				prefixStart = pos + 1;
+				prefixEnd = sp;
+				pos = sp + 1;
+			}
+		}
+		while (pos < len && charAt(pos) == ' ') pos++;
+		if (pos == len) throw new IllegalArgumentException("メッセージ形式が不正です。: " + this);
+
+		commandStart = pos;
+		while (pos < len && charAt(pos) != ' ') pos++;
+		commandEnd = pos;
+		resolveCommand();
+		if (log.isLoggable(Level.CONFIG))
+		{
+			log.log(Level.CONFIG, "({0}):{1}/{2}/:{3}", new Object[] {getCommand(), getPrefix(), Arrays.toString(getParams()), getTrail()});
+		}
+	}
+
+	/**
+	 * コマンドの種類を判定します。
+	 * ニュメリックリプライは番号に変換し、定義済みのコマンドは共有の文字列を使用します。
+	 * 
+	 * @see IRCCommand
+	 */
+	protected void resolveCommand()
+	{
+		int len = commandEnd - commandStart;
+		if (len == 3)
+		{
+			int n = 0;
+			for (int i = commandStart; i < commandEnd; i++)
+			{
+				int c = charAt(i);
+				if (c < '0' || c > '9')
+				{
+					n = -1;
+					break;
+				}
+				n = n * 10 + c - '0';
+			}
+			if (n >= 0)
+			{
+				number = n;
+				commandCode = IRCCommand.NUMERIC;
+				command = NUMERIC_STRINGS[n];
+				return;
+			}
+		}
+		for (IRCCommand code : IRCCommand.startsWith(charAt(commandStart)))
+		{
+			String name = code.name();
+			if (name.length() != len) continue;
+			boolean exact = true;
+			int i = 0;
+			for (; i < len; i++)
+			{
+				int c = charAt(commandStart + i);
+				char u = name.charAt(i);
+				if (c == u) continue;
+				if (c - ('a' - 'A') != u) break;
+				exact = false;
+			}
+			if (i < len) continue;
+			commandCode = code;
+			if (exact) command = name;
+			return;
+		}
+		commandCode = IRCCommand.UNKNOWN;
+	}
+
+	/**
+	 * コマンドより後ろのパラメータとトレーラーを走査します。
+	 * 二回目以降の呼び出しでは何もしません。
+	 */
+	protected void scan()
+	{
+		if (scanned) return;
+
+		int middleEnd = end;
+		int colon = indexOf(' ', commandEnd);
+		while (colon >= 0 && (colon + 1 == end || charAt(colon + 1) != ':'))
+		{
+			colon = indexOf(' ', colon + 1);
+		}
+		if (colon >= 0)
+		{
+			trailStart = colon + 2;
+			middleEnd = colon;
+		}
+		scanParams(commandEnd, middleEnd);
+		scanned = true;
+	}
+
+	/**
+	 * 指定された範囲を空白で区切ってパラメータの位置を記録します。
+	 * 前後の空白は取り除きます。
+	 * 
+	 * @param start 開始位置
+	 * @param end 終了位置
+	 */
+	private void scanParams(int start, int end)
+	{
+		while (start < end && charAt(start) <= ' ') start++;
+		while (end > start && charAt(end - 1) <= ' ') end--;
+
+		if (paramSpans == null) paramSpans = new int[8];
+		paramCount = 0;
+		int from = start;
+		for (int i = start; i < end; i++)
+		{
+			if (charAt(i) == ' ')
+			{
+				addParam(from, i);
+				from = i + 1;
+			}
+		}
+		addParam(from, end);
+	}
+
+	/**
+	 * 指定された位置の文字を返します。
+	 * バイト列から構築した場合は、符号なしのバイト値を返します。
+	 * 
+	 * @param index 位置
+	 * @return 文字
+	 */
+	protected int charAt(int index)
+	{
+		return data != null ? data[index] & 0xff : text.charAt(index);
+	}
+
+	/**
+	 * 指定された文字を行末まで検索します。
+	 * 
+	 * @param c 文字
+	 * @param from 検索の開始位置
+	 * @return 見つかった位置、見つからない場合は -1
+	 */
+	protected int indexOf(int c, int from)
+	{
+		for (int i = from; i < end; i++)
+		{
+			if (charAt(i) == c) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 指定された範囲の文字列を返します。
+	 * バイト列から構築した場合は、ここで初めてデコードします。
+	 * 
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return 文字列
+	 */
+	protected String substring(int from, int to)
+	{
+		if (data == null) return text.substring(from, to);
+		if (decoder == null) return new String(data, from, to - from, charset);
+
+		if (decoder.isAsciiFastPath())
+		{
+			if (asciiEnd < 0) asciiEnd = IRCDecoder.indexOfNonAscii(data, begin, end);
+			if (to <= asciiEnd) return decoder.decodeAscii(data, from, to - from);
+			selectDecoder();
+		}
+		return decoder.decodeText(data, from, to - from);
+	}
+
+	/**
+	 * 行の文字コードに合ったデコーダを選択します。
+	 * 行ごとに文字コードを判定するデコーダの場合は、ここで初めて判定します。
+	 * 
+	 * @see IRCDecoder#select(IRCMessage)
+	 */
+	private void selectDecoder()
+	{
+		if (selected) return;
+
+		selected = true;
+		decoder = decoder.select(this);
+		charset = decoder.getCharset();
+	}
+
+	/**
+	 * 指定された範囲の文字列を、指定された文字コードでデコードして返します。
+	 * 
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @param cs 文字コード
+	 * @return 文字列
+	 */
+	protected String substring(int from, int to, Charset cs)
+	{
+		return data != null ? new String(data, from, to - from, cs) : text.substring(from, to);
+	}
+
+	/**
+	 * パラメータの位置を追加します。
+	 * 
+	 * @param start 開始位置
+	 * @param end 終了位置
+	 */
+	private void addParam(int start, int end)
+	{
+		int n = paramCount * 2;
+		if (n == paramSpans.length) paramSpans = Arrays.copyOf(paramSpans, n * 2);
+		paramSpans[n] = start;
+		paramSpans[n + 1] = end;
+		paramCount++;
+	}
+
+	/**
+	 * メッセージの作成時間を返します。
+	 * サーバが time タグを付けている場合は、その時間を返します。
+	 * 
+	 * @return メッセージの作成時間
+	 * @see <a href="https://ircv3.net/specs/extensions/server-time">IRCv3 server-time</a>
+	 */
+	public long getWhen()
+	{
+		if (!serverTimeParsed)
+		{
+			serverTimeParsed = true;
+			String time = getTag("time");
+			if (time != null)
+			{
+				try
+				{
+					when = Instant.parse(time).toEpochMilli();
+				}
+				catch (DateTimeParseException x)
+				{
+					log.log(Level.WARNING, "サーバ時間が不正です。: {0}", time);
+				}
+			}
+		}
+		return when;
+	}
+
+	/**
+	 * タグが付いているかどうか判定します。
+	 * 
+	 * @return タグが付いている場合は true
+	 * @see <a href="https://ircv3.net/specs/extensions/message-tags">IRCv3 Message Tags</a>
+	 */
+	public boolean hasTags()
+	{
+		return tagsStart >= 0;
+	}
+
+	/**
+	 * エスケープを解除する前のタグを返します。
+	 * 
+	 * @return タグ、タグがない場合は null
+	 */
+	public String getRawTags()
+	{
+		return tagsStart >= 0 ? substring(tagsStart, tagsEnd, UTF_8) : null;
+	}
+
+	/**
+	 * 指定されたキーのタグの値を返します。
+	 * 値のないタグは空文字列になります。
+	 * 
+	 * @param key キー
+	 * @return タグの値、タグがない場合は null
+	 */
+	public String getTag(String key)
+	{
+		return tagsStart >= 0 ? getTags().get(key) : null;
+	}
+
+	/**
+	 * すべてのタグを返します。
+	 * タグは最初に呼び出されたときに分割してエスケープを解除します。
+	 * 
+	 * @return タグのマップ
+	 */
+	public Map<String, String> getTags()
+	{
+		if (tags == null)
+		{
+			if (tagsStart < 0)
+			{
+				tags = Collections.emptyMap();
+			}
+			else
+			{
+				Map<String, String> map = new HashMap<String, String>();
+				int from = tagsStart;
+				while (from < tagsEnd)
+				{
+					int to = from;
+					while (to < tagsEnd && charAt(to) != ';') to++;
+					int eq = from;
+					while (eq < to && charAt(eq) != '=') eq++;
+					if (eq > from)
+					{
+						String value = eq < to ? unescapeTag(substring(eq + 1, to, UTF_8)) : "";
+						map.put(substring(from, eq, UTF_8), value);
+					}
+					from = to + 1;
+				}
+				tags = Collections.unmodifiableMap(map);
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * タグの値のエスケープを解除します。
+	 * 
+	 * @param value タグの値
+	 * @return エスケープを解除した値
+	 */
+	protected static String unescapeTag(String value)
+	{
+		int esc = value.indexOf('\\');
+		if (esc < 0) return value;
+
+		StringBuilder buf = new StringBuilder(value.length());
+		buf.append(value, 0, esc);
+		for (int i = esc; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c != '\\')
+			{
+				buf.append(c);
+				continue;
+			}
+			if (++i == value.length()) break;
+			c = value.charAt(i);
+			switch (c)
+			{
+				case ':': buf.append(';'); break;
+				case 's': buf.append(' '); break;
+				case 'r': buf.append('\r'); break;
+				case 'n': buf.append('\n'); break;
+				default: buf.append(c); break;
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * プレフィックスを返します。
+	 * 
+	 * @return プレフィックス
+	 */
+	public Prefix getPrefix()
+	{
+		if (prefix == null)
+		{
+			if (prefixStart < 0)
+			{
+				prefix = new Prefix(this, (String)null);
+			}
+			else
+			{
+				String raw = substring(prefixStart, prefixEnd);
+				Prefix shared = Prefix.intern(raw);
+				prefix = shared != null ? new Prefix(this, shared) : new Prefix(this, raw);
+			}
+		}
+		return prefix;
+	}
+
+	/**
+	 * コマンドを返します。
+	 * 
+	 * @return コマンド
+	 */
+	public String getCommand()
+	{
+		if (command == null) command = substring(commandStart, commandEnd);
+		return command;
+	}
+
+	/**
+	 * コマンドの種類を返します。
+	 * 
+	 * @return コマンドの種類
+	 */
+	public IRCCommand getCommandCode()
+	{
+		return commandCode;
+	}
+
+	/**
+	 * パラメータリストを返します。
+	 * 
+	 * @return パラメータリスト
+	 */
+	public String[] getParams()
+	{
+		scan();
+		for (int i = 0; i < paramCount; i++)
+		{
+			getParam(i);
+		}
+		return params;
+	}
+
+	/**
+	 * パラメータの数を返します。
+	 * 
+	 * @return パラメータの数
+	 */
+	public int getParamsCount()
+	{
+		scan();
+		return paramCount;
+	}
+
+	/**
+	 * 指定されたインデックスのパラメータを返します。
+	 * 
+	 * @param index インデックス
+	 * @return 指定されたインデックスのパラメータ
+	 */
+	public String getParam(int index)
+	{
+		scan();
+		if (index < 0 || index >= paramCount) throw new ArrayIndexOutOfBoundsException("パラメータが見つかりません。: " + index);
+		if (params == null) params = new String[paramCount];
+		if (params[index] == null) params[index] = substring(paramSpans[index * 2], paramSpans[index * 2 + 1]);
+		return params[index];
+	}
+
+	/**
+	 * 0番目のパラメータを返します。
+	 * 
+	 * @return 0番目のパラメータ
+	 */
+	public String getParam0()
+	{
+		return getParam(0);
+	}
+
+	/**
+	 * 1番目のパラメータを返します。
+	 * 
+	 * @return 1番目のパラメータ
+	 */
+	public String getParam1()
+	{
+		return getParam(1);
+	}
+
+	/**
+	 * 2番目のパラメータを返します。
+	 * 
+	 * @return 2番目のパラメータ
+	 */
+	public String getParam2()
+	{
+		return getParam(2);
+	}
+
+	/**
+	 * トレーラーを返します。
+	 * 
+	 * @return トレーラー
+	 */
+	public String getTrail()
+	{
+		scan();
+		if (trail == null && trailStart >= 0) trail = substring(trailStart, end);
+		return trail;
+	}
+
+	/**
+	 * ニュメリックリプライかどうか判定します。
+	 * 
+	 * @return ニュメリックリプライの場合は true
+	 */
+	public boolean isNumericReply()
+	{
+		return number >= 0;
+	}
+
+	/**
+	 * ニュメリックリプライの番号を返します。
+	 * 
+	 * @return ニュメリックリプライの番号
+	 * @throws NumberFormatException ニュメリックリプライではない場合
+	 */
+	public int getNumber()
+	{
+		return number >= 0 ? number : Integer.valueOf(getCommand());
+	}
+
+	/**
+	 * ダイレクトメッセージかどうか判定します。
+	 * 
+	 * @return ダイレクトメッセージの場合は true
+	 */
+	public boolean isDirectMessage()
+	{
+		return getParam0().equals(nick);
+	}
+
+	/**
+	 * CTCPメッセージかどうか判定します。
+	 * 
+	 * @return CTCPメッセージの場合は true
+	 */
+	public boolean isCTCP()
+	{
+		scan();
+		return trailStart >= 0 && indexOf(CTCP.charAt(0), trailStart) >= 0;
+	}
+
+	/**
+	 * CTCPメッセージを区切り文字で分割します。
+	 * 分割した結果は保持されます。
+	 * 
+	 * @return CTCPメッセージの配列
+	 * @see #CTCP
+	 */
+	public String[] splitCTCP()
+	{
+		if (!isCTCP()) return null;
+
+		if (ctcpTexts == null)
+		{
+			int count = getCTCPCount();
+			String[] texts = new String[count];
+			for (int i = 0; i < count; i++)
+			{
+				texts[i] = substring(ctcpSpans[i * 2], ctcpSpans[i * 2 + 1]);
+			}
+			ctcpTexts = texts;
+		}
+		return ctcpTexts;
+	}
+
+	/**
+	 * トレーラーを区切り文字で分割した位置を記録します。
+	 * 文字列は作成しません。
+	 * 
+	 * @see #splitCTCP()
+	 */
+	protected void scanCTCP()
+	{
+		if (ctcpCount >= 0) return;
+
+		int[] spans = ctcpSpans != null ? ctcpSpans : new int[4];
+		int count = 0;
+		int from = trailStart + 1;
+		int last = 0;
+		if (from <= end)
+		{
+			for (int i = from; i <= end; i++)
+			{
+				if (i < end && charAt(i) != CTCP.charAt(0)) continue;
+				if (count * 2 == spans.length) spans = Arrays.copyOf(spans, spans.length * 2);
+				spans[count * 2] = from;
+				spans[count * 2 + 1] = i;
+				count++;
+				if (i > from) last = count;
+				from = i + 1;
+			}
+			// String.split と同じく末尾の空の要素は取り除く
+			if (end > trailStart + 1) count = last;
+		}
+		ctcpSpans = spans;
+		ctcpCount = count;
+	}
+
+	/**
+	 * CTCPメッセージの数を返します。
+	 * 
+	 * @return CTCPメッセージの数、CTCPメッセージではない場合は 0
+	 */
+	public int getCTCPCount()
+	{
+		if (!isCTCP()) return 0;
+
+		scanCTCP();
+		return ctcpCount;
+	}
+
+	/**
+	 * 指定されたインデックスのCTCPメッセージを返します。
+	 * CTCPメッセージはトレーラーの中の位置だけを持ち、文字列は必要になったときに切り出します。
+	 * 
+	 * @param index インデックス
+	 * @return CTCPメッセージ
+	 */
+	public CTCP getCTCP(int index)
+	{
+		if (index < 0 || index >= getCTCPCount()) throw new ArrayIndexOutOfBoundsException("CTCPメッセージが見つかりません。: " + index);
+		return toCTCPArray()[index];
+	}
+
+	/**
+	 * CTCPメッセージの配列を返します。
+	 * 変換した結果は保持されます。
+	 * 
+	 * @return CTCPメッセージの配列
+	 * @see CTCP
+	 */
+	public CTCP[] toCTCPArray()
+	{
+		if (!isCTCP()) return null;
+
+		if (ctcps == null)
+		{
+			int count = getCTCPCount();
+			CTCP[] array = new CTCP[count];
+			for (int i = 0; i < count; i++)
+			{
+				array[i] = new CTCP(this, ctcpSpans[i * 2], ctcpSpans[i * 2 + 1]);
+			}
+			ctcps = array;
+		}
+		return ctcps;
+	}
+
+	/**
+	 * 指定されたテキストをCTCPメッセージに変換します。
+	 * 
+	 * @param text テキスト
+	 * @return CTCPメッセージ
+	 * @see #CTCP
+	 */
+	public static String wrapCTCP(String text)
+	{
+		return CTCP + text + CTCP;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (text == null) text = substring(begin, end);
+		return text;
+	}
+
+	/**
+	 * IRCメッセージのプレフィックスを、サーバ名、ニックネーム、ユーザ名、ホスト名に分割する機能を提供します。
+	 */
+	public static class Prefix
+	{
+		/**
+		 * 分割済みのプレフィックスのキャッシュ
+		 * 最大の要素数はシステムプロパティ com.mac.tarchan.irc.prefixCacheSize で指定できます。
+		 */
+		public static final LruCache<String, Prefix> cache = new LruCache<String, Prefix>(Integer.getInteger("com.mac.tarchan.irc.prefixCacheSize", 4096));
+
+		/** 親のIRCメッセージ */
+		protected IRCMessage message;
+
+		/** プレフィックス */
+		protected String prefix;
+
+		/** メッセージ作成時間 */
+		protected long when;
+
+		/** ニックネーム */
+		protected String nick;
+
+		/** ユーザ名 */
+		protected String user;
+
+		/** ホスト名 */
+		protected String host;
+
+		/** 分割済みかどうか */
+		protected boolean split;
+
+		/**
+		 * プレフィックスを、サーバ名、ニックネーム、ユーザ名、ホスト名に分割します。
+		 * 
+		 * @param prefix プレフィックス
+		 */
+		@Deprecated
+		public Prefix(String prefix)
+		{
+			this(null, prefix);
+			this.when = System.currentTimeMillis();
+		}
+
+		/**
+		 * プレフィックスを、サーバ名、ニックネーム、ユーザ名、ホスト名に分割します。
+		 * 
+		 * @param parent IRCメッセージ
+		 * @param prefix プレフィックス
+		 */
+		public Prefix(IRCMessage parent, String prefix)
+		{
+			this.message = parent;
+			this.prefix = prefix;
+		}
+
+		/**
+		 * 共有のプレフィックスから、指定されたIRCメッセージのプレフィックスを構築します。
+		 * 分割済みの文字列をそのまま共有するので、解析も文字列の生成も行いません。
+		 * 
+		 * @param parent IRCメッセージ
+		 * @param shared 共有のプレフィックス
+		 * @see #intern(String)
+		 */
+		protected Prefix(IRCMessage parent, Prefix shared)
+		{
+			this.message = parent;
+			this.prefix = shared.prefix;
+			this.nick = shared.nick;
+			this.user = shared.user;
+			this.host = shared.host;
+			this.split = true;
+		}
+
+		/**
+		 * 指定されたプレフィックスを分割した共有のインスタンスを返します。
+		 * 最近使われたプレフィックスはキャッシュから返します。
+		 * 共有のインスタンスは変更されず、親のIRCメッセージを持ちません。
+		 * 
+		 * @param prefix プレフィックス
+		 * @return 共有のプレフィックス、プレフィックスが不正な場合は null
+		 * @see #cache
+		 */
+		public static Prefix intern(String prefix)
+		{
+			Prefix shared = cache.get(prefix);
+			if (shared == null)
+			{
+				shared = new Prefix(null, prefix);
+				try
+				{
+					shared.split();
+				}
+				catch (IllegalArgumentException x)
+				{
+					return null;
+				}
+				cache.put(prefix, shared);
+			}
+			return shared;
+		}
+
+		/**
+		 * プレフィックスを「nick!user@host」の形式で分割します。
+		 * 最初に名前を参照したときに一度だけ呼び出されます。
+		 */
+		protected void split()
+		{
+			if (split || prefix == null) return;
+
+			int len = prefix.length();
+			int at = prefix.indexOf('@');
+			int ex = prefix.indexOf('!');
+			if (at < 0) at = len;
+			if (ex < 0 || ex > at) ex = at;
+			if (ex == 0) throw new IllegalArgumentException("プレフィックスが不正です。: " + prefix);
+
+			nick = prefix.substring(0, ex);
+			user = ex < at ? prefix.substring(ex + 1, at) : null;
+			host = at < len ? prefix.substring(at + 1) : null;
+			split = true;
+		}
+
+		/**
+		 * 親のIRCメッセージを返します。
+		 * 
+		 * @return 親のIRCメッセージ
+		 */
+		public IRCMessage getMessage()
+		{
+			return message;
+		}
+
+		/**
+		 * プレフィックスを返します。
+		 * 
+		 * @return プレフィックス
+		 */
+		public String getPrefix()
+		{
+			return prefix;
+		}
+
+		/**
+		 * メッセージの作成時間を返します。
+		 * 
+		 * @return メッセージの作成時間
+		 */
+		public long getWhen()
+		{
+			return message != null ? message.getWhen() : when;
+		}
+
+		/**
+		 * サーバ名またはニックネームを返します。
+		 * 
+		 * @return サーバ名またはニックネーム
+		 */
+		public String getNick()
+		{
+			split();
+			return nick;
+		}
+
+		/**
+		 * ユーザ名を返します。
+		 * 
+		 * @return ユーザ名
+		 */
+		public String getUser()
+		{
+			split();
+			return user;
+		}
+
+		/**
+		 * ホスト名を返します。
+		 * 
+		 * @return ホスト名
+		 */
+		public String getHost()
+		{
+			split();
+			return host;
+		}
+
+		@Override
+		public String toString()
+		{
+			return prefix;
+		}
+	}
+
+	/**
+	 * CTCPメッセージ
+	 */
+	public static class CTCP
+	{
+		/** DCCメッセージのプレフィックス */
+		public static final String DCC = "DCC";
+
+		/** CTCP PING */
+		public static final String PING = "PING";
+
+		/** CTCP TIME */
+		public static final String TIME = "TIME";
+
+		/** CTCP VERSION */
+		public static final String VERSION = "VERSION";
+
+		/** CTCP USERINFO */
+		public static final String USERINFO = "USERINFO";
+
+		/** CTCP CLIENTINFO */
+		public static final String CLIENTINFO = "CLIENTINFO";
+
+		/** CTCP ACTION */
+		public static final String ACTION = "ACTION";
+
+		/** CTCP FINGER */
+		public static final String FINGER = "FINGER";
+
+		/** CTCP DCC SEND */
+		public static final String DCC_SEND = "DCC SEND";
+
+		/** CTCP DCC CHAT */
+		public static final String DCC_CHAT = "DCC CHAT";
+
+		/** CTCP DCC RESUME */
+		public static final String DCC_RESUME = "DCC RESUME";
+
+		/** CTCP DCC ACCEPT */
+		public static final String DCC_ACCEPT = "DCC ACCEPT";
+
+		/** 共有のCTCPコマンド */
+		private static final String[] COMMANDS = {PING, TIME, VERSION, USERINFO, CLIENTINFO, ACTION, FINGER};
+
+		/** 共有のDCCコマンド */
+		private static final String[] DCC_COMMANDS = {DCC_SEND, DCC_CHAT, DCC_RESUME, DCC_ACCEPT};
+
+		/** IRCメッセージ */
+		protected IRCMessage message;
+
+		/** CTCPメッセージ */
+		protected String text;
+
+		/** CTCPコマンド */
+		protected String command;
+
+		/** CTCPパラメータ */
+		protected String param;
+
+		/** CTCPメッセージの開始位置 */
+		protected int start;
+
+		/** CTCPメッセージの終了位置 */
+		protected int end;
+
+		/** CTCPコマンドの終了位置 */
+		protected int commandEnd;
+
+		/** DCCコマンドの開始位置 */
+		protected int dccStart = -1;
+
+		/** CTCPパラメータの開始位置 */
+		protected int paramStart = -1;
+
+		/**
+		 * CTCPメッセージを作成します。
+		 * 
+		 * @param message IRCメッセージ
+		 * @param text CTCPメッセージ
+		 */
+		public CTCP(IRCMessage message, String text)
+		{
+			this.message = message;
+			this.text = text;
+			this.start = 0;
+			this.end = text.length();
+			parse();
+		}
+
+		/**
+		 * IRCメッセージのトレーラーの一部を指すCTCPメッセージを作成します。
+		 * 
+		 * @param message IRCメッセージ
+		 * @param start CTCPメッセージの開始位置
+		 * @param end CTCPメッセージの終了位置
+		 */
+		protected CTCP(IRCMessage message, int start, int end)
+		{
+			this.message = message;
+			this.start = start;
+			this.end = end;
+			parse();
+		}
+
+		/**
+		 * CTCPコマンドとCTCPパラメータの位置を記録します。
+		 * DCCメッセージの場合は、DCCコマンドまでをCTCPコマンドとします。
+		 */
+		protected void parse()
+		{
+			commandEnd = indexOf(' ', start);
+			if (commandEnd < 0)
+			{
+				commandEnd = end;
+			}
+			else
+			{
+				paramStart = commandEnd + 1;
+			}
+			if (matches(start, commandEnd, DCC))
+			{
+				if (paramStart < 0) throw new IllegalArgumentException("CTCPメッセージが不正です。: " + this);
+				int sp = indexOf(' ', paramStart);
+				if (sp < 0) throw new IllegalArgumentException("CTCPメッセージが不正です。: " + this);
+				dccStart = paramStart;
+				commandEnd = sp;
+				paramStart = sp + 1;
+			}
+		}
+
+		/**
+		 * 指定された位置の文字を返します。
+		 * 
+		 * @param index 位置
+		 * @return 文字
+		 */
+		private int charAt(int index)
+		{
+			return text != null ? text.charAt(index) : message.charAt(index);
+		}
+
+		/**
+		 * 指定された文字を終了位置まで検索します。
+		 * 
+		 * @param c 文字
+		 * @param from 検索の開始位置
+		 * @return 見つかった位置、見つからない場合は -1
+		 */
+		private int indexOf(int c, int from)
+		{
+			for (int i = from; i < end; i++)
+			{
+				if (charAt(i) == c) return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * 指定された範囲の文字列を返します。
+		 * 
+		 * @param from 開始位置
+		 * @param to 終了位置
+		 * @return 文字列
+		 */
+		private String substring(int from, int to)
+		{
+			return text != null ? text.substring(from, to) : message.substring(from, to);
+		}
+
+		/**
+		 * 指定された範囲が、大文字と小文字を区別せずに指定された文字列と一致するかどうか判定します。
+		 * 
+		 * @param from 開始位置
+		 * @param to 終了位置
+		 * @param name 文字列
+		 * @return 一致する場合は true
+		 */
+		private boolean matches(int from, int to, String name)
+		{
+			if (to - from != name.length()) return false;
+			for (int i = 0; i < name.length(); i++)
+			{
+				int c = charAt(from + i);
+				if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+				if (c != name.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * 指定されたCTCPコマンドかどうか判定します。
+		 * 文字列を作成せずに、大文字と小文字を区別しないで比較します。
+		 * 
+		 * @param name CTCPコマンド
+		 * @return 指定されたCTCPコマンドの場合は true
+		 */
+		public boolean isCommand(String name)
+		{
+			if (dccStart < 0) return matches(start, commandEnd, name);
+
+			return name.length() == commandEnd - start && name.startsWith(DCC + " ") && matches(dccStart, commandEnd, name.substring(DCC.length() + 1));
+		}
+
+		/**
+		 * 親のIRCメッセージを返します。
+		 * 
+		 * @return 親のIRCメッセージ
+		 */
+		public IRCMessage getMessage()
+		{
+			return message;
+		}
+
+		/**
+		 * CTCPコマンドを返します。
+		 * 
+		 * @return CTCPコマンド
+		 */
+		public String getCommand()
+		{
+			if (command == null)
+			{
+				for (String name : dccStart < 0 ? COMMANDS : DCC_COMMANDS)
+				{
+					if (isCommand(name))
+					{
+						command = name;
+						return command;
+					}
+				}
+				if (dccStart < 0)
+				{
+					command = substring(start, commandEnd).toUpperCase();
+				}
+				else
+				{
+					command = DCC + " " + substring(dccStart, commandEnd).toUpperCase();
+				}
+			}
+			return command;
+		}
+
+		/**
+		 * CTCPパラメータを返します。
+		 * 
+		 * @return CTCPパラメータ
+		 */
+		public String getParam()
+		{
+			if (param == null && paramStart >= 0) param = substring(paramStart, end);
+			return param;
+		}
+
+		/**
+		 * CTCPメッセージの文字列表現を返します。
+		 */
+		@Override
+		public String toString()
+		{
+			if (text == null) return substring(start, end);
+			return text.substring(start, end);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * IRCMessageSplitter.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 長いテキストを、サーバが切り捨てない長さの PRIVMSG と NOTICE に分割します。
+ * サーバは「:nick!user@host PRIVMSG #channel :text」と送信者のプレフィックスを付けて中継するので、
+ * プレフィックスも含めて {@link IRCOutputBuffer#MAX_LINE_LENGTH} バイトに収まるようにテキストを分割します。
+ * <p>
+ * テキストは接続の文字コードで1回だけエンコードして、文字ごとの終了位置とシフト状態を記録し、
+ * 1行に収まる最も後ろの文字の境界で分割します。
+ * マルチバイト文字と JIS のエスケープシーケンスの途中では分割しません。
+ * JIS の場合、2行目以降は送信するときに先頭で前の行のシフト状態に戻し、行末で ASCII に戻すので、
+ * そのバイト数も含めて1行に収めます。
+ * 
+ * <pre>
+ * IRCMessageSplitter splitter = new IRCMessageSplitter(charset);
+ * int budget = splitter.budget(IRCMessageSplitter.prefixLength(nick, userHost), "PRIVMSG", "#channel");
+ * for (String chunk : splitter.split(text, budget)) irc.privmsg("#channel", chunk);
+ * </pre>
+ * 
+ * @see IRCClient#privmsg(String, String)
+ * @see IRCClient#notice(String, String)
+ */
+public class IRCMessageSplitter
+{
+	/** ユーザ名の最大の長さ (USERLEN) */
+	public static final int MAX_USER_LENGTH = 10;
+
+	/** ホスト名の最大の長さ */
+	public static final int MAX_HOST_LENGTH = 63;
+
+	/** エスケープコード */
+	private static final byte ESC = 0x1b;
+
+	/** ASCII に戻すエスケープシーケンスのバイト数「[ESC] ( B」 */
+	private static final int RESET_LENGTH = 3;
+
+	/** 文字コード */
+	protected final Charset charset;
+
+	/** エンコーダ */
+	protected final CharsetEncoder encoder;
+
+	/** エンコーダのロック */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/** 1文字あたりの最大バイト数 */
+	protected final float maxBytesPerChar;
+
+	/**
+	 * 指定された文字コードでテキストを分割する分割器を構築します。
+	 * 
+	 * @param charset 文字コード
+	 */
+	public IRCMessageSplitter(Charset charset)
+	{
+		this.charset = charset;
+		encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		maxBytesPerChar = encoder.maxBytesPerChar();
+	}
+
+	/**
+	 * 文字コードを返します。
+	 * 
+	 * @return 文字コード
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * サーバが中継するときに付ける「:nick!user@host 」のバイト数を返します。
+	 * ユーザ名とホスト名が分からない場合は、最も長い場合のバイト数を返します。
+	 * 
+	 * @param nick ニックネーム
+	 * @param userHost 「user@host」、分からない場合は null
+	 * @return バイト数
+	 */
+	public static int prefixLength(String nick, String userHost)
+	{
+		int length = 1 + (nick != null ? nick.length() : 0) + 1;
+		length += userHost != null ? userHost.length() : 1 + MAX_USER_LENGTH + 1 + MAX_HOST_LENGTH;
+		return length + 1;
+	}
+
+	/**
+	 * 指定されたコマンドとターゲットの行で、テキストに使用できるバイト数を返します。
+	 * 
+	 * @param prefixLength サーバが付けるプレフィックスのバイト数
+	 * @param command コマンド
+	 * @param target チャンネル名またはニックネーム
+	 * @return バイト数
+	 * @see #prefixLength(String, String)
+	 */
+	public int budget(int prefixLength, String command, String target)
+	{
+		int header = command.length() + 1 + target.getBytes(charset).length + 2;
+		return IRCOutputBuffer.MAX_LINE_LENGTH - 2 - prefixLength - header;
+	}
+
+	/**
+	 * 指定されたテキストを、それぞれ指定されたバイト数に収まるように分割します。
+	 * 1文字も収まらない場合は、1文字ずつ分割します。
+	 * 
+	 * @param text テキスト
+	 * @param budget 1行のテキストに使用できるバイト数
+	 * @return 分割したテキスト
+	 */
+	public List<String> split(String text, int budget)
+	{
+		if (text.length() * maxBytesPerChar + RESET_LENGTH <= budget) return Collections.singletonList(text);
+
+		Encoded encoded = encode(text);
+		int count = encoded.count;
+		int[] ends = encoded.ends;
+		List<String> chunks = new ArrayList<String>();
+		int a = 0;
+		while (a < count)
+		{
+			int start = ends[a] - encoded.startShift(a);
+			int b = encoded.search(start + budget, a + 1);
+			while (b > a + 1 && ends[b] - start + (encoded.shifts[b] > 0 ? RESET_LENGTH : 0) > budget) b--;
+			if (b <= a) b = a + 1;
+			chunks.add(text.substring(encoded.index[a], encoded.index[b]));
+			a = b;
+		}
+		return chunks;
+	}
+
+	/**
+	 * テキストを1回だけエンコードして、文字ごとの終了位置とシフト状態を記録します。
+	 * 
+	 * @param text テキスト
+	 * @return エンコードした結果
+	 */
+	protected Encoded encode(String text)
+	{
+		lock.lock();
+		try
+		{
+			int len = text.length();
+			Encoded encoded = new Encoded(len);
+			ByteBuffer out = ByteBuffer.allocate((int)Math.ceil(len * maxBytesPerChar) + 16);
+			CharBuffer in = CharBuffer.wrap(text);
+			encoder.reset();
+			int shift = 0;
+			int count = 0;
+			int i = 0;
+			while (i < len)
+			{
+				int from = out.position();
+				int cp = text.codePointAt(i);
+				if (Character.isSurrogate(text.charAt(i)) && Character.charCount(cp) == 1)
+				{
+					// 対になっていないサロゲートは、エンコーダと同じように置き換えのバイト列をそのまま書き込む
+					out.put(encoder.replacement());
+					i++;
+				}
+				else
+				{
+					in.limit(i + Character.charCount(cp));
+					in.position(i);
+					encoder.encode(in, out, false);
+					i = in.position();
+				}
+				shift = shiftOf(out.array(), from, out.position(), shift);
+				count++;
+				encoded.ends[count] = out.position();
+				encoded.index[count] = i;
+				encoded.shifts[count] = shift;
+			}
+			encoded.count = count;
+			encoded.data = out.array();
+			return encoded;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 指定された範囲のエスケープシーケンスから、範囲の後のシフト状態を返します。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @param shift 範囲の前のシフト状態
+	 * @return シフト状態に戻すエスケープシーケンスのバイト数、ASCII の場合は 0
+	 */
+	private static int shiftOf(byte[] data, int from, int to, int shift)
+	{
+		for (int i = from; i < to; i++)
+		{
+			if (data[i] != ESC || i + 2 >= to) continue;
+
+			int end = i + 1;
+			while (end < to && data[end] >= 0x20 && data[end] <= 0x2f) end++;
+			if (end >= to) break;
+			shift = isReset(data, i) ? 0 : end + 1 - i;
+			i = end;
+		}
+		return shift;
+	}
+
+	/**
+	 * 指定された位置のエスケープシーケンスが、ASCII に戻す「[ESC] ( B」かどうか判定します。
+	 * 
+	 * @param data バイト列
+	 * @param i エスケープコードの位置
+	 * @return ASCII に戻す場合は true
+	 */
+	private static boolean isReset(byte[] data, int i)
+	{
+		return i + 2 < data.length && data[i + 1] == '(' && data[i + 2] == 'B';
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[charset=" + charset + "]";
+	}
+
+	/**
+	 * エンコードしたテキストの、文字ごとの終了位置とシフト状態です。
+	 * 位置 0 はテキストの先頭、位置 k は k 番目の文字の後を表します。
+	 * サロゲートペアは1文字として数えます。
+	 */
+	protected static class Encoded
+	{
+		/** エンコードしたバイト列 */
+		byte[] data;
+
+		/** 文字の数 */
+		int count;
+
+		/** 文字の後のバイト位置 */
+		final int[] ends;
+
+		/** 文字の後の、テキストの位置 */
+		final int[] index;
+
+		/** 文字の後のシフト状態に戻すエスケープシーケンスのバイト数、ASCII の場合は 0 */
+		final int[] shifts;
+
+		/**
+		 * 指定された長さのテキストの結果を構築します。
+		 * 
+		 * @param length テキストの長さ
+		 */
+		Encoded(int length)
+		{
+			ends = new int[length + 1];
+			index = new int[length + 1];
+			shifts = new int[length + 1];
+		}
+
+		/**
+		 * 指定された位置から始まる行で、先頭でシフト状態に戻すために増えるバイト数を返します。
+		 * その文字が自分でエスケープシーケンスを書き込む場合は 0 で、
+		 * ASCII に戻すエスケープシーケンスの場合は、行の先頭では不要なので負の数になります。
+		 * 
+		 * @param k 位置
+		 * @return バイト数
+		 */
+		int startShift(int k)
+		{
+			if (k < count && data[ends[k]] == ESC) return isReset(data, ends[k]) ? -RESET_LENGTH : 0;
+			return shifts[k];
+		}
+
+		/**
+		 * 終了位置が指定されたバイト位置を超えない最も後ろの位置を返します。
+		 * 
+		 * @param limit バイト位置
+		 * @param from 探す最初の位置
+		 * @return 位置、from の文字も収まらない場合は from - 1
+		 */
+		int search(int limit, int from)
+		{
+			int low = from;
+			int high = count;
+			while (low <= high)
+			{
+				int mid = (low + high) >>> 1;
+				if (ends[mid] <= limit)
+				{
+					low = mid + 1;
+				}
+				else
+				{
+					high = mid - 1;
+				}
+			}
+			return high;
+		}
+	}
+}
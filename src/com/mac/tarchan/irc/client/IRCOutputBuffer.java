@@ -0,0 +1,392 @@
+/*
+ * IRCOutputBuffer.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * 送信するIRCメッセージを文字コードに変換しながら組み立てる出力バッファです。
+ * コマンド、パラメータ、トレイルを書式文字列を使わずにバイト配列へ直接書き込むので、
+ * 一度構築したバッファは何度でも使い回せます。
+ * 一行は CR LF を含めて {@link #MAX_LINE_LENGTH} バイトまでで、超えた部分は文字の境界で切り捨てます。
+ * パラメータに含まれる CR、LF、NUL は空白に置き換えます。
+ * ASCII文字はエンコーダを通さずにそのまま書き込みます。
+ * 
+ * <pre>
+ * IRCOutputBuffer buf = new IRCOutputBuffer(charset);
+ * buf.begin("PRIVMSG").param("#channel").trail("hello");
+ * buf.writeTo(out);
+ * </pre>
+ * 
+ * @see IRCInputBuffer
+ */
+public class IRCOutputBuffer
+{
+	/** CR LF を含む一行の最大バイト数 */
+	public static final int MAX_LINE_LENGTH = 512;
+
+	/** 文字コードを初期状態に戻すために残しておくバイト数 */
+	private static final int FLUSH_RESERVE = 8;
+
+	/** ASCII互換かどうか調べる文字列 */
+	private static final String ASCII_SAMPLE = "AZaz09 :!#&@";
+
+	/** 文字コード */
+	protected final Charset charset;
+
+	/** エンコーダ */
+	protected final CharsetEncoder encoder;
+
+	/** 送信バッファ (書き込みモード) */
+	protected final ByteBuffer buffer;
+
+	/** エンコードする文字のバッファ */
+	protected final CharBuffer chars = CharBuffer.allocate(MAX_LINE_LENGTH);
+
+	/** 一行の最大バイト数 (CR LF を除く) */
+	protected int limit = MAX_LINE_LENGTH - 2;
+
+	/** 切り捨てたかどうか */
+	protected boolean truncated;
+
+	/** 行を終えたかどうか */
+	protected boolean terminated;
+
+	/**
+	 * 指定された文字コードの出力バッファを構築します。
+	 * 
+	 * @param charset 文字コード
+	 * @throws IllegalArgumentException ASCII互換ではない文字コードの場合
+	 */
+	public IRCOutputBuffer(Charset charset)
+	{
+		if (!charset.canEncode() || !Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(IRCMessage.UTF_8))) throw new IllegalArgumentException("ASCII互換ではない文字コードです。: " + charset);
+
+		this.charset = charset;
+		encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		buffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * 文字コードを返します。
+	 * 
+	 * @return 文字コード
+	 */
+	public Charset getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * 新しい行を開始して、コマンドを書き込みます。
+	 * 
+	 * @param command コマンド
+	 * @return この出力バッファ
+	 */
+	public IRCOutputBuffer begin(String command)
+	{
+		return begin(null, command);
+	}
+
+	/**
+	 * 新しい行を開始して、タグとコマンドを書き込みます。
+	 * 
+	 * @param tags 「key=value;key2」の形式のタグ、タグがない場合は null
+	 * @param command コマンド
+	 * @return この出力バッファ
+	 */
+	public IRCOutputBuffer begin(String tags, String command)
+	{
+		if (command == null || command.isEmpty()) throw new IllegalArgumentException("コマンドがありません。");
+
+		buffer.clear();
+		truncated = false;
+		terminated = false;
+		if (tags != null)
+		{
+			put('@');
+			write(tags);
+			put(' ');
+		}
+		write(command);
+		return this;
+	}
+
+	/**
+	 * 新しい行を開始して、指定されたテキストをそのまま書き込みます。
+	 * 
+	 * @param text テキスト
+	 * @return この出力バッファ
+	 */
+	public IRCOutputBuffer raw(String text)
+	{
+		buffer.clear();
+		truncated = false;
+		terminated = false;
+		write(text);
+		return this;
+	}
+
+	/**
+	 * 中間パラメータを書き込みます。
+	 * null の場合は何も書き込みません。
+	 * 
+	 * @param param パラメータ
+	 * @return この出力バッファ
+	 * @throws IllegalArgumentException パラメータが空、空白を含む、またはコロンで始まる場合
+	 */
+	public IRCOutputBuffer param(String param)
+	{
+		if (param == null) return this;
+		checkParam(param);
+
+		put(' ');
+		write(param);
+		return this;
+	}
+
+	/**
+	 * 中間パラメータとして送信できるかどうか検査します。
+	 * 
+	 * @param param パラメータ、省略する場合は null
+	 * @throws IllegalArgumentException パラメータが空、空白を含む、またはコロンで始まる場合
+	 */
+	static void checkParam(String param)
+	{
+		if (param != null && (param.isEmpty() || param.charAt(0) == ':' || param.indexOf(' ') >= 0)) throw new IllegalArgumentException("パラメータが不正です。: " + param);
+	}
+
+	/**
+	 * 数値の中間パラメータを書き込みます。
+	 * 
+	 * @param param パラメータ
+	 * @return この出力バッファ
+	 */
+	public IRCOutputBuffer param(int param)
+	{
+		put(' ');
+		long n = param;
+		if (n < 0)
+		{
+			put('-');
+			n = -n;
+		}
+		int start = buffer.position();
+		do
+		{
+			put('0' + (int)(n % 10));
+			n /= 10;
+		}
+		while (n > 0);
+		byte[] array = buffer.array();
+		for (int i = start, j = buffer.position() - 1; i < j; i++, j--)
+		{
+			byte b = array[i];
+			array[i] = array[j];
+			array[j] = b;
+		}
+		return this;
+	}
+
+	/**
+	 * トレイルを書き込みます。
+	 * null の場合は何も書き込みません。
+	 * 
+	 * @param trail トレイル
+	 * @return この出力バッファ
+	 */
+	public IRCOutputBuffer trail(String trail)
+	{
+		if (trail == null) return this;
+
+		put(' ');
+		put(':');
+		write(trail);
+		return this;
+	}
+
+	/**
+	 * 文字列を書き込みます。
+	 * CR、LF、NUL は空白に置き換えます。
+	 * 
+	 * @param text 文字列
+	 */
+	protected void write(String text)
+	{
+		int len = text.length();
+		int i = 0;
+		while (i < len && !truncated)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				put(escape(c));
+				i++;
+			}
+			else
+			{
+				int end = i + 1;
+				while (end < len && text.charAt(end) >= 0x80) end++;
+				encode(text, i, end);
+				i = end;
+			}
+		}
+	}
+
+	/**
+	 * 改行と NUL を空白に置き換えます。
+	 * 
+	 * @param c 文字
+	 * @return 置き換えた文字
+	 */
+	private static char escape(char c)
+	{
+		return c == '\r' || c == '\n' || c == '\0' ? ' ' : c;
+	}
+
+	/**
+	 * 1バイトを書き込みます。
+	 * 最大バイト数を超える場合は切り捨てます。
+	 * 
+	 * @param b バイト
+	 */
+	private void put(int b)
+	{
+		if (buffer.position() < limit)
+		{
+			buffer.put((byte)b);
+		}
+		else
+		{
+			truncated = true;
+		}
+	}
+
+	/**
+	 * 指定された範囲の文字をエンコーダで書き込みます。
+	 * 最大バイト数を超える場合は、文字コードを初期状態に戻す余地を残して文字の境界で切り捨てます。
+	 * 
+	 * @param text 文字列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 */
+	private void encode(String text, int from, int to)
+	{
+		if (truncated) return;
+
+		int mark = buffer.position();
+		for (int pass = 0; pass < 2; pass++)
+		{
+			int start = from;
+			buffer.position(mark);
+			buffer.limit(pass == 0 ? limit : Math.max(mark, limit - FLUSH_RESERVE));
+			encoder.reset();
+			boolean overflow = false;
+			while (start < to && !overflow)
+			{
+				chars.clear();
+				int n = Math.min(to - start, chars.capacity());
+				for (int i = 0; i < n; i++)
+				{
+					chars.put(escape(text.charAt(start + i)));
+				}
+				chars.flip();
+				CoderResult cr = encoder.encode(chars, buffer, start + n == to);
+				start += chars.position();
+				overflow = cr.isOverflow();
+			}
+			if (pass == 1) buffer.limit(limit);
+			CoderResult cr = encoder.flush(buffer);
+			overflow |= cr.isOverflow();
+			buffer.limit(buffer.capacity());
+			if (!overflow) return;
+			truncated = true;
+		}
+	}
+
+	/**
+	 * 行を終えて CR LF を書き込みます。
+	 * 
+	 * @return この出力バッファ
+	 */
+	public IRCOutputBuffer end()
+	{
+		if (!terminated)
+		{
+			buffer.put((byte)'\r');
+			buffer.put((byte)'\n');
+			terminated = true;
+		}
+		return this;
+	}
+
+	/**
+	 * 行を終えて、出力ストリームに書き込みます。
+	 * 
+	 * @param out 出力ストリーム
+	 * @throws IOException 入出力エラーが発生した場合
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		end();
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	/**
+	 * 最大バイト数を超えて切り捨てたかどうか判定します。
+	 * 
+	 * @return 切り捨てた場合は true
+	 */
+	public boolean isTruncated()
+	{
+		return truncated;
+	}
+
+	/**
+	 * バッファのバイト配列を返します。
+	 * 
+	 * @return バイト配列
+	 */
+	public byte[] array()
+	{
+		return buffer.array();
+	}
+
+	/**
+	 * 書き込んだバイト数を返します。
+	 * 
+	 * @return バイト数
+	 */
+	public int length()
+	{
+		return buffer.position();
+	}
+
+	/**
+	 * 書き込んだ行を CR LF を除いて文字列に変換します。
+	 * 
+	 * @return 文字列
+	 */
+	@Override
+	public String toString()
+	{
+		int len = buffer.position();
+		if (terminated) len -= 2;
+		return new String(buffer.array(), 0, len, charset);
+	}
+}
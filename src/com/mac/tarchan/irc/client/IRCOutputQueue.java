@@ -0,0 +1,690 @@
+/*
+ * IRCOutputQueue.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import com.mac.tarchan.irc.client.util.VirtualThreads;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 送信するメッセージを溜めておき、ひとつのライタがまとめて送信する出力キューです。
+ * どのスレッドからでもロックせずにメッセージを追加できます。
+ * キューが空でなくなるとライタのタスクを一度だけ起動し、
+ * ライタは溜まっているメッセージをすべて一つのバッファにエンコードしてから一度に書き込みます。
+ * 送信する順番と時刻は {@link IRCSendScheduler} で決めて、すぐに送信できないメッセージはタイマーで後から送信します。
+ * 
+ * @see IRCClient#postCommand(String, String, String, String, String)
+ */
+public class IRCOutputQueue implements Runnable
+{
+	/** ログ */
+	private static final Logger log = Logger.getLogger(IRCOutputQueue.class.getName());
+
+	/** 一度に書き込む最大バイト数 */
+	public static final int BATCH_SIZE = 16 * 1024;
+
+	/** クローズするときに、書き込み中のライタを待つ時間 (ミリ秒) */
+	public static final long CLOSE_TIMEOUT = 1000;
+
+	/** 送信を待っているライタを起こすタイマー */
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(VirtualThreads.daemonFactory("IRCOutputTimer-"));
+
+	/** IRCクライアント */
+	protected final IRCClient irc;
+
+	/** 送信を待っているメッセージ */
+	protected final ConcurrentLinkedQueue<Line> queue = new ConcurrentLinkedQueue<Line>();
+
+	/** ライタのタスクを起動したかどうか */
+	protected final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/** ライタのロック */
+	protected final ReentrantLock writerLock = new ReentrantLock();
+
+	/** 送信スケジューラ */
+	protected final IRCSendScheduler scheduler = new IRCSendScheduler();
+
+	/** ライタを起こすタイマーのタスク */
+	protected ScheduledFuture<?> wakeup;
+
+	/** タイマーでライタを起こす時刻 (ナノ秒) */
+	protected long wakeupTime;
+
+	/** タイマーから呼び出すタスク */
+	private final Runnable wakeupTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			schedule();
+		}
+	};
+
+	/** 出力バッファ */
+	protected IRCOutputBuffer output;
+
+	/** 出力ストリーム */
+	protected OutputStream out;
+
+	/** まとめて書き込むバッファ */
+	protected byte[] batch = new byte[BATCH_SIZE];
+
+	/** まとめて書き込むバイト数 */
+	protected int batchLength;
+
+	/** まとめて書き込むメッセージの数 */
+	protected int batchLines;
+
+	/** 書き込んだ回数 */
+	protected volatile long flushCount;
+
+	/** 書き込んだメッセージの数 */
+	protected volatile long lineCount;
+
+	/** 書き込めずに破棄したメッセージの数 */
+	protected volatile long lostCount;
+
+	/** ライタを待たずにクローズしたので、次にロックを取ったときに残りを破棄するかどうか */
+	protected volatile boolean discarding;
+
+	/**
+	 * 指定されたIRCクライアントの出力キューを構築します。
+	 * 
+	 * @param irc IRCクライアント
+	 */
+	public IRCOutputQueue(IRCClient irc)
+	{
+		this.irc = irc;
+	}
+
+	/**
+	 * 送信するメッセージを追加します。
+	 * 
+	 * @param line メッセージ
+	 */
+	public void add(Line line)
+	{
+		line.queued = System.nanoTime();
+		scheduler.added();
+		queue.add(line);
+		schedule();
+	}
+
+	/**
+	 * ライタのタスクがまだ起動していない場合は起動します。
+	 */
+	protected void schedule()
+	{
+		if (scheduled.compareAndSet(false, true))
+		{
+			try
+			{
+				irc.getWriterExecutor().execute(this);
+			}
+			catch (RejectedExecutionException ex)
+			{
+				scheduled.set(false);
+				log.log(Level.WARNING, "ライタを起動できません。", ex);
+			}
+		}
+	}
+
+	/**
+	 * 接続し直したときに、出力ストリームと出力バッファを破棄します。
+	 */
+	public void reset()
+	{
+		writerLock.lock();
+		try
+		{
+			if (discarding) discard();
+			out = null;
+			output = null;
+		}
+		finally
+		{
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * 送信を待っているメッセージの数を返します。
+	 * 
+	 * @return メッセージの数
+	 */
+	public int size()
+	{
+		return scheduler.getQueueDepth();
+	}
+
+	/**
+	 * 送信スケジューラを返します。
+	 * 
+	 * @return 送信スケジューラ
+	 */
+	public IRCSendScheduler getScheduler()
+	{
+		return scheduler;
+	}
+
+	/**
+	 * 書き込んだ回数を返します。
+	 * 
+	 * @return 書き込んだ回数
+	 */
+	public long getFlushCount()
+	{
+		return flushCount;
+	}
+
+	/**
+	 * 書き込んだメッセージの数を返します。
+	 * 
+	 * @return メッセージの数
+	 */
+	public long getLineCount()
+	{
+		return lineCount;
+	}
+
+	/**
+	 * 書き込めずに破棄したメッセージの数を返します。
+	 * 
+	 * @return メッセージの数
+	 */
+	public long getLostCount()
+	{
+		return lostCount;
+	}
+
+	@Override
+	public void run()
+	{
+		for (;;)
+		{
+			drain();
+			scheduled.set(false);
+			if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+		}
+	}
+
+	/**
+	 * 送信できるメッセージをすべて送信します。
+	 * まだ送信できないメッセージが残っている場合は、送信できる時刻にタイマーでライタを起こします。
+	 * 接続をクローズする前に、呼び出したスレッドで残りを送信するときにも使います。
+	 */
+	public void drain()
+	{
+		writerLock.lock();
+		try
+		{
+			if (discarding)
+			{
+				discard();
+				return;
+			}
+			Line line;
+			while ((line = queue.poll()) != null)
+			{
+				scheduler.offer(line);
+			}
+			scheduler.setCharset(irc.getCharset());
+			long now = System.nanoTime();
+			while ((line = scheduler.poll(now)) != null)
+			{
+				try
+				{
+					int len = encode(line);
+					scheduler.sent(line, len, now);
+				}
+				catch (IOException ex)
+				{
+					// 送信できなかったメッセージも送信済みにして、待っている問い合わせのタイマーを開始する
+					log.log(Level.SEVERE, "メッセージを送信できません。: " + line, ex);
+					lostCount++;
+					scheduler.sent(line, 0, now);
+					line.written();
+				}
+				catch (RuntimeException ex)
+				{
+					log.log(Level.SEVERE, "メッセージを送信できません。: " + line, ex);
+					scheduler.sent(line, 0, now);
+				}
+			}
+			try
+			{
+				flush();
+			}
+			catch (IOException ex)
+			{
+				log.log(Level.SEVERE, "メッセージを送信できません。", ex);
+			}
+			long delay = scheduler.delay(System.nanoTime());
+			if (delay >= 0) wakeupAfter(delay);
+		}
+		finally
+		{
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * 指定された時間が経過したらライタを起こします。
+	 * それより早く起こす予定がある場合は何もしません。
+	 * タイマーから起動されたライタでは、起動したタスクがまだ終わっていないことがあるので、
+	 * 予定の時刻を過ぎているタスクは終わったものとみなします。
+	 * 
+	 * @param delay 待ち時間 (ナノ秒)
+	 */
+	private void wakeupAfter(long delay)
+	{
+		long now = System.nanoTime();
+		long time = now + delay;
+		if (wakeup != null && !wakeup.isDone() && wakeupTime - now > 0)
+		{
+			if (wakeupTime - time <= 0) return;
+			wakeup.cancel(false);
+		}
+		wakeupTime = time;
+		wakeup = timer.schedule(wakeupTask, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 送信できるメッセージを送信して、残りを破棄します。
+	 * 接続をクローズするときに、ソケットをクローズする前に呼び出します。
+	 * ライタが書き込みで止まっていて {@link #CLOSE_TIMEOUT} ミリ秒以内にロックを取れない場合は、
+	 * 残りを送信せずに戻ります。ソケットをクローズすればライタの書き込みは失敗するので、
+	 * ライタが次にロックを取ったときに残りを破棄します。
+	 */
+	public void close()
+	{
+		boolean locked;
+		try
+		{
+			locked = writerLock.tryLock(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			locked = false;
+		}
+		if (!locked)
+		{
+			log.log(Level.WARNING, "ライタが書き込みを終えないので、残りのメッセージを送信せずにクローズします。");
+			discarding = true;
+			return;
+		}
+		try
+		{
+			scheduler.flushing = true;
+			drain();
+			scheduler.flushing = false;
+			discard();
+		}
+		finally
+		{
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * 送信を待っているメッセージをすべて破棄して、ライタを起こすタイマーを取り消します。
+	 * ライタのロックを取ってから呼び出します。
+	 */
+	protected void discard()
+	{
+		discarding = false;
+		if (wakeup != null) wakeup.cancel(false);
+		Line line;
+		while ((line = queue.poll()) != null)
+		{
+			scheduler.offer(line);
+		}
+		int count = scheduler.clear();
+		if (count > 0)
+		{
+			lostCount += count;
+			log.log(Level.WARNING, "送信できなかったメッセージを破棄しました。: {0}", count);
+		}
+	}
+
+	/**
+	 * メッセージをエンコードして、まとめて書き込むバッファに追加します。
+	 * バッファに入りきらない場合は、先に書き込みます。
+	 * 
+	 * @param line メッセージ
+	 * @return エンコードしたバイト数
+	 * @throws IOException 入出力エラーが発生した場合
+	 */
+	protected int encode(Line line) throws IOException
+	{
+		if (output == null || !output.getCharset().equals(irc.getCharset()))
+		{
+			output = new IRCOutputBuffer(irc.getCharset());
+		}
+		if (line.raw != null)
+		{
+			output.raw(line.raw);
+		}
+		else
+		{
+			output.begin(line.tags, line.command).param(line.param1).param(line.param2).param(line.param3).trail(line.trail);
+		}
+		output.end();
+		if (log.isLoggable(Level.INFO))
+		{
+			log.info(output.toString());
+		}
+		if (output.isTruncated())
+		{
+			log.log(Level.WARNING, "{0} バイトを超えたので切り捨てました。", IRCOutputBuffer.MAX_LINE_LENGTH);
+		}
+		int len = output.length();
+		if (batchLength + len > batch.length) flush();
+		System.arraycopy(output.array(), 0, batch, batchLength, len);
+		batchLength += len;
+		batchLines++;
+		lineCount++;
+		line.written();
+		return len;
+	}
+
+	/**
+	 * まとめて書き込むバッファを出力ストリームに書き込みます。
+	 * 書き込めなかった場合も、バッファのメッセージは破棄して、破棄したメッセージの数に数えます。
+	 * 
+	 * @throws IOException 入出力エラーが発生した場合
+	 */
+	protected void flush() throws IOException
+	{
+		if (batchLength == 0) return;
+
+		int length = batchLength;
+		int lines = batchLines;
+		batchLength = 0;
+		batchLines = 0;
+		try
+		{
+			if (out == null) out = irc.getOutputStream();
+			out.write(batch, 0, length);
+			out.flush();
+		}
+		catch (IOException ex)
+		{
+			lineCount -= lines;
+			lostCount += lines;
+			log.log(Level.SEVERE, "まとめて書き込むメッセージを破棄しました。: {0}", lines);
+			throw ex;
+		}
+		flushCount++;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s[queued=%d, lines=%d, lost=%d, flushes=%d, %s]", getClass().getSimpleName(), size(), lineCount, lostCount, flushCount, scheduler);
+	}
+
+	/**
+	 * 送信するメッセージです。
+	 * コマンドとパラメータのまま保持して、ライタがエンコードします。
+	 */
+	public static class Line
+	{
+		/** タグ */
+		protected final String tags;
+
+		/** コマンド */
+		protected final String command;
+
+		/** 1番目のパラメータ */
+		protected final String param1;
+
+		/** 2番目のパラメータ */
+		protected final String param2;
+
+		/** 3番目のパラメータ */
+		protected final String param3;
+
+		/** トレイル */
+		protected final String trail;
+
+		/** そのまま送信するテキスト */
+		protected final String raw;
+
+		/** レーン */
+		protected final int priority;
+
+		/** 送信の順番を守る宛先、1番目のパラメータ */
+		protected final String target;
+
+		/** キューに追加した時刻 (ナノ秒) */
+		protected long queued;
+
+		/** まとめたメッセージの数 */
+		protected int lines = 1;
+
+		/**
+		 * コマンドのメッセージを構築します。
+		 * null のパラメータとトレイルは省略します。
+		 * 
+		 * @param command コマンド
+		 * @param param1 1番目のパラメータ
+		 * @param param2 2番目のパラメータ
+		 * @param param3 3番目のパラメータ
+		 * @param trail トレイル
+		 * @throws IllegalArgumentException パラメータが空、空白を含む、またはコロンで始まる場合
+		 */
+		public Line(String command, String param1, String param2, String param3, String trail)
+		{
+			this(null, command, param1, param2, param3, trail);
+		}
+
+		/**
+		 * タグを付けたコマンドのメッセージを構築します。
+		 * null のタグ、パラメータ、トレイルは省略します。
+		 * 
+		 * @param tags 「key=value;key2」の形式のタグ
+		 * @param command コマンド
+		 * @param param1 1番目のパラメータ
+		 * @param param2 2番目のパラメータ
+		 * @param param3 3番目のパラメータ
+		 * @param trail トレイル
+		 * @throws IllegalArgumentException パラメータが空、空白を含む、またはコロンで始まる場合
+		 */
+		public Line(String tags, String command, String param1, String param2, String param3, String trail)
+		{
+			if (command == null || command.isEmpty()) throw new IllegalArgumentException("コマンドがありません。");
+			IRCOutputBuffer.checkParam(param1);
+			IRCOutputBuffer.checkParam(param2);
+			IRCOutputBuffer.checkParam(param3);
+
+			this.tags = tags;
+			this.command = command;
+			this.param1 = param1;
+			this.param2 = param2;
+			this.param3 = param3;
+			this.trail = trail;
+			this.raw = null;
+			this.priority = IRCSendScheduler.priorityOf(command);
+			this.target = param1;
+		}
+
+		/**
+		 * そのまま送信するテキストのメッセージを構築します。
+		 * レーンと宛先は、テキストの先頭のコマンドとその次のパラメータで決めます。
+		 * 
+		 * @param raw テキスト
+		 */
+		public Line(String raw)
+		{
+			this.tags = null;
+			this.command = null;
+			this.param1 = null;
+			this.param2 = null;
+			this.param3 = null;
+			this.trail = null;
+			this.raw = raw;
+			this.priority = IRCSendScheduler.priorityOf(commandOf(raw));
+			this.target = targetOf(raw);
+		}
+
+		/**
+		 * テキストのメッセージから、タグとプレフィックスを除いた先頭のコマンドを返します。
+		 * 
+		 * @param raw テキスト
+		 * @return コマンド、コマンドがない場合は null
+		 */
+		static String commandOf(String raw)
+		{
+			int start = commandStart(raw);
+			int end = wordEnd(raw, start);
+			return end > start ? raw.substring(start, end) : null;
+		}
+
+		/**
+		 * テキストのメッセージから、コマンドの次のパラメータを返します。
+		 * 
+		 * @param raw テキスト
+		 * @return パラメータ、ない場合またはトレイルの場合は null
+		 */
+		static String targetOf(String raw)
+		{
+			int len = raw.length();
+			int i = wordEnd(raw, commandStart(raw));
+			while (i < len && raw.charAt(i) == ' ') i++;
+			if (i == len || raw.charAt(i) == ':') return null;
+
+			int end = wordEnd(raw, i);
+			return end > i ? raw.substring(i, end) : null;
+		}
+
+		/**
+		 * テキストのメッセージから、タグとプレフィックスを飛ばしたコマンドの位置を返します。
+		 * 
+		 * @param raw テキスト
+		 * @return コマンドの位置
+		 */
+		private static int commandStart(String raw)
+		{
+			int len = raw.length();
+			int i = 0;
+			while (i < len && raw.charAt(i) == ' ') i++;
+			while (i < len && (raw.charAt(i) == '@' || raw.charAt(i) == ':'))
+			{
+				while (i < len && raw.charAt(i) != ' ') i++;
+				while (i < len && raw.charAt(i) == ' ') i++;
+			}
+			return i;
+		}
+
+		/**
+		 * 指定された位置から始まる単語の終わりの位置を返します。
+		 * 
+		 * @param raw テキスト
+		 * @param start 単語の位置
+		 * @return 単語の終わりの位置
+		 */
+		private static int wordEnd(String raw, int start)
+		{
+			int len = raw.length();
+			int i = start;
+			while (i < len && raw.charAt(i) != ' ' && raw.charAt(i) != '\r' && raw.charAt(i) != '\n') i++;
+			return i;
+		}
+
+		/**
+		 * ライタがこのメッセージをエンコードしたか、書き込めずに破棄したときに呼び出されます。
+		 * 送信を待っていた時間を除いて、応答を待つ時間を計るときに使用します。
+		 */
+		protected void written()
+		{
+		}
+
+		/**
+		 * タグを返します。
+		 * 
+		 * @return タグ、タグがない場合は null
+		 */
+		public String getTags()
+		{
+			return tags;
+		}
+
+		/**
+		 * コマンドを返します。
+		 * 
+		 * @return コマンド、テキストのメッセージの場合は null
+		 */
+		public String getCommand()
+		{
+			return command;
+		}
+
+		/**
+		 * 1番目のパラメータを返します。
+		 * 
+		 * @return 1番目のパラメータ
+		 */
+		public String getParam1()
+		{
+			return param1;
+		}
+
+		/**
+		 * レーンを返します。
+		 * 
+		 * @return レーン
+		 * @see IRCSendScheduler#priorityOf(String)
+		 */
+		public int getPriority()
+		{
+			return priority;
+		}
+
+		/**
+		 * 送信の順番を守る宛先を返します。
+		 * 
+		 * @return 宛先、ない場合は null
+		 */
+		public String getTarget()
+		{
+			return target;
+		}
+
+		/**
+		 * トレイルを返します。
+		 * 
+		 * @return トレイル
+		 */
+		public String getTrail()
+		{
+			return trail;
+		}
+
+		@Override
+		public String toString()
+		{
+			if (raw != null) return raw;
+			if (tags != null) return "@" + tags + " " + command + " " + Arrays.asList(param1, param2, param3) + " :" + trail;
+
+			return command + " " + Arrays.asList(param1, param2, param3) + " :" + trail;
+		}
+	}
+}
@@ -0,0 +1,945 @@
+/*
+ * IRCQueries.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import com.mac.tarchan.irc.client.util.VirtualThreads;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * NAMES、WHOIS、TOPIC、MODE などの問い合わせを送信して、応答をまとめた結果を {@link CompletableFuture} で返します。
+ * 問い合わせは前の応答を待たずに続けて送信できます。
+ * 応答は、ニュメリックリプライの番号と対象のチャンネル名またはニックネームで、送信した順番に問い合わせに割り当てます。
+ * <p>
+ * {@link IRCClient#setCapNegotiation(boolean)} で機能の要求を有効にして、
+ * サーバが IRCv3 の labeled-response と batch に対応している場合は、問い合わせにラベルを付けて送信し、同じラベルの応答だけを割り当てます。
+ * 同じ対象への問い合わせや、ほかの操作で届いた同じ番号の応答と混ざりません。
+ * <p>
+ * 送信してから、または最後の応答から、次の応答がないまま指定された時間が経つと、問い合わせは {@link TimeoutException} で完了します。
+ * 接続をクローズすると、応答を待っている問い合わせはすべて {@link IOException} で完了します。
+ * 問い合わせは応答を受信したスレッドで完了するので、時間のかかる処理は非同期のメソッドで続けてください。
+ * 応答はこれまでどおりハンドラにも送信します。
+ * 
+ * <pre>
+ * irc.names("#channel").thenAccept(names -&gt; System.out.println(names));
+ * </pre>
+ * 
+ * @see IRCClient#names(String)
+ * @see IRCClient#whois(String)
+ * @see IRCClient#isLabeledResponse()
+ */
+public class IRCQueries
+{
+	/** デフォルトの応答を待つ時間 (ミリ秒) */
+	public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+	/** ログ */
+	private static final Logger log = Logger.getLogger(IRCQueries.class.getName());
+
+	/** 応答を待つ時間を計るタイマー */
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(VirtualThreads.daemonFactory("IRCQueryTimer-"));
+
+	/** IRCクライアント */
+	protected final IRCClient irc;
+
+	/** ラベルを付けずに送信して、応答を待っている問い合わせ */
+	protected final ConcurrentLinkedQueue<Query<?>> pending = new ConcurrentLinkedQueue<Query<?>>();
+
+	/** ラベルを付けて送信して、最初の応答を待っている問い合わせ */
+	protected final ConcurrentHashMap<String, Query<?>> labels = new ConcurrentHashMap<String, Query<?>>();
+
+	/** 応答のバッチを受信している問い合わせ */
+	protected final ConcurrentHashMap<String, Query<?>> batches = new ConcurrentHashMap<String, Query<?>>();
+
+	/** ラベルの連番 */
+	protected final AtomicLong labelCount = new AtomicLong();
+
+	/** 応答を待つ時間 (ミリ秒) */
+	protected volatile long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * 指定されたクライアントの問い合わせを管理します。
+	 * 
+	 * @param irc IRCクライアント
+	 */
+	public IRCQueries(IRCClient irc)
+	{
+		this.irc = irc;
+	}
+
+	/**
+	 * 応答を待つ時間を設定します。
+	 * 送信してから最初の応答まで、または応答と次の応答の間の時間です。
+	 * 
+	 * @param timeout 時間 (ミリ秒)、0 の場合は待ち続ける
+	 */
+	public void setTimeout(long timeout)
+	{
+		if (timeout < 0) throw new IllegalArgumentException("応答を待つ時間が不正です。: " + timeout);
+
+		this.timeout = timeout;
+	}
+
+	/**
+	 * 応答を待つ時間を返します。
+	 * 
+	 * @return 時間 (ミリ秒)
+	 */
+	public long getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * 問い合わせを送信します。
+	 * サーバが labeled-response に対応している場合は、ラベルを付けて送信します。
+	 * 
+	 * @param <T> 結果の型
+	 * @param query 問い合わせ
+	 * @return 応答をまとめた結果
+	 */
+	public <T> CompletableFuture<T> send(final Query<T> query)
+	{
+		String tags = null;
+		if (irc.isLabeledResponse())
+		{
+			query.label = Long.toString(labelCount.incrementAndGet(), 36);
+			tags = "label=" + query.label;
+			labels.put(query.label, query);
+		}
+		else
+		{
+			pending.add(query);
+		}
+		irc.getOutputQueue().add(new IRCOutputQueue.Line(tags, query.command, query.target, null, null, null)
+		{
+			@Override
+			protected void written()
+			{
+				startTimer(query);
+			}
+		});
+		return query.future;
+	}
+
+	/**
+	 * 問い合わせを送信したときに、応答を待つ時間を計り始めます。
+	 * 流量制限で送信を待っていた時間は含めません。
+	 * 
+	 * @param query 問い合わせ
+	 */
+	protected void startTimer(Query<?> query)
+	{
+		query.lastReply = System.nanoTime();
+		schedule(query, timeout);
+	}
+
+	/**
+	 * 指定された時間の後に、応答が途絶えていないか確認します。
+	 * 
+	 * @param query 問い合わせ
+	 * @param delay 時間 (ミリ秒)
+	 */
+	private void schedule(final Query<?> query, long delay)
+	{
+		if (delay <= 0 || query.future.isDone()) return;
+
+		query.expiry = timer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				expire(query);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 受信したメッセージを、応答を待っている問い合わせに割り当てます。
+	 * ハンドラに送信する前に、受信したスレッドから呼び出します。
+	 * 
+	 * @param message IRCメッセージ
+	 */
+	public void onMessage(IRCMessage message)
+	{
+		if (pending.isEmpty() && labels.isEmpty() && batches.isEmpty()) return;
+
+		IRCCommand code = message.getCommandCode();
+		if (message.hasTags())
+		{
+			String batch = message.getTag("batch");
+			Query<?> query = batch != null ? batches.get(batch) : null;
+			if (query != null)
+			{
+				query.lastReply = System.nanoTime();
+				query.reply(message);
+				return;
+			}
+
+			String label = message.getTag("label");
+			query = label != null ? labels.remove(label) : null;
+			if (query != null)
+			{
+				String ref = reference(message);
+				if (code == IRCCommand.BATCH && ref.startsWith("+"))
+				{
+					query.batch = ref.substring(1);
+					batches.put(query.batch, query);
+				}
+				else
+				{
+					if (!message.getCommand().equals("ACK")) query.reply(message);
+					finish(query);
+				}
+				return;
+			}
+		}
+		if (code == IRCCommand.BATCH)
+		{
+			String ref = reference(message);
+			Query<?> query = ref.startsWith("-") ? batches.remove(ref.substring(1)) : null;
+			if (query != null) finish(query);
+			return;
+		}
+		if (code != IRCCommand.NUMERIC || pending.isEmpty()) return;
+
+		for (Query<?> query : pending)
+		{
+			if (query.matches(message))
+			{
+				query.lastReply = System.nanoTime();
+				if (query.reply(message) && pending.remove(query)) finish(query);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * BATCH の参照タグを返します。
+	 * 
+	 * @param message IRCメッセージ
+	 * @return 「+」または「-」で始まる参照タグ、ない場合は空文字列
+	 */
+	private static String reference(IRCMessage message)
+	{
+		String ref = message.getParamsCount() > 0 ? message.getParam0() : null;
+		return ref != null ? ref : "";
+	}
+
+	/**
+	 * 問い合わせを結果で完了します。
+	 * 
+	 * @param query 問い合わせ
+	 */
+	protected void finish(Query<?> query)
+	{
+		ScheduledFuture<?> expiry = query.expiry;
+		if (expiry != null) expiry.cancel(false);
+		query.finish();
+	}
+
+	/**
+	 * 最後の応答から応答を待つ時間が経った問い合わせを {@link TimeoutException} で完了します。
+	 * まだ経っていない場合は、残りの時間の後に確認し直します。
+	 * 
+	 * @param query 問い合わせ
+	 */
+	protected void expire(Query<?> query)
+	{
+		long time = timeout;
+		if (time <= 0) return;
+
+		long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - query.lastReply);
+		if (idle < time)
+		{
+			schedule(query, time - idle);
+			return;
+		}
+		if (!remove(query)) return;
+
+		log.log(Level.WARNING, "問い合わせの応答がありません。: {0}", query);
+		query.future.completeExceptionally(new TimeoutException("問い合わせの応答がありません。: " + query));
+	}
+
+	/**
+	 * 応答を待っている問い合わせを、すべて指定された例外で完了します。
+	 * 接続をクローズしたときに呼び出します。
+	 * 
+	 * @param cause 例外
+	 */
+	public void cancel(Throwable cause)
+	{
+		List<Query<?>> queries = new ArrayList<Query<?>>(pending);
+		queries.addAll(labels.values());
+		queries.addAll(batches.values());
+		for (Query<?> query : queries)
+		{
+			if (!remove(query)) continue;
+
+			ScheduledFuture<?> expiry = query.expiry;
+			if (expiry != null) expiry.cancel(false);
+			query.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * 応答を待っている問い合わせから取り除きます。
+	 * 
+	 * @param query 問い合わせ
+	 * @return 取り除いた場合は true、すでに完了している場合は false
+	 */
+	private boolean remove(Query<?> query)
+	{
+		boolean removed = pending.remove(query);
+		if (query.label != null) removed |= labels.remove(query.label, query);
+		if (query.batch != null) removed |= batches.remove(query.batch, query);
+		return removed;
+	}
+
+	/**
+	 * 応答を待っている問い合わせの数を返します。
+	 * 
+	 * @return 問い合わせの数
+	 */
+	public int size()
+	{
+		return pending.size() + labels.size() + batches.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s[pending=%d, timeout=%dms, labeled=%s]", getClass().getSimpleName(), size(), timeout, irc.isLabeledResponse());
+	}
+
+	/**
+	 * 応答をまとめる問い合わせです。
+	 * 応答の番号を、集める応答、最後の応答、エラーの応答に分けて指定します。
+	 * エラーの応答が最後の応答でもある場合は、両方に指定します。
+	 * 
+	 * @param <T> 結果の型
+	 */
+	public abstract static class Query<T>
+	{
+		/** コマンド */
+		protected final String command;
+
+		/** 対象のチャンネル名またはニックネーム */
+		protected final String target;
+
+		/** 集める応答の番号 */
+		protected final Set<String> replies;
+
+		/** 最後の応答の番号 */
+		protected final Set<String> ends;
+
+		/** エラーの応答の番号 */
+		protected final Set<String> errors;
+
+		/** 結果 */
+		protected final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/** エラー */
+		protected IOException error;
+
+		/** ラベル */
+		volatile String label;
+
+		/** バッチの参照タグ */
+		volatile String batch;
+
+		/** 応答を待つ時間のタイマー */
+		volatile ScheduledFuture<?> expiry;
+
+		/** 送信または最後に応答を受信した時刻 (ナノ秒) */
+		volatile long lastReply;
+
+		/**
+		 * 問い合わせを構築します。
+		 * 
+		 * @param command コマンド
+		 * @param target 対象のチャンネル名またはニックネーム、対象がない場合は null
+		 * @param replies 集める応答の番号
+		 * @param ends 最後の応答の番号
+		 * @param errors エラーの応答の番号
+		 * @throws IllegalArgumentException 対象が空、空白を含む、またはコロンで始まる場合
+		 */
+		protected Query(String command, String target, String[] replies, String[] ends, String[] errors)
+		{
+			IRCOutputBuffer.checkParam(target);
+
+			this.command = command;
+			this.target = target;
+			this.replies = new HashSet<String>(Arrays.asList(replies));
+			this.ends = new HashSet<String>(Arrays.asList(ends));
+			this.errors = new HashSet<String>(Arrays.asList(errors));
+		}
+
+		/**
+		 * 対象が指定されていることを検査します。
+		 * 
+		 * @param target 対象のチャンネル名またはニックネーム
+		 * @return 対象
+		 * @throws IllegalArgumentException 対象が null の場合
+		 */
+		protected static String require(String target)
+		{
+			if (target == null) throw new IllegalArgumentException("対象を指定してください。");
+			return target;
+		}
+
+		/**
+		 * ラベルのない応答が、この問い合わせへの応答かどうか判定します。
+		 * 対象がない問い合わせの場合は、番号だけで判定します。
+		 * 
+		 * @param message IRCメッセージ
+		 * @return この問い合わせへの応答の場合は true
+		 */
+		protected boolean matches(IRCMessage message)
+		{
+			String code = message.getCommand();
+			return (replies.contains(code) || ends.contains(code) || errors.contains(code)) && (target == null || target.equalsIgnoreCase(targetOf(message)));
+		}
+
+		/**
+		 * 応答の対象を返します。
+		 * 
+		 * @param message IRCメッセージ
+		 * @return 2番目のパラメータ
+		 */
+		protected String targetOf(IRCMessage message)
+		{
+			return message.getParamsCount() > 1 ? message.getParam1() : null;
+		}
+
+		/**
+		 * 応答を処理します。
+		 * 
+		 * @param message IRCメッセージ
+		 * @return 最後の応答の場合は true
+		 */
+		protected boolean reply(IRCMessage message)
+		{
+			String code = message.getCommand();
+			if (errors.contains(code))
+			{
+				if (error == null) error = new IOException("問い合わせに失敗しました。: " + message);
+			}
+			else if (replies.contains(code))
+			{
+				collect(message);
+			}
+			return ends.contains(code);
+		}
+
+		/**
+		 * 集める応答を結果に追加します。
+		 * 
+		 * @param message IRCメッセージ
+		 */
+		protected abstract void collect(IRCMessage message);
+
+		/**
+		 * 集めた応答から結果を返します。
+		 * 
+		 * @return 結果
+		 */
+		protected abstract T result();
+
+		/**
+		 * 結果またはエラーで完了します。
+		 */
+		void finish()
+		{
+			if (error != null)
+			{
+				future.completeExceptionally(error);
+			}
+			else
+			{
+				future.complete(result());
+			}
+		}
+
+		/**
+		 * 結果を返します。
+		 * 
+		 * @return 結果
+		 */
+		public CompletableFuture<T> getFuture()
+		{
+			return future;
+		}
+
+		@Override
+		public String toString()
+		{
+			return command + " " + target + (label != null ? " label=" + label : "");
+		}
+	}
+
+	/**
+	 * チャンネルに参加しているニックネームを問い合わせます。
+	 * ニックネームにはチャンネルモードの記号が付いたままです。
+	 */
+	public static class NamesQuery extends Query<List<String>>
+	{
+		/** ニックネーム */
+		protected final List<String> names = new ArrayList<String>();
+
+		/**
+		 * 問い合わせを構築します。
+		 * 
+		 * @param channel チャンネル名
+		 */
+		public NamesQuery(String channel)
+		{
+			super("NAMES", require(channel), new String[]{NumericReply.RPL_NAMREPLY}, new String[]{NumericReply.RPL_ENDOFNAMES}, new String[0]);
+		}
+
+		/**
+		 * RPL_NAMREPLY はチャンネルの種類の記号の後の、最後のパラメータを対象とします。
+		 */
+		@Override
+		protected String targetOf(IRCMessage message)
+		{
+			if (!message.getCommand().equals(NumericReply.RPL_NAMREPLY)) return super.targetOf(message);
+
+			int count = message.getParamsCount();
+			return count > 1 ? message.getParam(count - 1) : null;
+		}
+
+		@Override
+		protected void collect(IRCMessage message)
+		{
+			String trail = message.getTrail();
+			if (trail == null) return;
+
+			for (String name : trail.split(" "))
+			{
+				if (!name.isEmpty()) names.add(name);
+			}
+		}
+
+		@Override
+		protected List<String> result()
+		{
+			return names;
+		}
+	}
+
+	/**
+	 * ユーザの情報を問い合わせます。
+	 * RPL_ENDOFWHOIS の前までの応答をまとめます。
+	 * ユーザがいない場合は、ERR_NOSUCHNICK のエラーで完了します。
+	 */
+	public static class WhoisQuery extends Query<List<IRCMessage>>
+	{
+		/** 応答 */
+		protected final List<IRCMessage> messages = new ArrayList<IRCMessage>();
+
+		/**
+		 * 問い合わせを構築します。
+		 * 
+		 * @param nick ニックネーム
+		 */
+		public WhoisQuery(String nick)
+		{
+			super("WHOIS", require(nick), new String[]{
+				NumericReply.RPL_WHOISCERTFP, NumericReply.RPL_AWAY, NumericReply.RPL_WHOISREGNICK,
+				NumericReply.RPL_WHOISUSER, NumericReply.RPL_WHOISSERVER, NumericReply.RPL_WHOISOPERATOR,
+				NumericReply.RPL_WHOISIDLE, NumericReply.RPL_WHOISCHANNELS, NumericReply.RPL_WHOISSPECIAL,
+				NumericReply.RPL_WHOISACCOUNT, NumericReply.RPL_WHOISACTUALLY, NumericReply.RPL_WHOISHOST,
+				NumericReply.RPL_WHOISMODES, NumericReply.RPL_WHOISSECURE},
+				new String[]{NumericReply.RPL_ENDOFWHOIS},
+				new String[]{NumericReply.ERR_NOSUCHNICK, NumericReply.ERR_NOSUCHSERVER});
+		}
+
+		@Override
+		protected void collect(IRCMessage message)
+		{
+			messages.add(message.retain());
+		}
+
+		@Override
+		protected List<IRCMessage> result()
+		{
+			return messages;
+		}
+	}
+
+	/**
+	 * チャンネルのトピックを問い合わせます。
+	 * トピックがない場合は null で完了します。
+	 */
+	public static class TopicQuery extends Query<String>
+	{
+		/** トピック */
+		protected String topic;
+
+		/**
+		 * 問い合わせを構築します。
+		 * 
+		 * @param channel チャンネル名
+		 */
+		public TopicQuery(String channel)
+		{
+			super("TOPIC", require(channel), new String[]{NumericReply.RPL_TOPIC},
+				new String[]{NumericReply.RPL_NOTOPIC, NumericReply.RPL_TOPIC, NumericReply.ERR_NOSUCHCHANNEL, NumericReply.ERR_NOTONCHANNEL},
+				new String[]{NumericReply.ERR_NOSUCHCHANNEL, NumericReply.ERR_NOTONCHANNEL});
+		}
+
+		@Override
+		protected void collect(IRCMessage message)
+		{
+			topic = message.getTrail();
+		}
+
+		@Override
+		protected String result()
+		{
+			return topic;
+		}
+	}
+
+	/**
+	 * チャンネルモードを問い合わせます。
+	 * 「+lk 10 key」のように、モードとその引数を空白で区切って返します。
+	 */
+	public static class ModeQuery extends Query<String>
+	{
+		/** モード */
+		protected String mode;
+
+		/**
+		 * 問い合わせを構築します。
+		 * 
+		 * @param channel チャンネル名
+		 */
+		public ModeQuery(String channel)
+		{
+			super("MODE", require(channel), new String[]{NumericReply.RPL_CHANNELMODEIS},
+				new String[]{NumericReply.RPL_CHANNELMODEIS, NumericReply.ERR_NOSUCHNICK, NumericReply.ERR_NOSUCHCHANNEL},
+				new String[]{NumericReply.ERR_NOSUCHNICK, NumericReply.ERR_NOSUCHCHANNEL});
+		}
+
+		@Override
+		protected void collect(IRCMessage message)
+		{
+			StringBuilder buf = new StringBuilder();
+			for (int i = 2; i < message.getParamsCount(); i++)
+			{
+				if (buf.length() > 0) buf.append(' ');
+				buf.append(message.getParam(i));
+			}
+			String trail = message.getTrail();
+			if (trail != null && !trail.isEmpty())
+			{
+				if (buf.length() > 0) buf.append(' ');
+				buf.append(trail);
+			}
+			mode = buf.toString();
+		}
+
+		@Override
+		protected String result()
+		{
+			return mode;
+		}
+	}
+
+	/**
+	 * チャンネルの一覧を問い合わせて、受信したエントリを順番に {@link Flow.Subscriber} に送信します。
+	 * 最初の購読者が購読したときに LIST を送信して、RPL_LISTEND を受信したら完了します。
+	 * 一覧は保持せずに購読者が要求した分だけ送信するので、大きなネットワークの一覧も一定のメモリで調べられます。
+	 * <p>
+	 * エントリは購読者ごとに指定された数 (デフォルトは {@link #MAX_BUFFER} 個) までバッファに溜めます。
+	 * バッファが一杯になったときの動作は、受信したメッセージをどのスレッドで処理しているかで変わります。
+	 * <ul>
+	 * <li>{@link IRCClient#setRingBuffer(int, IRCRingBuffer.WaitStrategy)} でリングバッファを使用している場合は、
+	 * 購読者が次のエントリを要求するまでディスパッチのスレッドで待ちます。その間も受信スレッドはリングバッファが一杯になるまで読み込んで PING に応答し、
+	 * それ以降はサーバからの読み込みを止めるので、一覧の受信の速さは購読者の処理の速さに合わせて抑えられます。
+	 * 問い合わせの応答を待つ時間を過ぎても要求がない場合は、{@link IOException} で中止します。</li>
+	 * <li>リングバッファを使用していない場合は、受信スレッドまたはイベントループのスレッドを止めると PING に応答できなくなるので待ちません。
+	 * エントリを捨てずに {@link IOException} で購読者に通知して、問い合わせも同じ例外で完了します。
+	 * 遅い購読者の場合は、バッファを大きくするか、リングバッファを使用してください。</li>
+	 * </ul>
+	 * どちらの場合も、一部のエントリが欠けた一覧を、正常な結果として返すことはありません。
+	 * 利用者数とトピックで絞り込むことができます。
+	 * 結果は購読者に送信したエントリの数です。
+	 * 
+	 * @see IRCClient#list(int, Pattern)
+	 */
+	public static class ListQuery extends Query<Long> implements Flow.Publisher<ListEntry>
+	{
+		/** デフォルトの購読者ごとのバッファに溜めるエントリの最大数 */
+		public static final int MAX_BUFFER = 8192;
+
+		/** 購読者にエントリを送信するエグゼキュータ */
+		private static final ExecutorService executor = Executors.newCachedThreadPool(VirtualThreads.daemonFactory("IRCListPublisher-"));
+
+		/** 問い合わせを送信する管理 */
+		protected final IRCQueries queries;
+
+		/** エントリのパブリッシャー */
+		protected final SubmissionPublisher<ListEntry> publisher;
+
+		/** 利用者数の最小値 */
+		protected final int minUsers;
+
+		/** トピックのパターン */
+		protected final Pattern topic;
+
+		/** 送信したかどうか */
+		protected final AtomicBoolean sent = new AtomicBoolean();
+
+		/** 購読者に送信したエントリの数 */
+		protected long count;
+
+		/**
+		 * 問い合わせを構築します。
+		 * 
+		 * @param queries 問い合わせを送信する管理
+		 * @param param LIST のパラメータ、すべてのチャンネルの場合は null
+		 * @param minUsers 利用者数の最小値、絞り込まない場合は 0
+		 * @param topic トピックのパターン、絞り込まない場合は null
+		 */
+		public ListQuery(IRCQueries queries, String param, int minUsers, Pattern topic)
+		{
+			this(queries, param, minUsers, topic, MAX_BUFFER);
+		}
+
+		/**
+		 * 購読者ごとのバッファの大きさを指定して、問い合わせを構築します。
+		 * 
+		 * @param queries 問い合わせを送信する管理
+		 * @param param LIST のパラメータ、すべてのチャンネルの場合は null
+		 * @param minUsers 利用者数の最小値、絞り込まない場合は 0
+		 * @param topic トピックのパターン、絞り込まない場合は null
+		 * @param bufferSize 購読者ごとのバッファに溜めるエントリの最大数
+		 */
+		public ListQuery(IRCQueries queries, String param, int minUsers, Pattern topic, int bufferSize)
+		{
+			super("LIST", param, new String[]{NumericReply.RPL_LIST},
+				new String[]{NumericReply.RPL_LISTEND, NumericReply.RPL_TRYAGAIN},
+				new String[]{NumericReply.RPL_TRYAGAIN});
+			if (bufferSize <= 0) throw new IllegalArgumentException("バッファの大きさが不正です。: " + bufferSize);
+
+			this.publisher = new SubmissionPublisher<ListEntry>(executor, bufferSize);
+			this.queries = queries;
+			this.minUsers = minUsers;
+			this.topic = topic;
+			future.whenComplete(new BiConsumer<Long, Throwable>()
+			{
+				@Override
+				public void accept(Long result, Throwable ex)
+				{
+					if (ex != null)
+					{
+						publisher.closeExceptionally(ex);
+					}
+					else
+					{
+						publisher.close();
+					}
+				}
+			});
+		}
+
+		/**
+		 * 購読者を追加します。
+		 * 最初の購読者の場合は LIST を送信します。
+		 * 
+		 * @param subscriber 購読者
+		 */
+		@Override
+		public void subscribe(Flow.Subscriber<? super ListEntry> subscriber)
+		{
+			publisher.subscribe(subscriber);
+			if (sent.compareAndSet(false, true)) queries.send(this);
+		}
+
+		/**
+		 * RPL_LIST の対象は一覧のチャンネルなので、番号だけで判定します。
+		 */
+		@Override
+		protected boolean matches(IRCMessage message)
+		{
+			String code = message.getCommand();
+			return replies.contains(code) || ends.contains(code);
+		}
+
+		@Override
+		protected void collect(IRCMessage message)
+		{
+			if (error != null || message.getParamsCount() < 2 || !publisher.hasSubscribers()) return;
+
+			ListEntry entry = ListEntry.parse(message);
+			if (entry.users < minUsers || topic != null && !topic.matcher(entry.topic).find()) return;
+
+			int lag;
+			try
+			{
+				lag = queries.irc.isPingAnswered() ? await(entry) : publisher.offer(entry, null);
+			}
+			catch (IllegalStateException ex)
+			{
+				// 待っている間に問い合わせが完了した
+				return;
+			}
+			if (lag < 0)
+			{
+				// 中止して、残りの応答は RPL_LISTEND まで読み捨てる
+				error = new IOException("購読者のバッファが一杯なので、チャンネルの一覧を中止しました。: " + count);
+				log.log(Level.WARNING, error.getMessage());
+				publisher.closeExceptionally(error);
+			}
+			else
+			{
+				count++;
+			}
+		}
+
+		/**
+		 * 購読者がエントリを要求するまで、問い合わせの応答を待つ時間だけ待って送信します。
+		 * 待っている間は応答がなくても時間切れにしないように、最後の応答の時刻を更新します。
+		 * 
+		 * @param entry エントリ
+		 * @return 送信を待っているエントリの数の見積もり、送信できなかった場合は負の値
+		 */
+		private int await(ListEntry entry)
+		{
+			long wait = queries.getTimeout();
+			lastReply = System.nanoTime();
+			try
+			{
+				return wait > 0 ? publisher.offer(entry, wait, TimeUnit.MILLISECONDS, null) : publisher.submit(entry);
+			}
+			finally
+			{
+				lastReply = System.nanoTime();
+			}
+		}
+
+		@Override
+		protected Long result()
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * チャンネルの一覧のエントリです。
+	 */
+	public static class ListEntry
+	{
+		/** チャンネル名 */
+		protected final String channel;
+
+		/** 利用者数 */
+		protected final int users;
+
+		/** トピック */
+		protected final String topic;
+
+		/**
+		 * エントリを構築します。
+		 * 
+		 * @param channel チャンネル名
+		 * @param users 利用者数
+		 * @param topic トピック
+		 */
+		public ListEntry(String channel, int users, String topic)
+		{
+			this.channel = channel;
+			this.users = users;
+			this.topic = topic;
+		}
+
+		/**
+		 * RPL_LIST からエントリを構築します。
+		 * 
+		 * @param message RPL_LIST のメッセージ
+		 * @return エントリ
+		 */
+		public static ListEntry parse(IRCMessage message)
+		{
+			int users = 0;
+			if (message.getParamsCount() > 2)
+			{
+				try
+				{
+					users = Integer.parseInt(message.getParam2());
+				}
+				catch (NumberFormatException ex)
+				{
+					users = 0;
+				}
+			}
+			String trail = message.getTrail();
+			return new ListEntry(message.getParam1(), users, trail != null ? trail : "");
+		}
+
+		/**
+		 * チャンネル名を返します。
+		 * 
+		 * @return チャンネル名
+		 */
+		public String getChannel()
+		{
+			return channel;
+		}
+
+		/**
+		 * 利用者数を返します。
+		 * 
+		 * @return 利用者数
+		 */
+		public int getUsers()
+		{
+			return users;
+		}
+
+		/**
+		 * トピックを返します。
+		 * 
+		 * @return トピック、トピックがない場合は空文字列
+		 */
+		public String getTopic()
+		{
+			return topic;
+		}
+
+		@Override
+		public String toString()
+		{
+			return channel + " " + users + " :" + topic;
+		}
+	}
+}
@@ -0,0 +1,473 @@
+/*
+ * IRCRingBuffer.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 受信スレッドとハンドラを呼び出すスレッドの間で、受信した行を受け渡すリングバッファです。
+ * ハンドラの処理が遅くても、バッファが一杯になるまでは受信を止めないので、PING に応答できずに切断されることを防ぎます。
+ * <p>
+ * スロットは構築時にすべて作成し、受信した行はスロットのバイト列にコピーするので、1行ごとにオブジェクトを生成しません。
+ * 書き込むのは受信スレッド、読み込むのはディスパッチのスレッドの1つずつだけです。
+ * バッファが一杯の場合、受信スレッドは行を捨てずに空きができるまで待ちます。
+ * 待ち方は {@link WaitStrategy} で指定します。
+ * 
+ * @see IRCClient#setRingBuffer(int, IRCRingBuffer.WaitStrategy)
+ */
+public class IRCRingBuffer implements Runnable
+{
+	/** デフォルトのスロットの数 */
+	public static final int DEFAULT_SIZE = 1024;
+
+	/** スロットのバイト列の初期サイズ */
+	protected static final int SLOT_SIZE = 512;
+
+	/** IRCクライアント */
+	protected final IRCClient irc;
+
+	/** スロット */
+	protected final Slot[] slots;
+
+	/** スロットの位置のマスク */
+	protected final int mask;
+
+	/** 待ち方 */
+	protected final WaitStrategy waitStrategy;
+
+	/** 書き込んだ行の数 */
+	protected final AtomicLong published = new AtomicLong();
+
+	/** ハンドラに送信した行の数 */
+	protected final AtomicLong consumed = new AtomicLong();
+
+	/** 送信中の行を受信した時間、送信していない場合は 0 */
+	protected volatile long dispatching;
+
+	/** 遅れの最大値 (ミリ秒) */
+	protected final AtomicLong maxLag = new AtomicLong();
+
+	/** バッファが一杯で受信スレッドが待った回数 */
+	protected final AtomicLong stalls = new AtomicLong();
+
+	/** クローズしたかどうか */
+	protected volatile boolean closed;
+
+	/**
+	 * 指定されたスロットの数のリングバッファを構築します。
+	 * スロットの数は2の累乗に切り上げます。
+	 * 
+	 * @param irc IRCクライアント
+	 * @param size スロットの数
+	 * @param waitStrategy 待ち方
+	 */
+	public IRCRingBuffer(IRCClient irc, int size, WaitStrategy waitStrategy)
+	{
+		if (size <= 0 || size > 1 << 30) throw new IllegalArgumentException("スロットの数が不正です。: " + size);
+		if (waitStrategy == null) throw new IllegalArgumentException("待ち方を指定してください。");
+
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size) capacity <<= 1;
+		this.irc = irc;
+		this.slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++)
+		{
+			slots[i] = new Slot();
+		}
+		this.mask = capacity - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * 受信した行をスロットにコピーして、ディスパッチのスレッドに渡します。
+	 * バッファが一杯の場合は空きができるまで待ちます。
+	 * 受信スレッドだけが呼び出せます。
+	 * 
+	 * @param data バイト列
+	 * @param offset 行の開始位置
+	 * @param length 行の長さ
+	 * @param when 受信した時間
+	 * @return 書き込んだ場合は true、クローズしている場合は false
+	 */
+	public boolean publish(byte[] data, int offset, int length, long when)
+	{
+		long seq = published.get();
+		if (seq - consumed.get() >= slots.length)
+		{
+			stalls.incrementAndGet();
+			int count = 0;
+			while (seq - consumed.get() >= slots.length)
+			{
+				if (closed) return false;
+				waitStrategy.idle(count++);
+			}
+		}
+
+		Slot slot = slots[(int)seq & mask];
+		if (slot.data.length < length) slot.data = new byte[length];
+		System.arraycopy(data, offset, slot.data, 0, length);
+		slot.length = length;
+		slot.when = when;
+		published.lazySet(seq + 1);
+		waitStrategy.signal();
+		return true;
+	}
+
+	/**
+	 * 書き込まれた行を順番にハンドラに送信します。
+	 * クローズした後も、書き込まれていた行をすべて送信してから終了します。
+	 */
+	@Override
+	public void run()
+	{
+		long seq = consumed.get();
+		while (true)
+		{
+			long available = published.get();
+			if (available == seq)
+			{
+				if (closed && published.get() == seq) return;
+				int count = 0;
+				while ((available = published.get()) == seq)
+				{
+					if (closed) break;
+					waitStrategy.idle(count++);
+				}
+				continue;
+			}
+
+			for (; seq < available; seq++)
+			{
+				Slot slot = slots[(int)seq & mask];
+				dispatching = slot.when;
+				updateMaxLag(System.currentTimeMillis() - slot.when);
+				irc.fireMessage(slot.data, 0, slot.length, slot.when);
+				consumed.lazySet(seq + 1);
+				waitStrategy.signal();
+			}
+			dispatching = 0;
+		}
+	}
+
+	/**
+	 * 遅れの最大値を更新します。
+	 * 
+	 * @param lag 遅れ (ミリ秒)
+	 */
+	private void updateMaxLag(long lag)
+	{
+		long max;
+		while (lag > (max = maxLag.get()) && !maxLag.compareAndSet(max, lag))
+		{
+			// 最大値を更新する
+		}
+	}
+
+	/**
+	 * リングバッファをクローズします。
+	 * 待っている受信スレッドは書き込まずに戻り、ディスパッチのスレッドは残りの行を送信してから終了します。
+	 */
+	public void close()
+	{
+		closed = true;
+		waitStrategy.signal();
+	}
+
+	/**
+	 * クローズしたかどうか判定します。
+	 * 
+	 * @return クローズした場合は true
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * スロットの数を返します。
+	 * 
+	 * @return スロットの数
+	 */
+	public int getCapacity()
+	{
+		return slots.length;
+	}
+
+	/**
+	 * 待ち方を返します。
+	 * 
+	 * @return 待ち方
+	 */
+	public WaitStrategy getWaitStrategy()
+	{
+		return waitStrategy;
+	}
+
+	/**
+	 * 受信したがハンドラに送信し終わっていない行の数を返します。
+	 * 
+	 * @return 行の数
+	 */
+	public int getLag()
+	{
+		return (int)(published.get() - consumed.get());
+	}
+
+	/**
+	 * 送信中の行を受信してからの時間を返します。
+	 * ディスパッチが受信からどれだけ遅れているかを示します。
+	 * 
+	 * @return 遅れ (ミリ秒)、送信中の行がない場合は 0
+	 */
+	public long getLagTime()
+	{
+		long when = dispatching;
+		return when == 0 ? 0 : Math.max(0, System.currentTimeMillis() - when);
+	}
+
+	/**
+	 * 受信してからハンドラに送信するまでの遅れの最大値を返します。
+	 * 
+	 * @return 遅れ (ミリ秒)
+	 */
+	public long getMaxLagTime()
+	{
+		return maxLag.get();
+	}
+
+	/**
+	 * 受信した行の数を返します。
+	 * 
+	 * @return 行の数
+	 */
+	public long getPublishedCount()
+	{
+		return published.get();
+	}
+
+	/**
+	 * バッファが一杯で受信スレッドが待った回数を返します。
+	 * 
+	 * @return 回数
+	 */
+	public long getStallCount()
+	{
+		return stalls.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s[capacity=%d, lag=%d, lagTime=%dms, maxLag=%dms, stalls=%d, %s]", getClass().getSimpleName(), getCapacity(), getLag(), getLagTime(), getMaxLagTime(), getStallCount(), waitStrategy);
+	}
+
+	/**
+	 * 受信した行を格納するスロットです。
+	 */
+	protected static class Slot
+	{
+		/** バイト列 */
+		byte[] data = new byte[SLOT_SIZE];
+
+		/** 行の長さ */
+		int length;
+
+		/** 受信した時間 */
+		long when;
+	}
+
+	/**
+	 * バッファが空または一杯のときの待ち方です。
+	 * 1つのリングバッファで、受信スレッドとディスパッチのスレッドが共有します。
+	 * <ul>
+	 * <li>{@link #busySpin()} は CPU を占有して待つので、遅れが最も小さくなります。両方のスレッドにそれぞれ CPU がない場合は使用しないでください。</li>
+	 * <li>{@link #yielding()} はしばらく回ってから、ほかのスレッドに CPU を譲ります。</li>
+	 * <li>{@link #sleeping()} はさらに短い時間ずつ休止します。</li>
+	 * <li>{@link #blocking()} は通知されるまで休止するので、CPU を使いません。</li>
+	 * </ul>
+	 */
+	public abstract static class WaitStrategy
+	{
+		/** スピンする回数 */
+		protected static final int SPIN_TRIES = 100;
+
+		/** 譲る回数 */
+		protected static final int YIELD_TRIES = 100;
+
+		/**
+		 * 条件が満たされていないときに1回待ちます。
+		 * 呼び出し元は戻るたびに条件を判定し直します。
+		 * 
+		 * @param count 続けて待った回数
+		 */
+		public abstract void idle(int count);
+
+		/**
+		 * 待っているスレッドに、条件が変わったことを通知します。
+		 */
+		public void signal()
+		{
+		}
+
+		/**
+		 * CPU を占有して待つ待ち方を返します。
+		 * 
+		 * @return 待ち方
+		 */
+		public static WaitStrategy busySpin()
+		{
+			return new WaitStrategy()
+			{
+				@Override
+				public void idle(int count)
+				{
+				}
+
+				@Override
+				public String toString()
+				{
+					return "busySpin";
+				}
+			};
+		}
+
+		/**
+		 * しばらく回ってから、ほかのスレッドに CPU を譲る待ち方を返します。
+		 * 
+		 * @return 待ち方
+		 */
+		public static WaitStrategy yielding()
+		{
+			return new WaitStrategy()
+			{
+				@Override
+				public void idle(int count)
+				{
+					if (count >= SPIN_TRIES) Thread.yield();
+				}
+
+				@Override
+				public String toString()
+				{
+					return "yielding";
+				}
+			};
+		}
+
+		/**
+		 * 回って、譲って、それでも変わらない場合は短い時間ずつ休止する待ち方を返します。
+		 * 
+		 * @return 待ち方
+		 */
+		public static WaitStrategy sleeping()
+		{
+			return new WaitStrategy()
+			{
+				@Override
+				public void idle(int count)
+				{
+					if (count >= SPIN_TRIES + YIELD_TRIES)
+					{
+						LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+					}
+					else if (count >= SPIN_TRIES)
+					{
+						Thread.yield();
+					}
+				}
+
+				@Override
+				public String toString()
+				{
+					return "sleeping";
+				}
+			};
+		}
+
+		/**
+		 * 通知されるまで休止する待ち方を返します。
+		 * 
+		 * @return 待ち方
+		 */
+		public static WaitStrategy blocking()
+		{
+			return new BlockingWaitStrategy();
+		}
+	}
+
+	/**
+	 * 通知されるまで休止する待ち方です。
+	 * 判定してから休止するまでの間の通知を失わないように、通知されたことを記録しておきます。
+	 * 休止しているスレッドがない場合は、ロックせずに記録するだけです。
+	 */
+	protected static class BlockingWaitStrategy extends WaitStrategy
+	{
+		/** 休止する最大時間 (ミリ秒) */
+		protected static final long MAX_WAIT = 100;
+
+		/** ロック */
+		protected final ReentrantLock lock = new ReentrantLock();
+
+		/** 通知の条件 */
+		protected final Condition changed = lock.newCondition();
+
+		/** 通知されたかどうか */
+		protected volatile boolean signalled;
+
+		/** 休止しているスレッドの数 */
+		protected volatile int waiters;
+
+		@Override
+		public void idle(int count)
+		{
+			lock.lock();
+			try
+			{
+				waiters++;
+				if (!signalled) changed.await(MAX_WAIT, TimeUnit.MILLISECONDS);
+				signalled = false;
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				waiters--;
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void signal()
+		{
+			signalled = true;
+			if (waiters == 0) return;
+
+			lock.lock();
+			try
+			{
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "blocking";
+		}
+	}
+}
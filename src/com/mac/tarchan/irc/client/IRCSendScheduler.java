@@ -0,0 +1,743 @@
+/*
+ * IRCSendScheduler.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import com.mac.tarchan.irc.client.IRCOutputQueue.Line;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 送信するメッセージの順番と時刻を決めて、サーバの「Excess Flood」による切断を防ぎます。
+ * サーバのペナルティ規則と同じく、送信するたびに時計を進めて、時計が現在時刻より一定時間以上先に進んでいる間は送信を待ちます。
+ * 1行あたり {@link #getInterval()} ミリ秒、さらに 120 バイトごとに同じだけ進み、
+ * {@link #getBurst()} 行分までは待たずに送信できます。
+ * 速度の制限はデフォルトでは行わないので、{@link IRCClient#setFloodControl(int, long)} で有効にします。
+ * <p>
+ * メッセージは4つのレーンに分けます。
+ * <ul>
+ * <li>PONG、NICK などの優先レーンは、待たずに最初に送信します。</li>
+ * <li>WHO、AWAY などチャンネルを宛先にしない通常レーンは、優先レーンの次に送信します。</li>
+ * <li>JOIN、PART、MODE、KICK、TOPIC、PRIVMSG、NOTICE は宛先ごとのキューに分けて、宛先を順番に切り替えながら送信します。
+ * 同じ宛先のメッセージは、コマンドが違っても追加した順番に送信します。</li>
+ * <li>QUIT は、ほかのレーンのメッセージをすべて送信してから送信します。
+ * 接続をクローズするときは、速度の制限内で送信できるものだけ送信してから QUIT を送信し、残りは破棄します。</li>
+ * </ul>
+ * 宛先の先頭で待っている JOIN と、同じメッセージの PART は、
+ * 「JOIN #a,#b,#c keyA,keyB」のように1行にまとめて送信します。
+ * 1行の長さは接続の文字コードで {@link IRCOutputBuffer#MAX_LINE_LENGTH} バイトまで、
+ * チャンネルの数はサーバが RPL_ISUPPORT で通知した TARGMAX と CHANLIMIT までにします。
+ * 最初の JOIN または PART は {@link #getCoalesceWindow()} ミリ秒だけ待って、その間に追加されたものもまとめます。
+ * このクラスはライタのスレッドだけが使用します。統計情報はどのスレッドからでも参照できます。
+ * 
+ * @see IRCOutputQueue
+ * @see IRCClient#setFloodControl(int, long)
+ */
+public class IRCSendScheduler
+{
+	/** 優先レーン */
+	public static final int PRIORITY_HIGH = 0;
+
+	/** 通常レーン */
+	public static final int PRIORITY_NORMAL = 1;
+
+	/** 宛先ごとのレーン */
+	public static final int PRIORITY_BULK = 2;
+
+	/** ほかのレーンを送信してから送信するレーン */
+	public static final int PRIORITY_LAST = 3;
+
+	/** デフォルトの連続送信できる行数 */
+	public static final int DEFAULT_BURST = 5;
+
+	/** デフォルトの1行あたりの間隔 (ミリ秒)、デフォルトは制限しない */
+	public static final long DEFAULT_INTERVAL = 0;
+
+	/** 多くのサーバのペナルティ規則に合わせた1行あたりの間隔 (ミリ秒) */
+	public static final long RECOMMENDED_INTERVAL = 2000;
+
+	/** ペナルティが1行分増えるバイト数 */
+	protected static final int PENALTY_BYTES = 120;
+
+	/** デフォルトの JOIN と PART をまとめるために待つ時間 (ミリ秒) */
+	public static final long DEFAULT_COALESCE_WINDOW = 20;
+
+	/** 優先レーン */
+	protected final ArrayDeque<Line> high = new ArrayDeque<Line>();
+
+	/** 通常レーン */
+	protected final ArrayDeque<Line> normal = new ArrayDeque<Line>();
+
+	/** 宛先ごとのキュー */
+	protected final HashMap<String, ArrayDeque<Line>> targets = new HashMap<String, ArrayDeque<Line>>();
+
+	/** 送信を待っている宛先の順番 */
+	protected final ArrayDeque<String> rotation = new ArrayDeque<String>();
+
+	/** ほかのレーンを送信してから送信するレーン */
+	protected final ArrayDeque<Line> last = new ArrayDeque<Line>();
+
+	/** 1行あたりの間隔 (ナノ秒)、0 の場合は制限しない */
+	protected volatile long intervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL);
+
+	/** 連続送信できる行数 */
+	protected volatile int burst = DEFAULT_BURST;
+
+	/** ペナルティの時計 (ナノ秒) */
+	protected long clock = System.nanoTime();
+
+	/** JOIN と PART をまとめるかどうか */
+	protected volatile boolean coalescing = true;
+
+	/** JOIN と PART をまとめるために待つ時間 (ナノ秒) */
+	protected volatile long coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_COALESCE_WINDOW);
+
+	/** 1行の JOIN のチャンネルの最大数、0 の場合は制限しない */
+	protected volatile int joinTargets;
+
+	/** 1行の PART のチャンネルの最大数、0 の場合は制限しない */
+	protected volatile int partTargets;
+
+	/** 参加できるチャンネルの最大数、0 の場合は制限しない */
+	protected volatile int chanLimit;
+
+	/** 行の長さを数える文字コード */
+	protected Charset charset = StandardCharsets.UTF_8;
+
+	/** まとめて送信しなかった行の数 */
+	protected final LongAdder coalesced = new LongAdder();
+
+	/** クローズする前に、待たずに送信するかどうか */
+	protected boolean flushing;
+
+	/** 送信を待っているメッセージの数 */
+	protected final AtomicInteger depth = new AtomicInteger();
+
+	/** 送信したメッセージの数 */
+	protected final LongAdder sent = new LongAdder();
+
+	/** 送信を待った時間の合計 (ナノ秒) */
+	protected final LongAdder totalWait = new LongAdder();
+
+	/** 送信を待った時間の最大値 (ナノ秒) */
+	protected final AtomicLong maxWait = new AtomicLong();
+
+	/**
+	 * 送信の速度を設定します。
+	 * 
+	 * @param burst 連続送信できる行数
+	 * @param interval 1行あたりの間隔 (ミリ秒)、0 の場合は制限しない
+	 */
+	public void setRate(int burst, long interval)
+	{
+		if (burst <= 0) throw new IllegalArgumentException("行数が不正です。: " + burst);
+		if (interval < 0) throw new IllegalArgumentException("間隔が不正です。: " + interval);
+
+		this.burst = burst;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+	}
+
+	/**
+	 * 連続送信できる行数を返します。
+	 * 
+	 * @return 行数
+	 */
+	public int getBurst()
+	{
+		return burst;
+	}
+
+	/**
+	 * 1行あたりの間隔を返します。
+	 * 
+	 * @return 間隔 (ミリ秒)、制限しない場合は 0
+	 */
+	public long getInterval()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+	}
+
+	/**
+	 * JOIN と PART をまとめるかどうかを設定します。
+	 * 
+	 * @param coalescing まとめる場合は true
+	 * @param window 最初の JOIN または PART を待つ時間 (ミリ秒)、0 の場合は待たずに溜まっているものだけまとめる
+	 */
+	public void setCoalescing(boolean coalescing, long window)
+	{
+		if (window < 0) throw new IllegalArgumentException("待ち時間が不正です。: " + window);
+
+		this.coalescing = coalescing;
+		this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+	}
+
+	/**
+	 * JOIN と PART をまとめるかどうか判定します。
+	 * 
+	 * @return まとめる場合は true
+	 */
+	public boolean isCoalescing()
+	{
+		return coalescing;
+	}
+
+	/**
+	 * JOIN と PART をまとめるために待つ時間を返します。
+	 * 
+	 * @return 待ち時間 (ミリ秒)
+	 */
+	public long getCoalesceWindow()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(coalesceWindowNanos);
+	}
+
+	/**
+	 * 1行にまとめるチャンネルの数の上限を設定します。
+	 * サーバが RPL_ISUPPORT で通知した TARGMAX と CHANLIMIT の値を設定します。
+	 * 
+	 * @param joinTargets 1行の JOIN のチャンネルの最大数、0 の場合は制限しない
+	 * @param partTargets 1行の PART のチャンネルの最大数、0 の場合は制限しない
+	 * @param chanLimit 参加できるチャンネルの最大数、0 の場合は制限しない
+	 */
+	public void setTargetLimits(int joinTargets, int partTargets, int chanLimit)
+	{
+		if (joinTargets < 0 || partTargets < 0 || chanLimit < 0) throw new IllegalArgumentException("チャンネルの数が不正です。");
+
+		this.joinTargets = joinTargets;
+		this.partTargets = partTargets;
+		this.chanLimit = chanLimit;
+	}
+
+	/**
+	 * 行の長さを数える文字コードを設定します。ライタが接続の文字コードを設定します。
+	 * 
+	 * @param charset 文字コード
+	 */
+	public void setCharset(Charset charset)
+	{
+		this.charset = charset;
+	}
+
+	/**
+	 * 指定されたコマンドのレーンを返します。
+	 * 
+	 * @param command コマンド、コマンドがない場合は null
+	 * @return レーン
+	 */
+	public static int priorityOf(String command)
+	{
+		if (command == null) return PRIORITY_NORMAL;
+
+		switch (IRCCommand.lookup(command))
+		{
+			case PONG:
+			case PING:
+			case NICK:
+			case PASS:
+			case USER:
+			case CAP:
+			case AUTHENTICATE:
+				return PRIORITY_HIGH;
+			case JOIN:
+			case PART:
+			case MODE:
+			case KICK:
+			case TOPIC:
+			case PRIVMSG:
+			case NOTICE:
+				return PRIORITY_BULK;
+			case QUIT:
+				return PRIORITY_LAST;
+			default:
+				return PRIORITY_NORMAL;
+		}
+	}
+
+	/**
+	 * 出力キューにメッセージが追加されたことを記録します。
+	 * どのスレッドからでも呼び出せます。
+	 */
+	void added()
+	{
+		depth.incrementAndGet();
+	}
+
+	/**
+	 * 送信するメッセージをレーンに振り分けます。
+	 * 
+	 * @param line メッセージ
+	 */
+	public void offer(Line line)
+	{
+		switch (line.priority)
+		{
+			case PRIORITY_HIGH:
+				high.add(line);
+				break;
+			case PRIORITY_BULK:
+				String target = line.target != null ? line.target.toLowerCase(Locale.ENGLISH) : "";
+				ArrayDeque<Line> queue = targets.get(target);
+				if (queue == null)
+				{
+					queue = new ArrayDeque<Line>();
+					targets.put(target, queue);
+					rotation.add(target);
+				}
+				queue.add(line);
+				break;
+			case PRIORITY_LAST:
+				last.add(line);
+				break;
+			default:
+				normal.add(line);
+				break;
+		}
+	}
+
+	/**
+	 * 次に送信するメッセージを返します。
+	 * 優先レーンのメッセージはいつでも返します。それ以外は送信できる時刻になるまで null を返します。
+	 * QUIT は、通常レーンと宛先ごとのキューが空になったとき、
+	 * またはクローズする前にそれ以上送信できなくなったときに返します。
+	 * 
+	 * @param now 現在時刻 (ナノ秒)
+	 * @return メッセージ、送信できるメッセージがない場合は null
+	 */
+	public Line poll(long now)
+	{
+		Line line = high.poll();
+		if (line != null) return line;
+
+		if (hasQueued() && isReady(now) && holdTime(now) == 0)
+		{
+			line = normal.poll();
+			if (line == null)
+			{
+				line = pollTarget();
+				if (coalescing && (isJoin(line) || isPart(line))) line = coalesce(line);
+			}
+			return line;
+		}
+		if (!hasQueued() || flushing) return last.poll();
+		return null;
+	}
+
+	/**
+	 * 通常レーンまたは宛先ごとのキューに、送信を待っているメッセージがあるかどうか判定します。
+	 * 
+	 * @return メッセージがある場合は true
+	 */
+	protected boolean hasQueued()
+	{
+		return !normal.isEmpty() || !rotation.isEmpty();
+	}
+
+	/**
+	 * 次に送信する JOIN または PART を、まとめるために待つ残り時間を返します。
+	 * 
+	 * @param now 現在時刻 (ナノ秒)
+	 * @return 残り時間 (ナノ秒)、待たない場合は 0
+	 */
+	protected long holdTime(long now)
+	{
+		long window = coalesceWindowNanos;
+		if (!coalescing || window == 0 || flushing) return 0;
+
+		Line next = normal.peek();
+		if (next == null && !rotation.isEmpty()) next = targets.get(rotation.peek()).peek();
+		if (next == null || !(isJoin(next) || isPart(next))) return 0;
+		return Math.max(0, window - (now - next.queued));
+	}
+
+	/**
+	 * まとめることができる JOIN かどうか判定します。
+	 * 
+	 * @param line メッセージ
+	 * @return まとめることができる場合は true
+	 */
+	private static boolean isJoin(Line line)
+	{
+		return line != null && line.raw == null && "JOIN".equalsIgnoreCase(line.command) && line.param1 != null && !line.param1.equals("0") && line.param3 == null && line.trail == null;
+	}
+
+	/**
+	 * まとめることができる PART かどうか判定します。
+	 * 
+	 * @param line メッセージ
+	 * @return まとめることができる場合は true
+	 */
+	private static boolean isPart(Line line)
+	{
+		return line != null && line.raw == null && "PART".equalsIgnoreCase(line.command) && line.param1 != null && line.param2 == null && line.param3 == null;
+	}
+
+	/**
+	 * 1行のチャンネルの数の上限を返します。
+	 * 
+	 * @param targets TARGMAX の値
+	 * @return 上限、制限しない場合は {@link Integer#MAX_VALUE}
+	 */
+	private int maxTargets(int targets)
+	{
+		int max = targets > 0 ? targets : Integer.MAX_VALUE;
+		int limit = chanLimit;
+		return limit > 0 ? Math.min(max, limit) : max;
+	}
+
+	/**
+	 * 指定された文字列のバイト数を返します。
+	 * 
+	 * @param text 文字列
+	 * @return バイト数
+	 */
+	private int bytes(String text)
+	{
+		return text.getBytes(charset).length;
+	}
+
+	/**
+	 * 指定された JOIN または PART に、ほかの宛先の先頭で待っている同じコマンドとメッセージのものをまとめます。
+	 * 宛先の先頭だけをまとめるので、同じチャンネルへのほかのメッセージとの順番は変わりません。
+	 * JOIN はキーワードのあるチャンネルを先に並べます。
+	 * 
+	 * @param first 最初の JOIN または PART
+	 * @return まとめたメッセージ
+	 */
+	protected Line coalesce(Line first)
+	{
+		boolean join = isJoin(first);
+		String command = join ? "JOIN" : "PART";
+		Targets lines = new Targets(first);
+		int max = maxTargets(join ? joinTargets : partTargets);
+		int limit = IRCOutputBuffer.MAX_LINE_LENGTH - 2 - bytes(command + " ") - (first.trail != null ? bytes(" :" + first.trail) : 0);
+		Iterator<String> it = rotation.iterator();
+		while (it.hasNext() && lines.count < max)
+		{
+			String target = it.next();
+			ArrayDeque<Line> queue = targets.get(target);
+			Line next = queue.peek();
+			if (!(join ? isJoin(next) : isPart(next)) || !equals(first.trail, next.trail)) continue;
+
+			Targets more = new Targets(next);
+			if (lines.count + more.count > max || lines.length(more) > limit) continue;
+
+			lines.add(more);
+			queue.poll();
+			if (queue.isEmpty())
+			{
+				targets.remove(target);
+				it.remove();
+			}
+		}
+		return lines.toLine(first, command, first.trail);
+	}
+
+	/**
+	 * 2つの文字列が等しいかどうか判定します。
+	 * 
+	 * @param a 文字列
+	 * @param b 文字列
+	 * @return 等しい場合は true
+	 */
+	private static boolean equals(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * 宛先を順番に切り替えながら、次のメッセージを取り出します。
+	 * 
+	 * @return メッセージ
+	 */
+	private Line pollTarget()
+	{
+		String target = rotation.poll();
+		ArrayDeque<Line> queue = targets.get(target);
+		Line line = queue.poll();
+		if (queue.isEmpty())
+		{
+			targets.remove(target);
+		}
+		else
+		{
+			rotation.add(target);
+		}
+		return line;
+	}
+
+	/**
+	 * 送信したメッセージのペナルティを加えて、統計情報を更新します。
+	 * 
+	 * @param line メッセージ
+	 * @param bytes 送信したバイト数
+	 * @param now 現在時刻 (ナノ秒)
+	 */
+	public void sent(Line line, int bytes, long now)
+	{
+		depth.addAndGet(-line.lines);
+		sent.increment();
+		long wait = now - line.queued;
+		totalWait.add(wait);
+		long max;
+		while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait))
+		{
+			// 最大値を更新する
+		}
+
+		long interval = intervalNanos;
+		if (interval == 0) return;
+		if (clock - now < 0) clock = now;
+		clock += interval * (1 + bytes / PENALTY_BYTES);
+	}
+
+	/**
+	 * 優先レーン以外のメッセージを送信できるかどうか判定します。
+	 * 
+	 * @param now 現在時刻 (ナノ秒)
+	 * @return 送信できる場合は true
+	 */
+	protected boolean isReady(long now)
+	{
+		long interval = intervalNanos;
+		return interval == 0 || clock - now < interval * burst;
+	}
+
+	/**
+	 * 次にメッセージを送信できるまでの時間を返します。
+	 * 
+	 * @param now 現在時刻 (ナノ秒)
+	 * @return 待ち時間 (ナノ秒)、送信を待っているメッセージがない場合は -1
+	 */
+	public long delay(long now)
+	{
+		if (!high.isEmpty()) return 0;
+		if (isEmpty()) return -1;
+		if (!hasQueued()) return 0;
+
+		long hold = holdTime(now);
+		long interval = intervalNanos;
+		if (interval == 0) return hold;
+		return Math.max(hold, clock - now - interval * burst + 1);
+	}
+
+	/**
+	 * 送信を待っているメッセージがないかどうか判定します。
+	 * 
+	 * @return メッセージがない場合は true
+	 */
+	public boolean isEmpty()
+	{
+		return high.isEmpty() && normal.isEmpty() && rotation.isEmpty() && last.isEmpty();
+	}
+
+	/**
+	 * 送信を待っているメッセージをすべて破棄します。
+	 * 
+	 * @return 破棄したメッセージの数
+	 */
+	public int clear()
+	{
+		int count = high.size() + normal.size() + last.size();
+		high.clear();
+		normal.clear();
+		last.clear();
+		for (ArrayDeque<Line> queue : targets.values())
+		{
+			count += queue.size();
+		}
+		targets.clear();
+		rotation.clear();
+		depth.addAndGet(-count);
+		return count;
+	}
+
+	/**
+	 * 送信を待っているメッセージの数を返します。
+	 * 
+	 * @return メッセージの数
+	 */
+	public int getQueueDepth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * 送信したメッセージの数を返します。
+	 * 
+	 * @return メッセージの数
+	 */
+	public long getSentCount()
+	{
+		return sent.sum();
+	}
+
+	/**
+	 * JOIN と PART をまとめたので送信しなかった行の数を返します。
+	 * 
+	 * @return 行の数
+	 */
+	public long getCoalescedCount()
+	{
+		return coalesced.sum();
+	}
+
+	/**
+	 * 追加してから送信するまでの平均の待ち時間を返します。
+	 * 
+	 * @return 待ち時間 (ミリ秒)
+	 */
+	public double getAverageWait()
+	{
+		long count = sent.sum();
+		return count == 0 ? 0 : totalWait.sum() / 1e6 / count;
+	}
+
+	/**
+	 * 追加してから送信するまでの最大の待ち時間を返します。
+	 * 
+	 * @return 待ち時間 (ミリ秒)
+	 */
+	public double getMaxWait()
+	{
+		return maxWait.get() / 1e6;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s[depth=%d, sent=%d, coalesced=%d, avgWait=%.1fms, maxWait=%.1fms]", getClass().getSimpleName(), getQueueDepth(), getSentCount(), getCoalescedCount(), getAverageWait(), getMaxWait());
+	}
+
+	/**
+	 * JOIN または PART にまとめるチャンネルとキーワードです。
+	 */
+	private class Targets
+	{
+		/** キーワードのあるチャンネル */
+		final ArrayList<String> keyed = new ArrayList<String>();
+
+		/** キーワードのないチャンネル */
+		final ArrayList<String> plain = new ArrayList<String>();
+
+		/** キーワード */
+		final ArrayList<String> keys = new ArrayList<String>();
+
+		/** チャンネルの数 */
+		int count;
+
+		/** チャンネル名のバイト数の合計 */
+		int nameBytes;
+
+		/** キーワードのバイト数の合計 */
+		int keyBytes;
+
+		/** まとめた行の数 */
+		int lines = 1;
+
+		/**
+		 * 指定されたメッセージのチャンネルとキーワードを取り出します。
+		 * 
+		 * @param line JOIN または PART
+		 */
+		Targets(Line line)
+		{
+			String[] names = line.param1.split(",");
+			String[] values = "JOIN".equalsIgnoreCase(line.command) && line.param2 != null ? line.param2.split(",") : new String[0];
+			for (int i = 0; i < names.length; i++)
+			{
+				if (names[i].isEmpty()) continue;
+
+				if (i < values.length && !values[i].isEmpty())
+				{
+					keyed.add(names[i]);
+					keys.add(values[i]);
+					keyBytes += bytes(values[i]);
+				}
+				else
+				{
+					plain.add(names[i]);
+				}
+				nameBytes += bytes(names[i]);
+				count++;
+			}
+		}
+
+		/**
+		 * 指定されたチャンネルを加えたときの、コマンドを除いた行のバイト数を返します。
+		 * 
+		 * @param more 加えるチャンネル
+		 * @return バイト数
+		 */
+		int length(Targets more)
+		{
+			int n = count + more.count;
+			int k = keys.size() + more.keys.size();
+			return nameBytes + more.nameBytes + n - 1 + (k > 0 ? keyBytes + more.keyBytes + k : 0);
+		}
+
+		/**
+		 * 指定されたチャンネルを加えます。
+		 * 
+		 * @param more 加えるチャンネル
+		 */
+		void add(Targets more)
+		{
+			keyed.addAll(more.keyed);
+			plain.addAll(more.plain);
+			keys.addAll(more.keys);
+			count += more.count;
+			nameBytes += more.nameBytes;
+			keyBytes += more.keyBytes;
+			lines += more.lines;
+		}
+
+		/**
+		 * まとめたメッセージを作成します。まとめなかった場合は最初のメッセージを返します。
+		 * 
+		 * @param first 最初のメッセージ
+		 * @param command コマンド
+		 * @param trail トレイル
+		 * @return メッセージ
+		 */
+		Line toLine(Line first, String command, String trail)
+		{
+			if (lines == 1) return first;
+
+			StringBuilder names = new StringBuilder();
+			for (String name : keyed)
+			{
+				if (names.length() > 0) names.append(',');
+				names.append(name);
+			}
+			for (String name : plain)
+			{
+				if (names.length() > 0) names.append(',');
+				names.append(name);
+			}
+			StringBuilder values = new StringBuilder();
+			for (String key : keys)
+			{
+				if (values.length() > 0) values.append(',');
+				values.append(key);
+			}
+			Line line = new Line(command, names.toString(), values.length() > 0 ? values.toString() : null, null, trail);
+			line.queued = first.queued;
+			line.lines = lines;
+			coalesced.add(lines - 1);
+			return line;
+		}
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ * IRCSession.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 再接続したときに元に戻すセッションの状態を記録します。
+ * 参加しているチャンネルとキーワード、不在メッセージ、ニックネームをサーバからの応答で更新し、
+ * 再接続して {@link NumericReply#RPL_WELCOME} を受け取ったら、できるだけ少ない行数で送り直します。
+ * チャンネルの JOIN は、出力キューが1行に収まるだけまとめて、キーワードのあるチャンネルを先に並べます。
+ * <p>
+ * 切断してから、送り直したチャンネルすべてに参加するか参加できなかったと分かるまでの時間を、再参加の時間として記録します。
+ * 
+ * @see IRCClient#setAutoReconnect(boolean)
+ */
+public class IRCSession implements IRCHandler
+{
+	private static final Logger log = Logger.getLogger(IRCSession.class.getName());
+
+	/** IRCクライアント */
+	protected final IRCClient irc;
+
+	/** 状態のロック */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/** 参加しているチャンネルとキーワード */
+	protected final TreeMap<String, String> channels = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+	/** JOIN を送信したチャンネルのキーワード */
+	protected final TreeMap<String, String> keywords = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+	/** 参加し直すのを待っているチャンネル */
+	protected final TreeSet<String> pending = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+	/** 不在メッセージ、不在でない場合は null */
+	protected volatile String away;
+
+	/** 切断した時間、再参加が終わっている場合は 0 */
+	protected long disconnected;
+
+	/** 再接続した回数 */
+	protected final AtomicLong reconnects = new AtomicLong();
+
+	/** 最後の再参加の時間 (ミリ秒) */
+	protected volatile long lastRejoinTime = -1;
+
+	/** 再参加の時間の最大値 (ミリ秒) */
+	protected volatile long maxRejoinTime = -1;
+
+	/**
+	 * 指定されたクライアントのセッションを構築します。
+	 * 
+	 * @param irc IRCクライアント
+	 */
+	public IRCSession(IRCClient irc)
+	{
+		this.irc = irc;
+	}
+
+	@Override
+	public void onMessage(IRCEvent event)
+	{
+		IRCMessage message = event.getMessage();
+		switch (message.getCommandCode())
+		{
+			case JOIN:
+				if (isSelf(message)) joined(channelOf(message));
+				break;
+			case PART:
+				if (isSelf(message)) left(channelOf(message));
+				break;
+			case KICK:
+				if (message.getParamsCount() > 1 && isSelf(message.getParam1())) left(message.getParam0());
+				break;
+			case NICK:
+				if (isSelf(message)) irc.setUserNick(channelOf(message));
+				break;
+			case NUMERIC:
+				numeric(message);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * ニュメリックリプライで、ログインの完了と参加できなかったチャンネルを処理します。
+	 * 
+	 * @param message IRCメッセージ
+	 */
+	protected void numeric(IRCMessage message)
+	{
+		switch (message.getCommand())
+		{
+			case NumericReply.RPL_WELCOME:
+				if (message.getParamsCount() > 0) irc.setUserNick(message.getParam0());
+				welcome();
+				break;
+			case NumericReply.ERR_NOSUCHCHANNEL:
+			case NumericReply.ERR_TOOMANYCHANNELS:
+			case NumericReply.ERR_UNAVAILRESOURCE:
+			case NumericReply.ERR_CHANNELISFULL:
+			case NumericReply.ERR_INVITEONLYCHAN:
+			case NumericReply.ERR_BANNEDFROMCHAN:
+			case NumericReply.ERR_BADCHANNELKEY:
+			case NumericReply.ERR_BADCHANMASK:
+			case NumericReply.ERR_NEEDREGGEDNICK:
+				if (message.getParamsCount() > 1) rejected(message.getParam1());
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * 指定されたメッセージの送信者が自分かどうか判定します。
+	 * 
+	 * @param message IRCメッセージ
+	 * @return 自分の場合は true
+	 */
+	protected boolean isSelf(IRCMessage message)
+	{
+		return isSelf(message.getPrefix().getNick());
+	}
+
+	/**
+	 * 指定されたニックネームが自分かどうか判定します。
+	 * 
+	 * @param nick ニックネーム
+	 * @return 自分の場合は true
+	 */
+	protected boolean isSelf(String nick)
+	{
+		return nick != null && nick.equalsIgnoreCase(irc.getUserNick());
+	}
+
+	/**
+	 * JOIN、PART、NICK の対象を返します。パラメータではなくトレーラーで送るサーバにも対応します。
+	 * 
+	 * @param message IRCメッセージ
+	 * @return チャンネル名またはニックネーム
+	 */
+	private static String channelOf(IRCMessage message)
+	{
+		String param = message.getParamsCount() > 0 ? message.getParam0() : null;
+		return param != null && !param.isEmpty() ? param : message.getTrail();
+	}
+
+	/**
+	 * チャンネルに参加するメッセージを送信したことを記録します。
+	 * 
+	 * @param channel チャンネル名、カンマで区切った複数のチャンネル名
+	 * @param keyword キーワード、カンマで区切った複数のキーワード
+	 */
+	public void join(String channel, String keyword)
+	{
+		if (channel == null) return;
+
+		lock.lock();
+		try
+		{
+			String[] names = channel.split(",");
+			String[] keys = keyword != null ? keyword.split(",") : new String[0];
+			for (int i = 0; i < names.length; i++)
+			{
+				if (i < keys.length && !keys[i].isEmpty())
+				{
+					keywords.put(names[i], keys[i]);
+				}
+				else
+				{
+					keywords.remove(names[i]);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 不在メッセージを送信したことを記録します。
+	 * 
+	 * @param text 不在メッセージ、不在を解除した場合は null
+	 */
+	public void away(String text)
+	{
+		away = text != null && !text.isEmpty() ? text : null;
+	}
+
+	/**
+	 * チャンネルに参加したときに呼び出されます。
+	 * 
+	 * @param channel チャンネル名
+	 */
+	protected void joined(String channel)
+	{
+		if (channel == null) return;
+
+		lock.lock();
+		try
+		{
+			channels.put(channel, keywords.get(channel));
+			if (pending.remove(channel)) checkRejoined();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * チャンネルから退出したときに呼び出されます。
+	 * 
+	 * @param channel チャンネル名
+	 */
+	protected void left(String channel)
+	{
+		if (channel == null) return;
+
+		lock.lock();
+		try
+		{
+			channels.remove(channel);
+			keywords.remove(channel);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * チャンネルに参加できなかったときに呼び出されます。
+	 * 
+	 * @param channel チャンネル名
+	 */
+	protected void rejected(String channel)
+	{
+		lock.lock();
+		try
+		{
+			channels.remove(channel);
+			if (pending.remove(channel))
+			{
+				log.log(Level.WARNING, "チャンネルに参加し直せませんでした。: {0}", channel);
+				checkRejoined();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 接続が切断したことを記録します。
+	 */
+	public void disconnected()
+	{
+		lock.lock();
+		try
+		{
+			if (disconnected == 0) disconnected = System.currentTimeMillis();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * ログインが完了したときに呼び出されます。
+	 * 切断した後のログインの場合は、チャンネルと不在メッセージを送り直します。
+	 */
+	protected void welcome()
+	{
+		lock.lock();
+		try
+		{
+			if (disconnected == 0) return;
+
+			reconnects.incrementAndGet();
+			irc.reconnectAttempts = 0;
+			pending.clear();
+			pending.addAll(channels.keySet());
+			log.log(Level.INFO, "セッションを送り直します。: {0}", pending.size());
+			for (Map.Entry<String, String> entry : new ArrayList<Map.Entry<String, String>>(channels.entrySet()))
+			{
+				if (entry.getValue() != null)
+				{
+					irc.join(entry.getKey(), entry.getValue());
+				}
+				else
+				{
+					irc.join(entry.getKey());
+				}
+			}
+			if (away != null) irc.away(away);
+			checkRejoined();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 参加し直すのを待っているチャンネルがなくなったら、再参加の時間を記録します。
+	 */
+	private void checkRejoined()
+	{
+		if (disconnected == 0 || !pending.isEmpty()) return;
+
+		long time = System.currentTimeMillis() - disconnected;
+		disconnected = 0;
+		lastRejoinTime = time;
+		if (time > maxRejoinTime) maxRejoinTime = time;
+		log.log(Level.INFO, "再参加しました。: {0}ms", time);
+	}
+
+	/**
+	 * 参加しているチャンネルと、キーワードを返します。
+	 * 
+	 * @return チャンネル名とキーワードのマップ、キーワードがない場合は null
+	 */
+	public Map<String, String> getChannels()
+	{
+		lock.lock();
+		try
+		{
+			return new TreeMap<String, String>(channels);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 不在メッセージを返します。
+	 * 
+	 * @return 不在メッセージ、不在でない場合は null
+	 */
+	public String getAway()
+	{
+		return away;
+	}
+
+	/**
+	 * 再接続した回数を返します。
+	 * 
+	 * @return 回数
+	 */
+	public long getReconnectCount()
+	{
+		return reconnects.get();
+	}
+
+	/**
+	 * 最後に切断してから、すべてのチャンネルに参加し直すまでの時間を返します。
+	 * 
+	 * @return 時間 (ミリ秒)、再参加していない場合は -1
+	 */
+	public long getLastRejoinTime()
+	{
+		return lastRejoinTime;
+	}
+
+	/**
+	 * 切断してから、すべてのチャンネルに参加し直すまでの時間の最大値を返します。
+	 * 
+	 * @return 時間 (ミリ秒)、再参加していない場合は -1
+	 */
+	public long getMaxRejoinTime()
+	{
+		return maxRejoinTime;
+	}
+
+	/**
+	 * 参加し直すのを待っているチャンネルの数を返します。
+	 * 
+	 * @return チャンネルの数
+	 */
+	public int getPendingCount()
+	{
+		lock.lock();
+		try
+		{
+			return pending.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s[channels=%d, away=%s, reconnects=%d, lastRejoin=%dms, maxRejoin=%dms]", getClass().getSimpleName(), getChannels().size(), away != null, getReconnectCount(), getLastRejoinTime(), getMaxRejoinTime());
+	}
+}
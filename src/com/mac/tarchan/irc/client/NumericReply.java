@@ -24,21 +24,90 @@ public class NumericReply {
     public static final String RPL_HELLO = "020";
     public static final String RPL_YOURID = "042";
     public static final String RPL_SAVENICK = "043";
+    public static final String RPL_TRYAGAIN = "263";
+    public static final String RPL_WHOISCERTFP = "276";
+    public static final String RPL_AWAY = "301";
+    public static final String RPL_WHOISREGNICK = "307";
+    public static final String RPL_WHOISUSER = "311";
+    public static final String RPL_WHOISSERVER = "312";
+    public static final String RPL_WHOISOPERATOR = "313";
+    public static final String RPL_WHOISIDLE = "317";
+    public static final String RPL_ENDOFWHOIS = "318";
+    public static final String RPL_WHOISCHANNELS = "319";
+    public static final String RPL_WHOISSPECIAL = "320";
+    public static final String RPL_LISTSTART = "321";
+    public static final String RPL_LIST = "322";
+    public static final String RPL_LISTEND = "323";
+    public static final String RPL_CHANNELMODEIS = "324";
+    public static final String RPL_CREATIONTIME = "329";
+    public static final String RPL_WHOISACCOUNT = "330";
+    public static final String RPL_NOTOPIC = "331";
     public static final String RPL_TOPIC = "332";
+    public static final String RPL_TOPICWHOTIME = "333";
+    public static final String RPL_WHOISACTUALLY = "338";
     public static final String RPL_NAMREPLY = "353";
     public static final String RPL_ENDOFNAMES = "366";
+    public static final String RPL_WHOISHOST = "378";
+    public static final String RPL_WHOISMODES = "379";
+    public static final String RPL_HOSTHIDDEN = "396";
+    public static final String ERR_NOSUCHNICK = "401";
+    public static final String ERR_NOSUCHSERVER = "402";
+    public static final String ERR_NOSUCHCHANNEL = "403";
+    public static final String ERR_TOOMANYCHANNELS = "405";
     public static final String ERR_NICKNAMEINUSE = "433";
+    public static final String ERR_UNAVAILRESOURCE = "437";
+    public static final String ERR_NOTONCHANNEL = "442";
+    public static final String ERR_CHANNELISFULL = "471";
+    public static final String ERR_INVITEONLYCHAN = "473";
+    public static final String ERR_BANNEDFROMCHAN = "474";
+    public static final String ERR_BADCHANNELKEY = "475";
+    public static final String ERR_BADCHANMASK = "476";
+    public static final String ERR_NEEDREGGEDNICK = "477";
+    public static final String RPL_WHOISSECURE = "671";
 
     public static boolean isServerClientCommand(String reply) {
-        return "000".compareTo(reply) <= 0 && "199".compareTo(reply) >= 0;
+        return IRCCommand.isNumeric(reply) ? isServerClientCommand(Integer.parseInt(reply)) : "000".compareTo(reply) <= 0 && "199".compareTo(reply) >= 0;
     }
 
     public static boolean isServerCommand(String reply) {
-        return "200".compareTo(reply) <= 0 && "399".compareTo(reply) >= 0;
+        return IRCCommand.isNumeric(reply) ? isServerCommand(Integer.parseInt(reply)) : "200".compareTo(reply) <= 0 && "399".compareTo(reply) >= 0;
     }
 
     public static boolean isError(String reply) {
-        return "400".compareTo(reply) <= 0 && "599".compareTo(reply) >= 0;
+        return IRCCommand.isNumeric(reply) ? isError(Integer.parseInt(reply)) : "400".compareTo(reply) <= 0 && "599".compareTo(reply) >= 0;
+    }
+
+    /**
+     * サーバとクライアント間のリプライかどうか判定します。
+     *
+     * @param reply ニュメリックリプライの番号
+     * @return 000 から 199 の場合は true
+     * @see IRCMessage#getNumber()
+     */
+    public static boolean isServerClientCommand(int reply) {
+        return reply >= 0 && reply <= 199;
+    }
+
+    /**
+     * コマンドに対するリプライかどうか判定します。
+     *
+     * @param reply ニュメリックリプライの番号
+     * @return 200 から 399 の場合は true
+     * @see IRCMessage#getNumber()
+     */
+    public static boolean isServerCommand(int reply) {
+        return reply >= 200 && reply <= 399;
+    }
+
+    /**
+     * エラーリプライかどうか判定します。
+     *
+     * @param reply ニュメリックリプライの番号
+     * @return 400 から 599 の場合は true
+     * @see IRCMessage#getNumber()
+     */
+    public static boolean isError(int reply) {
+        return reply >= 400 && reply <= 599;
     }
 
     private NumericReply() {
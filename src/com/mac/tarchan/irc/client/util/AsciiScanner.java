@@ -0,0 +1,79 @@
+/*
+ * AsciiScanner.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * バイト列から、ASCII文字ではないバイトを探します。
+ * JIS の文字はエスケープシーケンスで切り替えるので、エスケープコードも ASCII文字ではないものとして扱います。
+ */
+public final class AsciiScanner
+{
+	/** エスケープコード */
+	private static final byte ESC = 0x1b;
+
+	/** 8ビット目のマスク */
+	private static final long HIGH_BITS = 0x8080808080808080L;
+
+	/** エスケープコードを並べた値 */
+	private static final long ESC_BYTES = 0x1b1b1b1b1b1b1b1bL;
+
+	/** 各バイトの1 */
+	private static final long LOW_BITS = 0x0101010101010101L;
+
+	/**
+	 * インスタンスは作成しません。
+	 */
+	private AsciiScanner()
+	{
+	}
+
+	/**
+	 * 指定された範囲で、最初の8ビットのバイトかエスケープコードの位置を返します。
+	 * 8バイトずつまとめて判定し、該当するバイトを含む8バイトだけを1バイトずつ調べます。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return 位置、見つからない場合は終了位置
+	 */
+	public static int indexOfNonAscii(byte[] data, int from, int to)
+	{
+		int i = from;
+		if (to - from >= 8)
+		{
+			ByteBuffer words = ByteBuffer.wrap(data);
+			for (; i + 8 <= to; i += 8)
+			{
+				long w = words.getLong(i);
+				long esc = w ^ ESC_BYTES;
+				if (((w | ((esc - LOW_BITS) & ~esc)) & HIGH_BITS) != 0) break;
+			}
+		}
+		for (; i < to; i++)
+		{
+			byte b = data[i];
+			if (b < 0 || b == ESC) return i;
+		}
+		return to;
+	}
+
+	/**
+	 * 指定された範囲が8ビットのバイトもエスケープコードも含まないかどうか判定します。
+	 * 
+	 * @param data バイト列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return ASCII文字だけの場合は true
+	 */
+	public static boolean isAscii(byte[] data, int from, int to)
+	{
+		return indexOfNonAscii(data, from, to) == to;
+	}
+}
@@ -7,20 +7,77 @@
  */
 package com.mac.tarchan.irc.client.util;
 
+import com.mac.tarchan.irc.client.IRCMessage.CTCP;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * DccSendFile
+ * DCC SENDで送られてくるファイルを受信します。
+ * 受信したデータはソケットチャンネルからファイルチャンネルへ直接転送するので、ヒープにはコピーしません。
+ * 受信した位置は4バイトの確認応答で送信元に通知します。ターボモードの場合は通知しません。
+ * 途中まで受信したファイルがある場合は、DCC RESUMEで続きから受信できます。
+ * 転送は共有の転送エグゼキュータで実行するので、IRCの受信スレッドを止めません。
+ * 
+ * <pre>
+ * DccSendFile dcc = new DccSendFile(ctcp);
+ * long position = dcc.getResumePosition(file);
+ * if (position &gt; 0)
+ * {
+ *     irc.ctcp(nick, dcc.toResume(position));
+ *     // DCC ACCEPTを受け取ったら dcc.accept(ctcp) を呼び出してから保存する
+ * }
+ * else
+ * {
+ *     dcc.save(file);
+ * }
+ * </pre>
  */
 public class DccSendFile
 {
 	/** ログ */
 	private static final Logger log = Logger.getLogger(DccSendFile.class.getName());
 
+	/** 一度に転送する最大バイト数 */
+	protected static final int CHUNK_SIZE = 256 * 1024;
+
+	/** 進捗を通知する間隔 (ナノ秒) */
+	protected static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/** 受信を待つ最大時間 (ミリ秒) */
+	protected static final long TIMEOUT = TimeUnit.MINUTES.toMillis(3);
+
+	/** 確認応答のバッファ */
+	private static final ThreadLocal<ByteBuffer> ACK_BUFFER = new ThreadLocal<ByteBuffer>()
+	{
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(4);
+		}
+	};
+
+	/** 転送を実行する共有のエグゼキュータ */
+	private static ExecutorService transferExecutor;
+
+	/** 共有のエグゼキュータのロック */
+	private static final ReentrantLock transferLock = new ReentrantLock();
+
 	/** ファイル名 */
 	protected String file;
 
@@ -33,6 +90,24 @@ public class DccSendFile
 	/** ファイルサイズ */
 	protected long size;
 
+	/** 確認応答を送信しないかどうか */
+	protected boolean turbo;
+
+	/** 受信を開始する位置 */
+	protected long position;
+
+	/** 受信した位置 */
+	protected volatile long transferred;
+
+	/** 受信を開始した時間 (ナノ秒) */
+	protected volatile long startTime;
+
+	/** 受信を終了した時間 (ナノ秒) */
+	protected volatile long endTime;
+
+	/** 進捗を通知するリスナー */
+	protected ProgressListener listener;
+
 	/**
 	 * DCC SENDメッセージからファイルを構築します。
 	 * 
@@ -43,17 +118,139 @@ public class DccSendFile
 	{
 		if (!text.startsWith("DCC SEND")) throw new IllegalArgumentException("DCC SENDではありません。: " + text);
 
-		String[] params = text.substring("DCC SEND ".length()).split(" ");
-		file = params[0];
-		addr = new BigInteger(params[1]).toByteArray();
-		InetAddress inet = InetAddress.getByAddress(addr);
-		port = Integer.parseInt(params[2]);
-		size = Long.parseLong(params[3]);
-		log.info(String.format("%s %,d bytes %s %s", file, size, inet, port));
+		parse(text, "DCC SEND ".length());
+	}
+
+	/**
+	 * DCC SENDのCTCPメッセージからファイルを構築します。
+	 * 
+	 * @param ctcp CTCPメッセージ
+	 * @throws IOException 指定されたIPアドレスのサーバが見つからない場合
+	 */
+	public DccSendFile(CTCP ctcp) throws IOException
+	{
+		if (!ctcp.isCommand(CTCP.DCC_SEND) || ctcp.getParam() == null) throw new IllegalArgumentException("DCC SENDではありません。: " + ctcp);
+
+		parse(ctcp.getParam(), 0);
+	}
+
+	/**
+	 * 「ファイル名 IPアドレス ポート番号 [ファイルサイズ]」の形式のパラメータを解析します。
+	 * 空白を含むファイル名は二重引用符で囲まれます。
+	 * ファイル名は送信元が自由に決められるので、パスの最後の要素だけを使います。
+	 * IPアドレスは符号なし32ビット整数の10進表記です。
+	 * 
+	 * @param text パラメータ
+	 * @param pos 開始位置
+	 * @throws IOException 指定されたIPアドレスのサーバが見つからない場合
+	 */
+	protected void parse(String text, int pos) throws IOException
+	{
+		try
+		{
+			int len = text.length();
+			int end;
+			if (pos < len && text.charAt(pos) == '"')
+			{
+				end = text.indexOf('"', pos + 1);
+				file = text.substring(pos + 1, end);
+				pos = end + 2;
+			}
+			else
+			{
+				end = text.indexOf(' ', pos);
+				file = text.substring(pos, end);
+				pos = end + 1;
+			}
+
+			end = text.indexOf(' ', pos);
+			int colon = text.indexOf(':', pos);
+			if (colon >= 0 && colon < end)
+			{
+				// IPv6
+				addr = InetAddress.getByName(text.substring(pos, end)).getAddress();
+			}
+			else
+			{
+				long ip = parseNumber(text, pos, end);
+				addr = new byte[] {(byte)(ip >>> 24), (byte)(ip >>> 16), (byte)(ip >>> 8), (byte)ip};
+			}
+			pos = end + 1;
+
+			end = text.indexOf(' ', pos);
+			if (end < 0) end = len;
+			port = (int)parseNumber(text, pos, end);
+			pos = end + 1;
+
+			size = -1;
+			if (pos < len)
+			{
+				end = text.indexOf(' ', pos);
+				if (end < 0) end = len;
+				size = parseNumber(text, pos, end);
+				pos = end + 1;
+			}
+
+			// 「T」はターボモード
+			turbo = pos < len && text.substring(pos).trim().equals("T");
+		}
+		catch (RuntimeException x)
+		{
+			throw new IllegalArgumentException("DCC SENDが不正です。: " + text, x);
+		}
+		file = toFileName(file);
+		if (file == null) throw new IllegalArgumentException("DCC SENDのファイル名が不正です。: " + text);
+		if (log.isLoggable(Level.INFO))
+		{
+			log.info(String.format("%s %,d bytes %s %s", file, size, getAddress(), port));
+		}
+	}
+
+	/**
+	 * 送信元が指定したファイル名から、ディレクトリを除いた最後の要素を取り出します。
+	 * 「/」と「\」をどちらも区切りとして扱います。
+	 * 
+	 * @param name 送信元が指定したファイル名
+	 * @return ファイル名、空、「.」、「..」または制御文字を含む場合は null
+	 */
+	static String toFileName(String name)
+	{
+		int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+		name = name.substring(slash + 1).trim();
+		if (name.isEmpty() || name.equals(".") || name.equals("..")) return null;
+		for (int i = 0; i < name.length(); i++)
+		{
+			if (name.charAt(i) < ' ') return null;
+		}
+		return name;
+	}
+
+	/**
+	 * 指定された範囲の10進数を解析します。
+	 * 
+	 * @param text 文字列
+	 * @param from 開始位置
+	 * @param to 終了位置
+	 * @return 数値
+	 * @throws NumberFormatException 数値ではない場合
+	 */
+	private static long parseNumber(String text, int from, int to)
+	{
+		if (from >= to) throw new NumberFormatException("数値がありません。: " + from);
+
+		long n = 0;
+		for (int i = from; i < to; i++)
+		{
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') throw new NumberFormatException("数値ではありません。: " + text.substring(from, to));
+			n = n * 10 + c - '0';
+		}
+		return n;
 	}
 
 	/**
 	 * ファイル名を返します。
+	 * ディレクトリを含まないので、保存するディレクトリの外を指すことはありません。
 	 * 
 	 * @return ファイル名
 	 */
@@ -62,13 +259,419 @@ public class DccSendFile
 		return file;
 	}
 
+	/**
+	 * 指定されたディレクトリにこのファイルを保存するときのファイルを返します。
+	 * シンボリックリンクなどでディレクトリの外を指す場合は、保存できません。
+	 * 
+	 * @param dir 保存するディレクトリ
+	 * @return ファイル
+	 * @throws IOException ディレクトリの外を指す場合
+	 */
+	public File getSaveFile(File dir) throws IOException
+	{
+		File savefile = new File(dir, file);
+		String base = dir.getCanonicalPath();
+		if (!base.endsWith(File.separator)) base += File.separator;
+		if (!savefile.getCanonicalPath().startsWith(base)) throw new IOException("保存するファイルがディレクトリの外を指しています。: " + savefile);
+		return savefile;
+	}
+
+	/**
+	 * 送信元のIPアドレスを返します。
+	 * 
+	 * @return IPアドレス
+	 * @throws IOException IPアドレスが不正な場合
+	 */
+	public InetAddress getAddress() throws IOException
+	{
+		return InetAddress.getByAddress(addr);
+	}
+
+	/**
+	 * 送信元のポート番号を返します。
+	 * 
+	 * @return ポート番号
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * ファイルサイズを返します。
+	 * 
+	 * @return ファイルサイズ、不明な場合は -1
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+
+	/**
+	 * ターボモードかどうか判定します。
+	 * 
+	 * @return 確認応答を送信しない場合は true
+	 */
+	public boolean isTurbo()
+	{
+		return turbo;
+	}
+
+	/**
+	 * ターボモードを設定します。
+	 * ターボモードの場合は、確認応答を送信せずに受信し続けます。
+	 * 
+	 * @param turbo 確認応答を送信しない場合は true
+	 */
+	public void setTurbo(boolean turbo)
+	{
+		this.turbo = turbo;
+	}
+
+	/**
+	 * 受信を開始する位置を返します。
+	 * 
+	 * @return 位置
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * 受信を開始する位置を設定します。
+	 * 
+	 * @param position 位置
+	 * @see #accept(CTCP)
+	 */
+	public void setPosition(long position)
+	{
+		if (position < 0 || size >= 0 && position > size) throw new IllegalArgumentException("位置が不正です。: " + position);
+
+		this.position = position;
+	}
+
+	/**
+	 * 指定されたファイルの続きから受信できる位置を返します。
+	 * 
+	 * @param savefile ファイル
+	 * @return 途中まで受信したファイルの大きさ、最初から受信する場合は 0
+	 */
+	public long getResumePosition(File savefile)
+	{
+		long length = savefile.length();
+		return size > 0 && length > 0 && length < size ? length : 0;
+	}
+
+	/**
+	 * 指定された位置から再開するDCC RESUMEのCTCPメッセージを返します。
+	 * 
+	 * @param position 再開する位置
+	 * @return CTCPメッセージ
+	 * @see com.mac.tarchan.irc.client.IRCClient#ctcp(String, String)
+	 */
+	public String toResume(long position)
+	{
+		String name = file.indexOf(' ') >= 0 ? "\"" + file + "\"" : file;
+		return CTCP.DCC_RESUME + " " + name + " " + port + " " + position;
+	}
+
+	/**
+	 * DCC ACCEPTを受け取って、受信を開始する位置を設定します。
+	 * 
+	 * @param ctcp CTCPメッセージ
+	 * @return このファイルのDCC ACCEPTの場合は true
+	 */
+	public boolean accept(CTCP ctcp)
+	{
+		String text = ctcp.getParam();
+		if (!ctcp.isCommand(CTCP.DCC_ACCEPT) || text == null) return false;
+
+		try
+		{
+			text = text.trim();
+			int sp2 = text.lastIndexOf(' ');
+			int sp1 = text.lastIndexOf(' ', sp2 - 1);
+			if (parseNumber(text, sp1 + 1, sp2) != port) return false;
+
+			setPosition(parseNumber(text, sp2 + 1, text.length()));
+			return true;
+		}
+		catch (RuntimeException x)
+		{
+			throw new IllegalArgumentException("DCC ACCEPTが不正です。: " + text, x);
+		}
+	}
+
+	/**
+	 * 進捗を通知するリスナーを設定します。
+	 * 
+	 * @param listener リスナー
+	 */
+	public void setProgressListener(ProgressListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * 受信した位置を返します。
+	 * 
+	 * @return ファイルの先頭からのバイト数
+	 */
+	public long getTransferred()
+	{
+		return transferred;
+	}
+
+	/**
+	 * 受信の速度を返します。
+	 * 
+	 * @return 1秒あたりのバイト数
+	 */
+	public double getThroughput()
+	{
+		long start = startTime;
+		if (start == 0) return 0;
+
+		long end = endTime != 0 ? endTime : System.nanoTime();
+		return end > start ? (transferred - position) * 1e9 / (end - start) : 0;
+	}
+
+	/**
+	 * 受信が終了したかどうか判定します。
+	 * 
+	 * @return 終了した場合は true
+	 */
+	public boolean isDone()
+	{
+		return endTime != 0;
+	}
+
+	/**
+	 * 転送を実行する共有のエグゼキュータを返します。
+	 * 
+	 * @return エグゼキュータ
+	 */
+	public static ExecutorService getTransferExecutor()
+	{
+		transferLock.lock();
+		try
+		{
+			if (transferExecutor == null) transferExecutor = Executors.newCachedThreadPool(VirtualThreads.daemonFactory("DccTransfer-"));
+			return transferExecutor;
+		}
+		finally
+		{
+			transferLock.unlock();
+		}
+	}
+
+	/**
+	 * 転送を実行する共有のエグゼキュータを設定します。
+	 * 
+	 * @param executor エグゼキュータ、デフォルトのエグゼキュータを使う場合は null
+	 */
+	public static void setTransferExecutor(ExecutorService executor)
+	{
+		transferLock.lock();
+		try
+		{
+			transferExecutor = executor;
+		}
+		finally
+		{
+			transferLock.unlock();
+		}
+	}
+
 	/**
 	 * 指定されたファイルに保存します。
+	 * 受信は転送エグゼキュータで実行するので、すぐに戻ります。
 	 * 
 	 * @param savefile ファイル
+	 * @return 受信が終了したときにファイルサイズを返す Future
+	 * @see #receive(File)
 	 */
-	public void save(File savefile)
+	public Future<Long> save(final File savefile)
 	{
 		log.info("ファイルを保存します。: " + savefile);
+		return getTransferExecutor().submit(new Callable<Long>()
+		{
+			@Override
+			public Long call() throws IOException
+			{
+				try
+				{
+					return receive(savefile);
+				}
+				catch (IOException x)
+				{
+					log.log(Level.SEVERE, "ファイルを受信できません。: " + savefile, x);
+					throw x;
+				}
+			}
+		});
+	}
+
+	/**
+	 * 送信元に接続して、指定されたファイルに受信します。
+	 * 受信を開始する位置が 0 ではない場合は、ファイルのその位置から続きを書き込みます。
+	 * 
+	 * @param savefile ファイル
+	 * @return ファイルサイズ
+	 * @throws IOException 受信できない場合
+	 */
+	public long receive(File savefile) throws IOException
+	{
+		File dir = savefile.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("ディレクトリを作成できません。: " + dir);
+
+		FileChannel out = FileChannel.open(savefile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try
+		{
+			if (out.size() < position) throw new IOException("再開する位置がファイルサイズを超えています。: " + position);
+			out.truncate(position);
+
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(getAddress(), port));
+			try
+			{
+				return receive(channel, out);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * 指定されたチャンネルから受信して、ファイルチャンネルに書き込みます。
+	 * 受信を待っている間に次の確認応答を待つ送信元もあるので、ノンブロッキングで読めるだけ読み込みます。
+	 * 
+	 * @param channel ソケットチャンネル
+	 * @param out ファイルチャンネル
+	 * @return ファイルサイズ
+	 * @throws IOException 受信できない場合
+	 */
+	protected long receive(SocketChannel channel, FileChannel out) throws IOException
+	{
+		ByteBuffer ack = ACK_BUFFER.get();
+		ack.clear().limit(0);
+		long pos = position;
+		transferred = pos;
+		endTime = 0;
+		startTime = System.nanoTime();
+		long lastProgress = startTime;
+		long acked = pos;
+
+		channel.configureBlocking(false);
+		Selector selector = Selector.open();
+		try
+		{
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			boolean readable = false;
+			while (size < 0 || pos < size)
+			{
+				long n = out.transferFrom(channel, pos, size < 0 ? CHUNK_SIZE : Math.min(CHUNK_SIZE, size - pos));
+				if (n == 0)
+				{
+					// 読み込めるはずなのに読み込めない場合は、送信元がクローズした
+					if (readable) break;
+					if (selector.select(TIMEOUT) == 0) throw new IOException("受信がタイムアウトしました。: " + pos);
+					selector.selectedKeys().clear();
+					readable = true;
+					continue;
+				}
+				readable = false;
+				pos += n;
+				transferred = pos;
+				if (!turbo && sendAck(channel, ack, pos)) acked = pos;
+
+				long now = System.nanoTime();
+				if (now - lastProgress >= PROGRESS_INTERVAL)
+				{
+					lastProgress = now;
+					fireProgress();
+				}
+			}
+
+			if (!turbo && (acked != pos || ack.hasRemaining()))
+			{
+				// 最後の確認応答は送信できるまで待つ
+				key.cancel();
+				selector.selectNow();
+				channel.configureBlocking(true);
+				while (ack.hasRemaining()) channel.write(ack);
+				if (acked != pos)
+				{
+					sendAck(channel, ack, pos);
+					while (ack.hasRemaining()) channel.write(ack);
+				}
+			}
+		}
+		finally
+		{
+			selector.close();
+			endTime = System.nanoTime();
+		}
+		fireProgress();
+
+		if (size >= 0 && pos < size) throw new IOException(String.format("受信が途中で終了しました。: %,d/%,d bytes", pos, size));
+		if (log.isLoggable(Level.INFO))
+		{
+			log.info(String.format("%s %,d bytes %,.0f bytes/sec", file, pos - position, getThroughput()));
+		}
+		return pos;
+	}
+
+	/**
+	 * 受信した位置を4バイトの確認応答で送信します。
+	 * 前回の確認応答を送信しきれていない場合は、その残りだけを送信します。
+	 * 
+	 * @param channel ソケットチャンネル
+	 * @param ack 確認応答のバッファ
+	 * @param pos 受信した位置
+	 * @return 指定された位置の確認応答を送信し始めた場合は true
+	 * @throws IOException 送信できない場合
+	 */
+	private static boolean sendAck(SocketChannel channel, ByteBuffer ack, long pos) throws IOException
+	{
+		if (ack.hasRemaining()) channel.write(ack);
+		if (ack.hasRemaining()) return false;
+
+		ack.clear();
+		ack.putInt((int)pos);
+		ack.flip();
+		channel.write(ack);
+		return true;
+	}
+
+	/**
+	 * リスナーに進捗を通知します。
+	 */
+	private void fireProgress()
+	{
+		ProgressListener l = listener;
+		if (l != null) l.onProgress(this);
+	}
+
+	/**
+	 * DCC SENDの進捗を受け取るリスナーです。
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * 受信中は約1秒ごとに、受信が終了したときに呼び出されます。
+		 * 
+		 * @param file DCC SENDのファイル
+		 * @see DccSendFile#getTransferred()
+		 * @see DccSendFile#getThroughput()
+		 */
+		void onProgress(DccSendFile file);
 	}
 }
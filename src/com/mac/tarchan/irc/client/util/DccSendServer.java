@@ -0,0 +1,821 @@
+/*
+ * DccSendServer.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client.util;
+
+import com.mac.tarchan.irc.client.IRCMessage.CTCP;
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * DCC SENDでファイルを送信するサーバです。
+ * ファイルごとにサーバソケットを開いて、接続してきた相手に FileChannel.transferTo で送信します。
+ * transferTo を使用できない場合は、ファイルをメモリにマップして送信します。
+ * すべての転送を1つのセレクタのスレッドで処理するので、同時にいくつ送信してもスレッドは増えません。
+ * 転送ごとに送信の速度を制限できます。
+ * 
+ * <pre>
+ * DccSendServer.Transfer transfer = DccSendServer.getDefault().offer(file, address);
+ * irc.ctcp(nick, transfer.toCtcp());
+ * </pre>
+ * 
+ * @see DccSendFile
+ * @see com.mac.tarchan.irc.client.IRCClient#dccSend(String, File)
+ */
+public class DccSendServer implements Runnable
+{
+	/** ログ */
+	private static final Logger log = Logger.getLogger(DccSendServer.class.getName());
+
+	/** 一度に送信する最大バイト数 */
+	protected static final int CHUNK_SIZE = 256 * 1024;
+
+	/** メモリにマップする最大バイト数 */
+	protected static final int MAP_SIZE = 4 * 1024 * 1024;
+
+	/** 接続と確認応答を待つ最大時間 (ナノ秒) */
+	protected static final long TIMEOUT = TimeUnit.MINUTES.toNanos(3);
+
+	/**
+	 * transferTo を使用するかどうか
+	 * システムプロパティ com.mac.tarchan.irc.dcc.mapped を true にすると、最初からメモリマップで送信します。
+	 */
+	private static final boolean TRANSFER_TO = !Boolean.getBoolean("com.mac.tarchan.irc.dcc.mapped");
+
+	/** デフォルトのサーバ */
+	private static DccSendServer defaultServer;
+
+	/** デフォルトのサーバのロック */
+	private static final ReentrantLock defaultLock = new ReentrantLock();
+
+	/** セレクタ */
+	protected final Selector selector;
+
+	/** スレッドファクトリ */
+	protected final ThreadFactory threadFactory;
+
+	/** 登録を待っている転送 */
+	protected final ConcurrentLinkedQueue<Transfer> pending = new ConcurrentLinkedQueue<Transfer>();
+
+	/** 登録済みの転送 */
+	protected final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+
+	/** 新しい転送の1秒あたりの最大バイト数、0 の場合は制限しない */
+	protected volatile long bandwidth;
+
+	/** タイマーを確認する必要があるかどうか */
+	protected volatile boolean dirty;
+
+	/** 停止したかどうか */
+	protected volatile boolean stopped;
+
+	/** セレクタのスレッド */
+	protected Thread thread;
+
+	/** スレッドを開始するロック */
+	protected final ReentrantLock threadLock = new ReentrantLock();
+
+	/**
+	 * デーモンスレッドで転送するサーバを構築します。
+	 * 
+	 * @throws IOException セレクタをオープンできない場合
+	 */
+	public DccSendServer() throws IOException
+	{
+		this(VirtualThreads.daemonFactory("DccSendServer-"));
+	}
+
+	/**
+	 * 指定されたファクトリのスレッドで転送するサーバを構築します。
+	 * 
+	 * @param threadFactory スレッドファクトリ
+	 * @throws IOException セレクタをオープンできない場合
+	 */
+	public DccSendServer(ThreadFactory threadFactory) throws IOException
+	{
+		this.threadFactory = threadFactory;
+		selector = Selector.open();
+	}
+
+	/**
+	 * 共有のサーバを返します。
+	 * 
+	 * @return サーバ
+	 * @throws IOException セレクタをオープンできない場合
+	 */
+	public static DccSendServer getDefault() throws IOException
+	{
+		defaultLock.lock();
+		try
+		{
+			if (defaultServer == null) defaultServer = new DccSendServer();
+			return defaultServer;
+		}
+		finally
+		{
+			defaultLock.unlock();
+		}
+	}
+
+	/**
+	 * これから送信する転送の速度を制限します。
+	 * 
+	 * @param bandwidth 1秒あたりの最大バイト数、0 の場合は制限しない
+	 */
+	public void setBandwidth(long bandwidth)
+	{
+		if (bandwidth < 0) throw new IllegalArgumentException("速度が不正です。: " + bandwidth);
+
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * これから送信する転送の速度を返します。
+	 * 
+	 * @return 1秒あたりの最大バイト数、制限しない場合は 0
+	 */
+	public long getBandwidth()
+	{
+		return bandwidth;
+	}
+
+	/**
+	 * 指定されたファイルを送信するサーバソケットを開きます。
+	 * 相手が接続すると送信を開始します。
+	 * 
+	 * @param file ファイル
+	 * @param address DCC SENDで通知するIPアドレス
+	 * @return 転送
+	 * @throws IOException ファイルを読み込めない場合、またはサーバソケットを開けない場合
+	 */
+	public Transfer offer(File file, InetAddress address) throws IOException
+	{
+		if (!file.isFile()) throw new IOException("ファイルがありません。: " + file);
+		if (stopped) throw new IOException("DCC SENDのサーバは停止しています。");
+
+		FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ServerSocketChannel server = null;
+		try
+		{
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(0));
+			server.configureBlocking(false);
+			Transfer transfer = new Transfer(this, file, address, in, server);
+			pending.add(transfer);
+			start();
+			selector.wakeup();
+			return transfer;
+		}
+		catch (IOException x)
+		{
+			in.close();
+			if (server != null) server.close();
+			throw x;
+		}
+	}
+
+	/**
+	 * 送信中と接続待ちの転送の数を返します。
+	 * 
+	 * @return 転送の数
+	 */
+	public int getTransferCount()
+	{
+		return transfers.size() + pending.size();
+	}
+
+	/**
+	 * セレクタのスレッドを開始します。
+	 */
+	protected void start()
+	{
+		threadLock.lock();
+		try
+		{
+			if (thread == null)
+			{
+				thread = threadFactory.newThread(this);
+				thread.start();
+			}
+		}
+		finally
+		{
+			threadLock.unlock();
+		}
+	}
+
+	/**
+	 * タイマーを確認するためにセレクタのスレッドを起こします。
+	 */
+	void wakeup()
+	{
+		dirty = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		long nextTimer = Long.MAX_VALUE;
+		try
+		{
+			while (!stopped)
+			{
+				Transfer added;
+				while ((added = pending.poll()) != null)
+				{
+					try
+					{
+						added.register(selector, System.nanoTime());
+						transfers.add(added);
+					}
+					catch (IOException x)
+					{
+						added.fail(x);
+					}
+				}
+
+				long wait = 0;
+				if (nextTimer != Long.MAX_VALUE) wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTimer - System.nanoTime()) + 1);
+				if (dirty)
+				{
+					selector.selectNow();
+				}
+				else
+				{
+					selector.select(wait);
+				}
+
+				long now = System.nanoTime();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					Transfer transfer = (Transfer)key.attachment();
+					try
+					{
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) transfer.accept(selector, now);
+						if (key.isValid() && key.isReadable()) transfer.readAck(now);
+						if (key.isValid() && key.isWritable()) transfer.write(now);
+					}
+					catch (IOException x)
+					{
+						transfer.fail(x);
+					}
+				}
+
+				if (dirty || nextTimer != Long.MAX_VALUE && now - nextTimer >= 0)
+				{
+					dirty = false;
+					nextTimer = tick(now);
+				}
+			}
+		}
+		catch (IOException x)
+		{
+			log.log(Level.SEVERE, "DCC SENDのサーバが停止しました。", x);
+		}
+		catch (ClosedSelectorException x)
+		{
+			log.log(Level.FINE, "DCC SENDのサーバを停止しました。", x);
+		}
+		finally
+		{
+			stopped = true;
+			Transfer transfer;
+			while ((transfer = pending.poll()) != null) transfers.add(transfer);
+			for (Transfer t : transfers)
+			{
+				t.fail(new IOException("DCC SENDのサーバを停止しました。"));
+			}
+			transfers.clear();
+			try
+			{
+				selector.close();
+			}
+			catch (IOException x)
+			{
+				log.log(Level.FINE, "セレクタをクローズできません。", x);
+			}
+		}
+	}
+
+	/**
+	 * 速度を制限している転送の再開と、タイムアウトを確認します。
+	 * 
+	 * @param now 現在時刻 (ナノ秒)
+	 * @return 次に確認する時刻 (ナノ秒)、確認する転送がない場合は Long.MAX_VALUE
+	 */
+	private long tick(long now)
+	{
+		long next = Long.MAX_VALUE;
+		ArrayList<Transfer> done = null;
+		for (Transfer transfer : transfers)
+		{
+			long timer = transfer.tick(now);
+			if (transfer.isDone())
+			{
+				if (done == null) done = new ArrayList<Transfer>();
+				done.add(transfer);
+			}
+			else if (timer != Long.MAX_VALUE && (next == Long.MAX_VALUE || timer - next < 0))
+			{
+				next = timer;
+			}
+		}
+		if (done != null) transfers.removeAll(done);
+		return next;
+	}
+
+	/**
+	 * サーバを停止して、すべての転送を中止します。
+	 */
+	public void shutdown()
+	{
+		stopped = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * 1つのファイルの転送です。
+	 */
+	public static class Transfer
+	{
+		/** サーバ */
+		protected final DccSendServer server;
+
+		/** ファイル */
+		protected final File file;
+
+		/** 通知するIPアドレス */
+		protected final InetAddress address;
+
+		/** ファイルチャンネル */
+		protected final FileChannel in;
+
+		/** サーバソケットチャンネル */
+		protected final ServerSocketChannel serverChannel;
+
+		/** ポート番号 */
+		protected final int port;
+
+		/** ファイルサイズ */
+		protected final long size;
+
+		/** ソケットチャンネル */
+		protected SocketChannel channel;
+
+		/** 選択キー */
+		protected SelectionKey key;
+
+		/** 1秒あたりの最大バイト数、0 の場合は制限しない */
+		protected volatile long bandwidth;
+
+		/** 確認応答を待たないかどうか */
+		protected volatile boolean turbo;
+
+		/** 送信した位置 */
+		protected volatile long sent;
+
+		/** 確認応答で受け取った位置 */
+		protected volatile long acked;
+
+		/** 送信を開始した時間 (ナノ秒) */
+		protected volatile long startTime;
+
+		/** 送信を終了した時間 (ナノ秒) */
+		protected volatile long endTime;
+
+		/** 送信できるバイト数 */
+		private double tokens;
+
+		/** 送信できるバイト数を補充した時刻 (ナノ秒) */
+		private long refillTime;
+
+		/** 送信を再開する時刻 (ナノ秒)、制限していない場合は 0 */
+		private long resumeAt;
+
+		/** タイムアウトする時刻 (ナノ秒)、待っていない場合は 0 */
+		private long deadline;
+
+		/** transferTo を使用するかどうか */
+		private boolean transferTo = TRANSFER_TO;
+
+		/** メモリにマップした範囲 */
+		private MappedByteBuffer map;
+
+		/** メモリにマップした範囲の開始位置 */
+		private long mapPosition;
+
+		/** 確認応答のバッファ */
+		private final ByteBuffer ack = ByteBuffer.allocate(4);
+
+		/** 送信が終了したときに送信したバイト数を返す Future */
+		protected final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+		/**
+		 * 転送を構築します。
+		 * 
+		 * @param server サーバ
+		 * @param file ファイル
+		 * @param address 通知するIPアドレス
+		 * @param in ファイルチャンネル
+		 * @param serverChannel サーバソケットチャンネル
+		 * @throws IOException ファイルサイズを取得できない場合
+		 */
+		Transfer(DccSendServer server, File file, InetAddress address, FileChannel in, ServerSocketChannel serverChannel) throws IOException
+		{
+			this.server = server;
+			this.file = file;
+			this.address = address;
+			this.in = in;
+			this.serverChannel = serverChannel;
+			this.port = serverChannel.socket().getLocalPort();
+			this.size = in.size();
+			this.bandwidth = server.bandwidth;
+		}
+
+		/**
+		 * 相手に送信するDCC SENDのCTCPメッセージを返します。
+		 * 
+		 * @return CTCPメッセージ
+		 * @see com.mac.tarchan.irc.client.IRCClient#ctcp(String, String)
+		 */
+		public String toCtcp()
+		{
+			String name = file.getName();
+			if (name.indexOf(' ') >= 0) name = "\"" + name + "\"";
+			String host;
+			if (address instanceof Inet4Address)
+			{
+				byte[] b = address.getAddress();
+				host = String.valueOf((b[0] & 0xffL) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff));
+			}
+			else
+			{
+				host = address.getHostAddress();
+			}
+			return CTCP.DCC_SEND + " " + name + " " + host + " " + port + " " + size + (turbo ? " T" : "");
+		}
+
+		/**
+		 * ファイルを返します。
+		 * 
+		 * @return ファイル
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * 待ち受けているポート番号を返します。
+		 * 
+		 * @return ポート番号
+		 */
+		public int getPort()
+		{
+			return port;
+		}
+
+		/**
+		 * ファイルサイズを返します。
+		 * 
+		 * @return ファイルサイズ
+		 */
+		public long getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * 送信した位置を返します。
+		 * 
+		 * @return バイト数
+		 */
+		public long getSent()
+		{
+			return sent;
+		}
+
+		/**
+		 * 送信の速度を返します。
+		 * 
+		 * @return 1秒あたりのバイト数
+		 */
+		public double getThroughput()
+		{
+			long start = startTime;
+			if (start == 0) return 0;
+
+			long end = endTime != 0 ? endTime : System.nanoTime();
+			return end > start ? sent * 1e9 / (end - start) : 0;
+		}
+
+		/**
+		 * この転送の速度を制限します。
+		 * 
+		 * @param bandwidth 1秒あたりの最大バイト数、0 の場合は制限しない
+		 */
+		public void setBandwidth(long bandwidth)
+		{
+			if (bandwidth < 0) throw new IllegalArgumentException("速度が不正です。: " + bandwidth);
+
+			this.bandwidth = bandwidth;
+			server.wakeup();
+		}
+
+		/**
+		 * ターボモードを設定します。
+		 * ターボモードの場合は、DCC SENDに「T」を付けて、最後の確認応答を待たずに終了します。
+		 * 
+		 * @param turbo 確認応答を待たない場合は true
+		 */
+		public void setTurbo(boolean turbo)
+		{
+			this.turbo = turbo;
+		}
+
+		/**
+		 * 送信が終了したときに、送信したバイト数を返す Future を返します。
+		 * 
+		 * @return Future
+		 */
+		public CompletableFuture<Long> getFuture()
+		{
+			return future;
+		}
+
+		/**
+		 * 送信が終了したかどうか判定します。
+		 * 
+		 * @return 終了した場合は true
+		 */
+		public boolean isDone()
+		{
+			return future.isDone();
+		}
+
+		/**
+		 * 送信を中止します。
+		 */
+		public void cancel()
+		{
+			future.cancel(false);
+			server.wakeup();
+		}
+
+		/**
+		 * サーバソケットをセレクタに登録します。
+		 * 
+		 * @param selector セレクタ
+		 * @param now 現在時刻 (ナノ秒)
+		 * @throws IOException 登録できない場合
+		 */
+		void register(Selector selector, long now) throws IOException
+		{
+			key = serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+			deadline = now + TIMEOUT;
+			server.dirty = true;
+		}
+
+		/**
+		 * 相手の接続を受け付けて、送信を開始します。
+		 * 
+		 * @param selector セレクタ
+		 * @param now 現在時刻 (ナノ秒)
+		 * @throws IOException 接続を受け付けられない場合
+		 */
+		void accept(Selector selector, long now) throws IOException
+		{
+			SocketChannel accepted = serverChannel.accept();
+			if (accepted == null) return;
+
+			serverChannel.close();
+			channel = accepted;
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+			deadline = 0;
+			startTime = now;
+			refillTime = now;
+			tokens = 0;
+			log.log(Level.INFO, "ファイルを送信します。: {0} {1}", new Object[] {file, channel.getRemoteAddress()});
+		}
+
+		/**
+		 * 送信できるだけ送信します。
+		 * 
+		 * @param now 現在時刻 (ナノ秒)
+		 * @throws IOException 送信できない場合
+		 */
+		void write(long now) throws IOException
+		{
+			long remaining = size - sent;
+			long limit = Math.min(CHUNK_SIZE, remaining);
+			long rate = bandwidth;
+			if (rate > 0)
+			{
+				double burst = Math.max(rate / 4.0, 4096);
+				tokens = Math.min(burst, tokens + (now - refillTime) * rate / 1e9);
+				refillTime = now;
+				if (tokens < 1)
+				{
+					// 送信できるようになるまで書き込みを待たない
+					key.interestOps(SelectionKey.OP_READ);
+					resumeAt = now + Math.max(TimeUnit.MILLISECONDS.toNanos(1), (long)((1 - tokens) * 1e9 / rate));
+					server.dirty = true;
+					return;
+				}
+				limit = Math.min(limit, (long)tokens);
+			}
+
+			long n = limit > 0 ? send(limit) : 0;
+			sent += n;
+			tokens -= n;
+			if (sent == size)
+			{
+				key.interestOps(SelectionKey.OP_READ);
+				if (turbo || acked == (size & 0xffffffffL))
+				{
+					complete();
+				}
+				else
+				{
+					deadline = now + TIMEOUT;
+					server.dirty = true;
+				}
+			}
+		}
+
+		/**
+		 * 送信した位置から指定されたバイト数まで送信します。
+		 * transferTo を使用できない場合は、メモリにマップして送信します。
+		 * 
+		 * @param limit 最大バイト数
+		 * @return 送信したバイト数
+		 * @throws IOException 送信できない場合
+		 */
+		private long send(long limit) throws IOException
+		{
+			if (transferTo)
+			{
+				try
+				{
+					return in.transferTo(sent, limit, channel);
+				}
+				catch (IOException x)
+				{
+					if (!channel.isOpen()) throw x;
+
+					log.log(Level.FINE, "transferTo を使用できないので、メモリマップで送信します。", x);
+					transferTo = false;
+				}
+			}
+
+			if (map == null || sent < mapPosition || sent >= mapPosition + map.capacity())
+			{
+				mapPosition = sent;
+				map = in.map(FileChannel.MapMode.READ_ONLY, sent, Math.min(MAP_SIZE, size - sent));
+			}
+			int offset = (int)(sent - mapPosition);
+			map.limit((int)Math.min(map.capacity(), offset + limit));
+			map.position(offset);
+			return channel.write(map);
+		}
+
+		/**
+		 * 相手から確認応答を読み込みます。
+		 * 
+		 * @param now 現在時刻 (ナノ秒)
+		 * @throws IOException 読み込めない場合
+		 */
+		void readAck(long now) throws IOException
+		{
+			int n;
+			while ((n = channel.read(ack)) > 0)
+			{
+				if (!ack.hasRemaining())
+				{
+					acked = ack.getInt(0) & 0xffffffffL;
+					ack.clear();
+				}
+			}
+			if (sent == size && (acked == (size & 0xffffffffL) || n < 0))
+			{
+				complete();
+			}
+			else if (n < 0)
+			{
+				throw new IOException(String.format("送信が途中で終了しました。: %,d/%,d bytes", sent, size));
+			}
+		}
+
+		/**
+		 * 速度を制限している転送の再開と、タイムアウトを確認します。
+		 * 
+		 * @param now 現在時刻 (ナノ秒)
+		 * @return 次に確認する時刻 (ナノ秒)、確認しない場合は Long.MAX_VALUE
+		 */
+		long tick(long now)
+		{
+			if (future.isCancelled())
+			{
+				close();
+				return Long.MAX_VALUE;
+			}
+			if (isDone()) return Long.MAX_VALUE;
+
+			if (deadline != 0 && now - deadline >= 0)
+			{
+				fail(new IOException("DCC SENDがタイムアウトしました。: " + file));
+				return Long.MAX_VALUE;
+			}
+			if (resumeAt != 0 && (now - resumeAt >= 0 || bandwidth == 0))
+			{
+				resumeAt = 0;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			long next = Long.MAX_VALUE;
+			if (resumeAt != 0) next = resumeAt;
+			if (deadline != 0 && (next == Long.MAX_VALUE || deadline - next < 0)) next = deadline;
+			return next;
+		}
+
+		/**
+		 * 送信を終了します。
+		 */
+		private void complete()
+		{
+			close();
+			if (future.complete(sent) && log.isLoggable(Level.INFO))
+			{
+				log.info(String.format("%s %,d bytes %,.0f bytes/sec", file.getName(), sent, getThroughput()));
+			}
+		}
+
+		/**
+		 * 送信を中止します。
+		 * 
+		 * @param x 例外
+		 */
+		void fail(IOException x)
+		{
+			close();
+			if (future.completeExceptionally(x)) log.log(Level.WARNING, "ファイルを送信できません。: " + file, x);
+		}
+
+		/**
+		 * チャンネルをクローズします。
+		 */
+		private void close()
+		{
+			if (endTime == 0) endTime = System.nanoTime();
+			server.dirty = true;
+			try
+			{
+				serverChannel.close();
+				if (channel != null) channel.close();
+				in.close();
+			}
+			catch (IOException x)
+			{
+				log.log(Level.FINE, "チャンネルをクローズできません。", x);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s[%s, port=%d, %,d/%,d bytes]", getClass().getSimpleName(), file.getName(), port, sent, size);
+		}
+	}
+}
@@ -10,6 +10,7 @@ package com.mac.tarchan.irc.client.util;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,77 +35,199 @@ public class KanaInputFilter extends FilterInputStream
 		super(in);
 	}
 
-	@Override
-	public int read(byte[] b, int off, int len) throws IOException
+	/**
+	 * 入力ストリームを使わずに、読み込み済みのバイト列を修正する KanaInputFilter を構築します。
+	 * 
+	 * @see #filter(byte[], int, int)
+	 */
+	public KanaInputFilter()
+	{
+		super(null);
+	}
+
+	/**
+	 * 読み込み済みのバイト列の半角カナを修正します。
+	 * ノンブロッキングのチャンネルから読み込んだデータに使用します。
+	 * 
+	 * @param b バイト配列
+	 * @param off データの開始位置
+	 * @param len データの長さ
+	 */
+	public void filter(byte[] b, int off, int len)
 	{
-//		System.out.printf("readRange%d:%d:%d%n", off, len, b.length);
-		int eof = super.read(b, off, len);
 		shiftKana(b, off, len);
-		return eof;
 	}
 
-//	/** 半角カナにマッチする正規表現 */
-//	private static Pattern KANA = Pattern.compile("(\\x1b\\(J)(.*?)(\\x1b(\\(B|\\(J|\\$@|\\$B))");
-//	private static Pattern KANA = Pattern.compile("(\\x1b\\x28\\x4a)([\\xa1-\\xdf]*)(\\x1b\\x28\\x42)");
-//	private static Pattern KANA = Pattern.compile("(?<=\\x1b\\(J)(.*)");
+	@Override
+	public int read() throws IOException
+	{
+		int b = super.read();
+		return b < 0 ? b : shift(b);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		int n = super.read(b, off, len);
+		if (n > 0) shiftKana(b, off, n);
+		return n;
+	}
 
 	/** エスケープコード */
 	protected static final byte ESC = 0x1b;
 
+	/** エスケープシーケンスの外 */
+	private static final int STATE_TEXT = 0;
+
+	/** 「[ESC]」の直後 */
+	private static final int STATE_ESC = 1;
+
+	/** 「[ESC] (」の直後 */
+	private static final int STATE_ESC_PAREN = 2;
+
+	/** エスケープシーケンスの状態 */
+	private int state = STATE_TEXT;
+
+	/** 半角カナを修正している途中かどうか */
+	private boolean shiftKana;
+
+	/** 不正な文字の数 */
+	private long invalidCount;
+
 	/**
 	 * 指定されたバイト配列の半角カナを修正します。
+	 * 「[ESC] ( J」を「[ESC] ( I」に修正して、それに続く8ビットの半角カナを7ビットに変換します。
+	 * エスケープシーケンスの途中の状態は次の読み込みに引き継ぐので、読み込みの境界をまたいでいても修正できます。
 	 * 
 	 * @param data バイト配列
 	 * @param off データの開始位置
 	 * @param len データの長さ
-	 * @throws IOException 不正なデータの場合
 	 * @see <a href="http://d.hatena.ne.jp/tarchan/20070308">Windowsから送られてくる半角カナを修正する。</a>
 	 */
-	void shiftKana(byte[] data, int off, int len) throws IOException
+	void shiftKana(byte[] data, int off, int len)
 	{
-		boolean shiftKana = false;
-		int startKana = 0;
-		for (int i = 0; i < data.length; i++)
+		int st = state;
+		int end = off + len;
+		int start = off;
+		if (st == STATE_TEXT)
 		{
-			byte b0 = data[i];
-			if (b0 == ESC)
+			// ASCII文字だけの場合は何もしない
+			start = AsciiScanner.indexOfNonAscii(data, off, end);
+			if (start == end) return;
+		}
+		boolean kana = shiftKana;
+		int invalid = -1;
+		int invalidBytes = 0;
+		for (int i = start; i < end; i++)
+		{
+			byte b = data[i];
+			if (b < 0)
 			{
-				startKana = i;
-				// 「[ESC] ( J」かどうか判定
-				if (i + 2 < data.length && data[i + 1] == '(' && data[i + 2] == 'J')
+				if (!kana)
 				{
-					// 「[ESC] ( I」に修正
-					data[i + 2] = 'I';
-					shiftKana = true;
-				}
-				else
-				{
-					shiftKana = false;
+					if (invalid < 0) invalid = b & 0xff;
+					invalidBytes++;
 				}
+				data[i] = (byte)(b & 0x7f);
+				st = STATE_TEXT;
 			}
-			if (shiftKana)
+			else if (b == ESC)
 			{
-				if ((b0 & 0x80) != 0)
-				{
-					b0 = (byte)(b0 - 0x80);
-					data[i] = b0;
-				}
+				st = STATE_ESC;
+				kana = false;
+			}
+			else if (st == STATE_ESC)
+			{
+				st = b == '(' ? STATE_ESC_PAREN : STATE_TEXT;
 			}
-			if ((b0 & 0x80) != 0)
+			else if (st == STATE_ESC_PAREN)
 			{
-				int endKana = data.length;
-				for (int j = i; j < data.length; j++)
+				st = STATE_TEXT;
+				if (b == 'J')
 				{
-					if (data[j] == ESC)
-					{
-						endKana = j;
-						break;
-					}
+					// 「[ESC] ( J」を「[ESC] ( I」に修正
+					data[i] = 'I';
+					kana = true;
 				}
-				String str = new String(data, startKana, endKana - startKana, "JIS");
-                                log.log(Level.WARNING, "不正な文字です。: {0} ({1})", new Object[] {str, b0});
-				data[i] = (byte)(b0 - 0x80);
 			}
 		}
+		state = st;
+		shiftKana = kana;
+		if (invalidBytes > 0) invalid(invalid, invalidBytes);
+	}
+
+	/**
+	 * 指定された文字コードで半角カナを修正する必要があるかどうか判定します。
+	 * このフィルタは JIS (ISO-2022-JP) 専用で、それ以外の文字コードでは8ビットの文字を壊してしまいます。
+	 * 
+	 * @param charset 文字コード
+	 * @return JIS の場合は true
+	 */
+	public static boolean isSupported(Charset charset)
+	{
+		String name = charset.name();
+		return name.equalsIgnoreCase("ISO-2022-JP") || name.equalsIgnoreCase("x-windows-iso2022jp");
+	}
+
+	/**
+	 * 1バイトの半角カナを修正して、エスケープシーケンスの状態を進めます。
+	 * 
+	 * @param b バイト
+	 * @return 修正したバイト
+	 */
+	private int shift(int b)
+	{
+		if ((b & 0x80) != 0)
+		{
+			if (!shiftKana) invalid(b, 1);
+			state = STATE_TEXT;
+			return b & 0x7f;
+		}
+		if (b == ESC)
+		{
+			state = STATE_ESC;
+			shiftKana = false;
+		}
+		else if (state == STATE_ESC)
+		{
+			state = b == '(' ? STATE_ESC_PAREN : STATE_TEXT;
+		}
+		else if (state == STATE_ESC_PAREN)
+		{
+			state = STATE_TEXT;
+			if (b == 'J')
+			{
+				// 「[ESC] ( J」を「[ESC] ( I」に修正
+				shiftKana = true;
+				return 'I';
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * 半角カナを修正していないところで8ビットの文字を見つけたことを記録します。
+	 * 1回の読み込みで見つけた数をまとめて数えて、最初のバイトだけをログに出力します。
+	 * 
+	 * @param b 最初の不正なバイト
+	 * @param count 不正なバイトの数
+	 */
+	private void invalid(int b, int count)
+	{
+		invalidCount += count;
+		if (log.isLoggable(Level.WARNING))
+		{
+			log.log(Level.WARNING, "不正な文字です。: 0x{0} ({1})", new Object[] {Integer.toHexString(b & 0xff), invalidCount});
+		}
+	}
+
+	/**
+	 * 半角カナを修正していないところで見つけた8ビットの文字の数を返します。
+	 * 
+	 * @return 不正な文字の数
+	 */
+	public long getInvalidCount()
+	{
+		return invalidCount;
 	}
 }
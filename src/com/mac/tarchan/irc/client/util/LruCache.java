@@ -0,0 +1,261 @@
+/*
+ * LruCache.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 最近使われていない要素から削除する、容量制限付きのキャッシュです。
+ * キーのハッシュ値で分割したセグメントごとにロックするので、複数のスレッドから同時に使用できます。
+ * 容量はセグメントごとに分けるので、要素の数が最大の要素数より少ないうちに削除することがありますが、最大の要素数を超えることはありません。
+ * 容量がセグメントの数より小さい場合は、セグメントを減らします。
+ * キャッシュの大きさを調整できるように、ヒット数とミス数を数えます。
+ * 
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+public class LruCache<K, V>
+{
+	/** セグメントの最大の数 */
+	private static final int SEGMENTS = 16;
+
+	/** セグメント */
+	private final Segment<K, V>[] segments;
+
+	/** セグメントの番号のマスク */
+	private final int mask;
+
+	/** 最大の要素数 */
+	private final int capacity;
+
+	/** ヒット数 */
+	private final LongAdder hits = new LongAdder();
+
+	/** ミス数 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * 指定された容量のキャッシュを構築します。
+	 * 
+	 * @param capacity 最大の要素数
+	 */
+	@SuppressWarnings("unchecked")
+	public LruCache(int capacity)
+	{
+		if (capacity <= 0) throw new IllegalArgumentException("容量が不正です。: " + capacity);
+
+		this.capacity = capacity;
+		int count = Integer.highestOneBit(Math.min(SEGMENTS, capacity));
+		segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+		mask = count - 1;
+		for (int i = 0; i < count; i++)
+		{
+			// 合計が最大の要素数になるように、余りを前のセグメントに1つずつ配る
+			segments[i] = new Segment<K, V>(capacity / count + (i < capacity % count ? 1 : 0));
+		}
+	}
+
+	/**
+	 * 指定されたキーのセグメントを返します。
+	 * 
+	 * @param key キー
+	 * @return セグメント
+	 */
+	private Segment<K, V> segmentFor(Object key)
+	{
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments[h & mask];
+	}
+
+	/**
+	 * 指定されたキーの値を返します。
+	 * 
+	 * @param key キー
+	 * @return 値、キャッシュにない場合は null
+	 */
+	public V get(K key)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		V value;
+		segment.lock.lock();
+		try
+		{
+			value = segment.map.get(key);
+		}
+		finally
+		{
+			segment.lock.unlock();
+		}
+		if (value != null)
+		{
+			hits.increment();
+		}
+		else
+		{
+			misses.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * 指定されたキーの値を設定します。
+	 * 容量を超えた場合は、最近使われていない要素を削除します。
+	 * 
+	 * @param key キー
+	 * @param value 値
+	 */
+	public void put(K key, V value)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		segment.lock.lock();
+		try
+		{
+			segment.map.put(key, value);
+		}
+		finally
+		{
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * 指定されたキーの値を削除します。
+	 * 
+	 * @param key キー
+	 */
+	public void remove(K key)
+	{
+		Segment<K, V> segment = segmentFor(key);
+		segment.lock.lock();
+		try
+		{
+			segment.map.remove(key);
+		}
+		finally
+		{
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * すべての要素を削除します。
+	 */
+	public void clear()
+	{
+		for (Segment<K, V> segment : segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				segment.map.clear();
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 現在の要素数を返します。
+	 * 
+	 * @return 要素数
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment<K, V> segment : segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				size += segment.map.size();
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 最大の要素数を返します。
+	 * 
+	 * @return 最大の要素数
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * ヒット数を返します。
+	 * 
+	 * @return ヒット数
+	 */
+	public long getHitCount()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * ミス数を返します。
+	 * 
+	 * @return ミス数
+	 */
+	public long getMissCount()
+	{
+		return misses.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s[size=%d, capacity=%d, hits=%d, misses=%d]", getClass().getSimpleName(), size(), capacity, getHitCount(), getMissCount());
+	}
+
+	/**
+	 * ロックとアクセス順のマップの組です。
+	 * 
+	 * @param <K> キーの型
+	 * @param <V> 値の型
+	 */
+	private static class Segment<K, V>
+	{
+		/** ロック */
+		final ReentrantLock lock = new ReentrantLock();
+
+		/** アクセス順のマップ */
+		final LinkedHashMap<K, V> map;
+
+		/**
+		 * 指定された容量のセグメントを構築します。
+		 * 
+		 * @param capacity 最大の要素数
+		 */
+		Segment(final int capacity)
+		{
+			map = new LinkedHashMap<K, V>(capacity * 4 / 3 + 1, 0.75f, true)
+			{
+				/** serialVersionUID */
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+				{
+					return size() > capacity;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * VirtualThreads.java
+ * IRCKit
+ * 
+ * Created by tarchan on 2026/10/18.
+ * Copyright (c) 2026 tarchan. All rights reserved.
+ */
+package com.mac.tarchan.irc.client.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 仮想スレッドを使用するためのスレッドファクトリとエグゼキュータを作成します。
+ * 仮想スレッドは Java 21 以降で使用できます。
+ * それより前の Java で実行している場合は、デーモンのプラットフォームスレッドで代用します。
+ * 
+ * @see com.mac.tarchan.irc.client.IRCClient#setThreadFactory(ThreadFactory)
+ */
+public class VirtualThreads
+{
+	/** ログ */
+	private static final Logger log = Logger.getLogger(VirtualThreads.class.getName());
+
+	/** Thread.ofVirtual() */
+	private static final Method OF_VIRTUAL;
+
+	/** Thread.Builder.name(String, long) */
+	private static final Method BUILDER_NAME;
+
+	/** Thread.Builder.factory() */
+	private static final Method BUILDER_FACTORY;
+
+	/** Executors.newThreadPerTaskExecutor(ThreadFactory) */
+	private static final Method THREAD_PER_TASK;
+
+	static
+	{
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method perTask = null;
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		}
+		catch (ReflectiveOperationException ex)
+		{
+			log.log(Level.FINE, "仮想スレッドは使用できません。", ex);
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_FACTORY = factory;
+		THREAD_PER_TASK = perTask;
+	}
+
+	/**
+	 * インスタンスを作成しません。
+	 */
+	private VirtualThreads()
+	{
+	}
+
+	/**
+	 * 仮想スレッドを使用できるかどうか判定します。
+	 * 
+	 * @return 仮想スレッドを使用できる場合は true
+	 */
+	public static boolean isSupported()
+	{
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * 指定された名前で始まる仮想スレッドのファクトリを返します。
+	 * 仮想スレッドを使用できない場合は、デーモンのプラットフォームスレッドのファクトリを返します。
+	 * 
+	 * @param prefix スレッド名の接頭辞
+	 * @return スレッドファクトリ
+	 */
+	public static ThreadFactory factory(String prefix)
+	{
+		if (isSupported())
+		{
+			try
+			{
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, prefix, 0L);
+				return (ThreadFactory)BUILDER_FACTORY.invoke(builder);
+			}
+			catch (ReflectiveOperationException ex)
+			{
+				log.log(Level.WARNING, "仮想スレッドのファクトリを作成できません。", ex);
+			}
+		}
+		log.log(Level.INFO, "仮想スレッドを使用できないので、プラットフォームスレッドを使用します。: {0}", System.getProperty("java.version"));
+		return daemonFactory(prefix);
+	}
+
+	/**
+	 * 指定された名前で始まるデーモンのプラットフォームスレッドのファクトリを返します。
+	 * 
+	 * @param prefix スレッド名の接頭辞
+	 * @return スレッドファクトリ
+	 */
+	public static ThreadFactory daemonFactory(final String prefix)
+	{
+		return new ThreadFactory()
+		{
+			/** スレッド番号 */
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, prefix + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * 指定されたファクトリでタスクごとにスレッドを起動するエグゼキュータを返します。
+	 * 仮想スレッドはプールせずに使い捨てるので、仮想スレッドのファクトリにはこのエグゼキュータを使用します。
+	 * Java 21 より前の場合は、指定されたファクトリのキャッシュスレッドプールを返します。
+	 * 
+	 * @param factory スレッドファクトリ
+	 * @return エグゼキュータ
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory)
+	{
+		if (THREAD_PER_TASK != null)
+		{
+			try
+			{
+				return (ExecutorService)THREAD_PER_TASK.invoke(null, factory);
+			}
+			catch (ReflectiveOperationException ex)
+			{
+				log.log(Level.WARNING, "エグゼキュータを作成できません。", ex);
+			}
+		}
+		return Executors.newCachedThreadPool(factory);
+	}
+}